@@ -0,0 +1,65 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.benchmarks
+
+import jp.co.soramitsu.soranet.eth.abi.AbiDecoder
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.web3j.abi.FunctionEncoder
+import org.web3j.abi.datatypes.Address
+import org.web3j.abi.datatypes.DynamicArray
+import org.web3j.abi.datatypes.Function
+import org.web3j.abi.datatypes.generated.Bytes32
+import org.web3j.abi.datatypes.generated.Uint256
+import org.web3j.abi.datatypes.generated.Uint8
+import java.math.BigInteger
+
+/**
+ * Cost of [AbiDecoder.decodeMethod] on Master contract `withdraw` calls signed by 4 peers
+ * compared to [AbiDecoder.AbiProjection] of the only parameter the chain handler needs
+ */
+@State(Scope.Benchmark)
+open class AbiDecoderBenchmark {
+
+    private val decoder = AbiDecoder()
+
+    private lateinit var withdrawInput: String
+    private lateinit var txHashProjection: AbiDecoder.AbiProjection
+
+    @Setup
+    fun setUp() {
+        decoder.addAbi(loadMasterAbi())
+        txHashProjection = decoder.projection(listOf("withdraw", "mintTokensByPeers"), "txHash" to "bytes32")
+        val peers = 4
+        withdrawInput = FunctionEncoder.encode(
+            Function(
+                "withdraw",
+                listOf(
+                    Address("0x" + "00".repeat(20)),
+                    Uint256(BigInteger.TEN.pow(18)),
+                    Address("0x" + "11".repeat(20)),
+                    Bytes32(ByteArray(32) { 0x22 }),
+                    DynamicArray(Uint8::class.java, List(peers) { Uint8(27) }),
+                    DynamicArray(Bytes32::class.java, List(peers) { Bytes32(ByteArray(32) { 0x33 }) }),
+                    DynamicArray(Bytes32::class.java, List(peers) { Bytes32(ByteArray(32) { 0x44 }) }),
+                    Address("0x" + "11".repeat(20))
+                ),
+                emptyList()
+            )
+        )
+    }
+
+    @Benchmark
+    fun decodeWithdraw() = decoder.decodeMethod(withdrawInput)
+
+    @Benchmark
+    fun projectWithdrawTxHash() = txHashProjection.decode(withdrawInput)
+
+    @Benchmark
+    fun methodName() = decoder.getMethodName(withdrawInput)
+}
@@ -0,0 +1,17 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.benchmarks
+
+/** Url of an Ethereum node that doesn't exist, benchmarks never send requests */
+const val OFFLINE_URL = "http://127.0.0.1:1"
+
+/**
+ * Loads Master contract ABI from the benchmark resources
+ */
+fun loadMasterAbi(): String =
+    Thread.currentThread().contextClassLoader.getResourceAsStream("Master.abi")!!
+        .bufferedReader()
+        .use { it.readText() }
@@ -0,0 +1,70 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.benchmarks
+
+import jp.co.soramitsu.soranet.eth.registration.wallet.EthereumRegistrationProof
+import jp.co.soramitsu.soranet.eth.registration.wallet.checkRegistrationProof
+import jp.co.soramitsu.soranet.eth.registration.wallet.createRegistrationProof
+import jp.co.soramitsu.soranet.eth.sidechain.util.hashToMint
+import jp.co.soramitsu.soranet.eth.sidechain.util.hashToProve
+import jp.co.soramitsu.soranet.eth.sidechain.util.hashToWithdraw
+import jp.co.soramitsu.soranet.eth.sidechain.util.signUserData
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.web3j.crypto.ECKeyPair
+import org.web3j.crypto.Hash
+import org.web3j.crypto.Keys
+import java.math.BigInteger
+
+/**
+ * Cost of hashing and signing done for every withdrawal and of registration proof checks
+ */
+@State(Scope.Benchmark)
+open class CryptoBenchmark {
+
+    private lateinit var keyPair: ECKeyPair
+    private lateinit var registrationProof: EthereumRegistrationProof
+
+    @Setup
+    fun setUp() {
+        keyPair = Keys.createEcKeyPair()
+        registrationProof = createRegistrationProof(keyPair)
+    }
+
+    @Benchmark
+    fun hashToWithdraw() = hashToWithdraw(TOKEN_ADDRESS, AMOUNT, BENEFICIARY, IROHA_HASH, BENEFICIARY)
+
+    /** Withdrawal hash built with hex string concatenation, the reference for [hashToWithdraw] */
+    @Benchmark
+    fun hashToWithdrawHexConcatenation() = Hash.sha3(
+        TOKEN_ADDRESS.replace("0x", "")
+                + String.format("%064x", BigInteger(AMOUNT)).replace("0x", "")
+                + BENEFICIARY.replace("0x", "")
+                + IROHA_HASH.replace("0x", "")
+                + BENEFICIARY.replace("0x", "")
+    )
+
+    @Benchmark
+    fun hashToMint() = hashToMint(TOKEN_ADDRESS, AMOUNT, BENEFICIARY, IROHA_HASH, BENEFICIARY)
+
+    @Benchmark
+    fun hashToProve() = hashToProve(IROHA_HASH)
+
+    @Benchmark
+    fun signUserData() = signUserData(keyPair, IROHA_HASH)
+
+    @Benchmark
+    fun checkRegistrationProof() = checkRegistrationProof(registrationProof)
+
+    companion object {
+        private const val TOKEN_ADDRESS = "0x0000000000000000000000000000000000000000"
+        private const val BENEFICIARY = "0x1111111111111111111111111111111111111111"
+        private const val AMOUNT = "1500000000000000000"
+        private const val IROHA_HASH = "0x2222222222222222222222222222222222222222222222222222222222222222"
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.benchmarks
+
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import jp.co.soramitsu.soranet.eth.mq.EthNotificationMqProducer
+import jp.co.soramitsu.soranet.eth.provider.EthAddressProvider
+import jp.co.soramitsu.soranet.eth.provider.EthTokensProvider
+import jp.co.soramitsu.soranet.eth.sidechain.EthChainHandler
+import jp.co.soramitsu.soranet.eth.sidechain.EthReceiptFetcher
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import org.web3j.protocol.ObjectMapperFactory
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.methods.response.EthBlock
+import org.web3j.protocol.core.methods.response.Transaction
+import org.web3j.protocol.core.methods.response.TransactionReceipt
+import org.web3j.protocol.http.HttpService
+
+/**
+ * Cost of [EthChainHandler.parseBlock] on synthetic blocks.
+ * Half of the transactions are ether deposits from registered wallets to master, the rest are foreign transfers.
+ * Receipts are served from memory, so only the handler CPU time is measured.
+ */
+@State(Scope.Benchmark)
+open class EthChainHandlerBenchmark {
+
+    @Param("10", "200")
+    var transactionsInBlock: Int = 0
+
+    private lateinit var web3: Web3j
+    private lateinit var handler: EthChainHandler
+    private lateinit var block: EthBlock
+
+    @Setup
+    fun setUp() {
+        val wallets = (1..transactionsInBlock).associate { i -> String.format("0x%040x", i) to "client$i@sora" }
+        val ethWalletProvider = mock<EthAddressProvider> {
+            on { getAddresses() } doReturn Result.of { wallets }
+        }
+        val ethTokensProvider = mock<EthTokensProvider> {
+            on { getEthAnchoredTokens() } doReturn Result.of { emptyMap<String, String>() }
+            on { getIrohaAnchoredTokens() } doReturn Result.of { emptyMap<String, String>() }
+        }
+        block = createBlock(wallets.keys.toList())
+        val receipts = block.block.transactions.associate { tx ->
+            val hash = (tx.get() as Transaction).hash
+            hash to TransactionReceipt().apply {
+                transactionHash = hash
+                blockNumber = "0x1"
+                status = "0x1"
+                logs = emptyList()
+            }
+        }
+        // never called, receipts are served by the fetcher below
+        web3 = Web3j.build(HttpService(OFFLINE_URL))
+        handler = EthChainHandler(
+            web3,
+            MASTER_ADDRESS,
+            ethWalletProvider,
+            ethTokensProvider,
+            mock<EthNotificationMqProducer>(),
+            loadMasterAbi(),
+            object : EthReceiptFetcher {
+                override fun getReceipts(hashes: Collection<String>) = hashes.associateWith { receipts.getValue(it) }
+            }
+        )
+    }
+
+    @TearDown
+    fun tearDown() {
+        web3.shutdown()
+    }
+
+    @Benchmark
+    fun parseBlock(blackhole: Blackhole) {
+        blackhole.consume(handler.parseBlock(block))
+    }
+
+    private fun createBlock(wallets: List<String>): EthBlock {
+        val transactions = wallets.mapIndexed { index, wallet ->
+            val deposit = index % 2 == 0
+            mapOf(
+                "hash" to String.format("0x%064x", index + 1),
+                "blockNumber" to "0x1",
+                "transactionIndex" to "0x" + Integer.toHexString(index),
+                "from" to if (deposit) wallet else String.format("0x%040x", FOREIGN_ADDRESS_OFFSET + index),
+                "to" to MASTER_ADDRESS,
+                "value" to "0xde0b6b3a7640000",
+                "input" to "0x"
+            )
+        }
+        val block = mapOf(
+            "jsonrpc" to "2.0",
+            "id" to 1,
+            "result" to mapOf(
+                "number" to "0x1",
+                "hash" to String.format("0x%064x", 1),
+                "parentHash" to String.format("0x%064x", 0),
+                "timestamp" to "0x5e0be100",
+                "transactions" to transactions
+            )
+        )
+        return ObjectMapperFactory.getObjectMapper().convertValue(block, EthBlock::class.java)
+    }
+
+    companion object {
+        private const val MASTER_ADDRESS = "0xabababababababababababababababababababab"
+        private const val FOREIGN_ADDRESS_OFFSET = 1_000_000
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.benchmarks
+
+import jp.co.soramitsu.soranet.eth.provider.EthWalletIndex
+import org.openjdk.jmh.annotations.*
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Lookups of `Transfer` senders among registered wallets: [EthWalletIndex] against the map of strings it replaces.
+ * Half of the looked up topics are registered wallets.
+ * Heap retained by both structures is printed during the setup, run with `-prof gc` to see allocations per lookup.
+ */
+@State(Scope.Benchmark)
+@Fork(jvmArgsAppend = ["-Xmx8g"])
+open class EthWalletIndexBenchmark {
+
+    @Param("1000000", "10000000")
+    var wallets: Int = 0
+
+    private lateinit var index: EthWalletIndex.Snapshot
+    private lateinit var map: Map<String, String>
+    private lateinit var topics: Array<String>
+    private var next = 0
+
+    @Setup
+    fun setUp() {
+        val random = Random(SEED)
+        val addresses = Array(wallets) { address(random) }
+
+        val beforeIndex = usedHeap()
+        val walletIndex = EthWalletIndex(wallets)
+        addresses.forEachIndexed { i, address -> walletIndex.put(address, "client$i@sora") }
+        index = walletIndex.snapshot()
+        printFootprint("EthWalletIndex", usedHeap() - beforeIndex)
+
+        val beforeMap = usedHeap()
+        val walletMap = ConcurrentHashMap<String, String>(wallets)
+        addresses.forEachIndexed { i, address -> walletMap[address] = "client$i@sora" }
+        map = walletMap
+        // the addresses are shared with the benchmark, but the map owns them in production
+        printFootprint("ConcurrentHashMap", usedHeap() - beforeMap + addresses.size * ADDRESS_STRING_SIZE)
+
+        topics = Array(TOPICS) { i ->
+            val address = if (i % 2 == 0) addresses[random.nextInt(wallets)] else address(random)
+            "0x" + "0".repeat(24) + address.removePrefix("0x")
+        }
+    }
+
+    @Benchmark
+    fun indexByTopic(): String? = index.getByTopic(nextTopic())
+
+    @Benchmark
+    fun mapByTopic(): String? {
+        val topic = nextTopic()
+        return map["0x" + topic.drop(26).toLowerCase()]
+    }
+
+    @Benchmark
+    fun indexByAddress(): String? = index[nextTopic().substring(26)]
+
+    @Benchmark
+    fun mapByAddress(): String? = map["0x" + nextTopic().substring(26)]
+
+    private fun nextTopic(): String {
+        next = (next + 1) and (TOPICS - 1)
+        return topics[next]
+    }
+
+    private fun printFootprint(name: String, bytes: Long) {
+        println("$name of $wallets wallets: ${bytes / MB} MB, ${bytes / wallets} bytes per wallet")
+    }
+
+    companion object {
+        private const val SEED = 42L
+        private const val TOPICS = 1024
+        private const val MB = 1024 * 1024
+        /** Heap of a 42 characters Latin-1 string: header, hash, array reference and the byte array */
+        private const val ADDRESS_STRING_SIZE = 24 + 16 + 48
+        private val HEX_DIGITS = "0123456789abcdef".toCharArray()
+
+        private fun address(random: Random): String {
+            val chars = CharArray(42)
+            chars[0] = '0'
+            chars[1] = 'x'
+            for (i in 2 until chars.size) {
+                chars[i] = HEX_DIGITS[random.nextInt(16)]
+            }
+            return String(chars)
+        }
+
+        private fun usedHeap(): Long {
+            val runtime = Runtime.getRuntime()
+            repeat(3) { System.gc() }
+            return runtime.totalMemory() - runtime.freeMemory()
+        }
+    }
+}
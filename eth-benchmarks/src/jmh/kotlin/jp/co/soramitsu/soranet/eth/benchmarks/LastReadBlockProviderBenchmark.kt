@@ -0,0 +1,57 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.benchmarks
+
+import com.d3.commons.sidechain.provider.FileBasedLastReadBlockProvider
+import jp.co.soramitsu.soranet.eth.provider.CheckpointLastReadBlockProvider
+import org.openjdk.jmh.annotations.*
+import java.io.File
+import java.math.BigInteger
+import java.nio.file.Files
+
+/**
+ * Cost of saving the last read Ethereum block height after every block:
+ * the legacy text file against the memory-mapped checkpoint
+ */
+@State(Scope.Benchmark)
+open class LastReadBlockProviderBenchmark {
+
+    private lateinit var directory: File
+    private lateinit var fileProvider: FileBasedLastReadBlockProvider
+    private lateinit var checkpointProvider: CheckpointLastReadBlockProvider
+    private var height = BigInteger.ZERO
+
+    @Setup
+    fun setUp() {
+        directory = Files.createTempDirectory("last-read-block").toFile()
+        val file = File(directory, "last_eth_read_block.txt")
+        file.writeText("0")
+        fileProvider = FileBasedLastReadBlockProvider(file.absolutePath)
+        checkpointProvider = CheckpointLastReadBlockProvider(File(directory, "last_eth_read_block.checkpoint").absolutePath)
+    }
+
+    @TearDown
+    fun tearDown() {
+        checkpointProvider.close()
+        directory.deleteRecursively()
+    }
+
+    @Benchmark
+    fun fileBased() {
+        height = height.inc()
+        fileProvider.saveLastBlockHeight(height)
+    }
+
+    @Benchmark
+    fun checkpoint() {
+        height = height.inc()
+        checkpointProvider.saveLastBlock(height, BLOCK_HASH)
+    }
+
+    companion object {
+        private const val BLOCK_HASH = "0x3333333333333333333333333333333333333333333333333333333333333333"
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.benchmarks
+
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import jp.co.soramitsu.soranet.eth.bridge.WithdrawalProofHandler
+import jp.co.soramitsu.soranet.eth.config.EthereumConfig
+import jp.co.soramitsu.soranet.eth.provider.EthAddressProvider
+import jp.co.soramitsu.soranet.eth.provider.EthTokensProvider
+import jp.co.soramitsu.soranet.eth.provider.EthTokensSnapshot
+import jp.co.soramitsu.soranet.eth.sidechain.util.DeployHelper
+import org.openjdk.jmh.annotations.*
+import org.web3j.crypto.Credentials
+import org.web3j.crypto.Keys
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Cost of [WithdrawalProofHandler.createProof]: token lookups, hashing, signing and proof serialization.
+ * Iroha is replaced with stubs, Ethereum node is never called.
+ */
+@State(Scope.Benchmark)
+open class WithdrawalProofBenchmark {
+
+    @Param("false", "true")
+    var irohaAnchored: Boolean = false
+
+    private lateinit var deployHelper: DeployHelper
+    private lateinit var executorService: ExecutorService
+    private lateinit var handler: WithdrawalProofHandler
+
+    @Setup
+    fun setUp() {
+        val credentials = Credentials.create(Keys.createEcKeyPair())
+        val tokens = mapOf(TOKEN_ADDRESS to ASSET_ID)
+        val tokensProvider = mock<EthTokensProvider> {
+            on { getTokensSnapshot() } doReturn EthTokensSnapshot(
+                if (irohaAnchored) emptyMap() else tokens,
+                if (irohaAnchored) tokens else emptyMap(),
+                mapOf(ASSET_ID to 18)
+            )
+        }
+        deployHelper = DeployHelper(offlineEthereumConfig, null, null, credentials)
+        executorService = Executors.newSingleThreadExecutor()
+        handler = WithdrawalProofHandler(
+            "notary@notary",
+            tokensProvider,
+            mock<EthAddressProvider>(),
+            deployHelper,
+            mock<IrohaQueryHelper>(),
+            mock<IrohaConsumer>(),
+            credentials,
+            executorService
+        )
+    }
+
+    @TearDown
+    fun tearDown() {
+        executorService.shutdownNow()
+        deployHelper.close()
+    }
+
+    @Benchmark
+    fun createProof() = handler.createProof(
+        "client@sora",
+        ASSET_ID,
+        "1.5",
+        BENEFICIARY,
+        IROHA_HASH
+    )
+
+    companion object {
+        private const val ASSET_ID = "token#sora"
+        private const val TOKEN_ADDRESS = "0x3333333333333333333333333333333333333333"
+        private const val BENEFICIARY = "0x1111111111111111111111111111111111111111"
+        private const val IROHA_HASH = "2222222222222222222222222222222222222222222222222222222222222222"
+
+        private val offlineEthereumConfig = object : EthereumConfig {
+            override val url = OFFLINE_URL
+            override val gasPrice = 0L
+            override val gasLimit = 0L
+            override val confirmationPeriod = 0L
+            override val catchUpWindowSize = 1
+            override val logsScanRangeSize = 0
+            override val headsTransport = "http"
+            override val wsUrl = ""
+            override val readHedgeDelayMs = 0L
+            override val logsBloomScreening = false
+        }
+    }
+}
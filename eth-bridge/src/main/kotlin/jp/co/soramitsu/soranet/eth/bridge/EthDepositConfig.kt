@@ -45,6 +45,15 @@ interface EthDepositConfig {
     /** Path to storage of last read Ethereum block number */
     val lastEthereumReadBlockFilePath: String
 
+    /** Path to checkpoint file of last read Ethereum block, replaces [lastEthereumReadBlockFilePath] */
+    val lastEthereumReadBlockCheckpointPath: String
+
+    /** Path to append-only file of notification events that could not be published to RMQ */
+    val notificationsSpillFilePath: String
+
+    /** Path to local snapshot of registered wallets and tokens, its journal is stored next to it */
+    val registrySnapshotPath: String
+
     /** Ethereum block number to start listen for */
     val startEthereumBlock: BigInteger
 
@@ -53,6 +62,9 @@ interface EthDepositConfig {
 
     val ethereum: EthereumConfig
 
+    /** Number of consecutive Ethereum blocks parsed concurrently, events are emitted in block order anyway */
+    val blockParsingWindowSize: Int
+
     /** Account that trigger expansion */
     val expansionTriggerAccount: String
 
@@ -5,7 +5,6 @@
 
 package jp.co.soramitsu.soranet.eth.bridge
 
-import com.d3.chainadapter.client.RMQConfig
 import com.d3.chainadapter.client.ReliableIrohaChainListener
 import com.d3.commons.expansion.ServiceExpansion
 import com.d3.commons.model.IrohaCredential
@@ -13,12 +12,12 @@ import com.d3.commons.notary.Notary
 import com.d3.commons.notary.NotaryImpl
 import com.d3.commons.notary.endpoint.ServerInitializationBundle
 import com.d3.commons.provider.NotaryPeerListProviderImpl
+import com.d3.commons.sidechain.ChainListener
 import com.d3.commons.sidechain.SideChainEvent
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumerImpl
 import com.d3.commons.sidechain.iroha.util.impl.IrohaQueryHelperImpl
 import com.d3.commons.sidechain.provider.FileBasedLastReadBlockProvider
 import com.d3.commons.util.createPrettyFixThreadPool
-import com.d3.commons.util.createPrettySingleThreadPool
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
@@ -27,25 +26,37 @@ import io.reactivex.schedulers.Schedulers
 import jp.co.soramitsu.iroha.java.IrohaAPI
 import jp.co.soramitsu.soranet.eth.bridge.endpoint.EthAddPeerStrategyImpl
 import jp.co.soramitsu.soranet.eth.bridge.endpoint.EthServerEndpoint
+import jp.co.soramitsu.soranet.eth.config.EthHeadsTransport
 import jp.co.soramitsu.soranet.eth.config.EthereumPasswords
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
 import jp.co.soramitsu.soranet.eth.mq.EthNotificationMqProducer
+import jp.co.soramitsu.soranet.eth.provider.CheckpointLastReadBlockProvider
 import jp.co.soramitsu.soranet.eth.provider.EthAddressProvider
+import jp.co.soramitsu.soranet.eth.provider.EthRegistryStorage
 import jp.co.soramitsu.soranet.eth.provider.EthTokensProvider
 import jp.co.soramitsu.soranet.eth.registration.wallet.EthereumWalletRegistrationHandler
+import jp.co.soramitsu.soranet.eth.sidechain.BatchReceiptFetcher
+import jp.co.soramitsu.soranet.eth.sidechain.EthBlockCheckpoints
 import jp.co.soramitsu.soranet.eth.sidechain.EthChainHandler
 import jp.co.soramitsu.soranet.eth.sidechain.EthChainListener
+import jp.co.soramitsu.soranet.eth.sidechain.EthLogsChainListener
+import jp.co.soramitsu.soranet.eth.sidechain.LogsBloomBlockScreen
+import jp.co.soramitsu.soranet.eth.sidechain.ParallelBlockParser
+import jp.co.soramitsu.soranet.eth.sidechain.WebSocketHeadsSource
 import jp.co.soramitsu.soranet.eth.sidechain.util.BasicAuthenticator
 import jp.co.soramitsu.soranet.eth.sidechain.util.DeployHelper
 import jp.co.soramitsu.soranet.eth.sidechain.util.ENDPOINT_ETHEREUM
+import jp.co.soramitsu.soranet.eth.sidechain.util.PooledWeb3jService
 import mu.KLogging
 import okhttp3.OkHttpClient
-import org.web3j.crypto.WalletUtils
+import org.web3j.crypto.Credentials
 import org.web3j.protocol.Web3j
 import org.web3j.protocol.core.JsonRpc2_0Web3j
-import org.web3j.protocol.http.HttpService
-import org.web3j.utils.Files
+import org.web3j.protocol.core.methods.response.EthBlock
 import java.io.File
 import java.math.BigInteger
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
 import java.util.concurrent.Executors
 import java.util.concurrent.Future
 import java.util.concurrent.ScheduledThreadPoolExecutor
@@ -55,41 +66,35 @@ import java.util.concurrent.atomic.AtomicInteger
 import kotlin.system.exitProcess
 
 /**
- * Class for deposit instantiation
+ * Class for deposit instantiation.
+ * Components that take long to create are passed in, so [executeDeposit] creates them concurrently.
+ * @param ethCredential - Ethereum credentials decrypted once and shared by all the Ethereum clients
+ * @param irohaChainListener - listener of Iroha blocks, blocks must be acknowledged manually
+ * @param ethNotificationMqProducer - producer of deposit notifications
+ * @param masterContractAbi - abi of Master contract
  * @param ethWalletProvider - provides with white list of ethereum wallets
  * @param ethTokensProvider - provides with white list of ethereum ERC20 tokens
  * @param registrationHandler - iroha-based wallet registration handler
+ * @param registryStorage - local storage of wallets and tokens, registries are queried from Iroha on startup if null
  */
 class EthDepositInitialization(
     private val notaryCredential: IrohaCredential,
     private val irohaAPI: IrohaAPI,
     private val ethDepositConfig: EthDepositConfig,
     private val passwordsConfig: EthereumPasswords,
-    rmqConfig: RMQConfig,
+    private val ethCredential: Credentials,
+    private val irohaChainListener: ReliableIrohaChainListener,
+    private val ethNotificationMqProducer: EthNotificationMqProducer,
+    private val masterContractAbi: String,
     private val ethWalletProvider: EthAddressProvider,
     private val ethTokensProvider: EthTokensProvider,
-    private val registrationHandler: EthereumWalletRegistrationHandler
+    private val registrationHandler: EthereumWalletRegistrationHandler,
+    private val registryStorage: EthRegistryStorage? = null
 ) {
-    private val ethCredential = WalletUtils.loadCredentials(
-        passwordsConfig.credentialsPassword,
-        passwordsConfig.credentialsPath
-    )
-
     private val ecKeyPair = ethCredential.ecKeyPair
 
     private val queryHelper = IrohaQueryHelperImpl(irohaAPI, notaryCredential)
 
-    private val irohaChainListener = ReliableIrohaChainListener(
-        rmqConfig,
-        ethDepositConfig.ethIrohaDepositQueue,
-        consumerExecutorService = createPrettySingleThreadPool(
-            ETH_DEPOSIT_SERVICE_NAME,
-            "rmq-consumer"
-        )
-    )
-
-    private val ethNotificationMqProducer = EthNotificationMqProducer(rmqConfig)
-
     private val expansionService = ServiceExpansion(
         ethDepositConfig.expansionTriggerAccount,
         ethDepositConfig.expansionTriggerCreatorAccountId,
@@ -111,16 +116,21 @@ class EthDepositInitialization(
         )
     )
 
-    private val ethExpansionStrategy = EthereumBridgeEthExpansionStrategy(
+    /** Ethereum client shared by Iroha block handlers */
+    private val deployHelper = DeployHelper(
         ethDepositConfig.ethereum,
-        passwordsConfig,
+        passwordsConfig.nodeLogin,
+        passwordsConfig.nodePassword,
+        ethCredential
+    )
+
+    private val ethExpansionStrategy = EthereumBridgeEthExpansionStrategy(
+        deployHelper,
         ethDepositConfig.ethMasterAddress,
         expansionService,
         proofCollector
     )
 
-    private val deployHelper = DeployHelper(ethDepositConfig.ethereum, passwordsConfig)
-
     private val withdrawalQueryHelper = IrohaQueryHelperImpl(irohaAPI, ethDepositConfig.withdrawalCredential)
 
     private val withdrawalIrohaConsumer = IrohaConsumerImpl(
@@ -145,18 +155,41 @@ class EthDepositInitialization(
         ethCredential
     )
 
-    private val masterContractAbi = Files.readString(File(ethDepositConfig.masterContractAbiPath))
+    /**
+     * Iroha block handlers. Token and wallet updates go before the proof handlers that rely on them.
+     */
+    val irohaBlockStages = IrohaBlockStageGraph(
+        listOf(
+            IrohaBlockStage("iroha-expansion") { irohaExpansionStrategy.filterAndExpand(it) },
+            DeferredIrohaBlockStage("eth-expansion") { ethExpansionStrategy.filterAndExpand(it) },
+            IrohaBlockStage("registration") { registrationHandler.filterAndRegister(it) },
+            IrohaBlockStage("wallets") { ethWalletProvider.filterAndExpand(it) },
+            IrohaBlockStage("tokens") { ethTokensProvider.filterAndExpand(it) },
+            IrohaBlockStage("withdrawal-proofs", listOf("registration", "wallets", "tokens")) {
+                withdrawalProofHandler.proceedBlock(it)
+            },
+            IrohaBlockStage("referendum-proofs", listOf("registration", "wallets", "tokens")) {
+                referendumProofHandler.proceedBlock(it)
+            }
+        ) + listOfNotNull(registryStorage?.let { storage ->
+            // the block is acknowledged only after its registry changes are stored
+            IrohaBlockStage("registry-snapshot", listOf("registration", "wallets", "tokens")) {
+                storage.save(it.blockV1.payload.height)
+            }
+        }),
+        createPrettyFixThreadPool(ETH_DEPOSIT_SERVICE_NAME, "block-stages")
+    )
 
     private val isHealthy = AtomicBoolean(true)
 
+    /** Completes when the last received Iroha block is acknowledged, accessed by the Iroha blocks observer only */
+    private var irohaBlocksAcknowledged: CompletableFuture<Unit> = CompletableFuture.completedFuture(Unit)
+
     init {
-        logger.info {
-            "Init deposit ethAddress=" +
-                    WalletUtils.loadCredentials(
-                        passwordsConfig.credentialsPassword,
-                        passwordsConfig.credentialsPath
-                    ).address
-        }
+        logger.info { "Init deposit ethAddress=${ethCredential.address}" }
+        Runtime.getRuntime().addShutdownHook(Thread { deployHelper.close() })
+        Runtime.getRuntime().addShutdownHook(Thread { withdrawalProofHandler.close() })
+        registryStorage?.let { storage -> Runtime.getRuntime().addShutdownHook(Thread { storage.close() }) }
     }
 
     /**
@@ -178,13 +211,21 @@ class EthDepositInitialization(
                             )
                         )
                     ).subscribe(
-                        { (block, _) ->
-                            irohaExpansionStrategy.filterAndExpand(block)
-                            ethExpansionStrategy.filterAndExpand(block)
-                            registrationHandler.filterAndRegister(block)
-                            ethTokensProvider.filterAndExpand(block)
-                            withdrawalProofHandler.proceedBlock(block)
-                            referendumProofHandler.proceedBlock(block)
+                        { (block, ack) ->
+                            // Ethereum transactions of the block are mined without holding the next blocks
+                            val processed = irohaBlockStages.process(block)
+                            processed.whenComplete { _, ex ->
+                                if (ex != null) {
+                                    val cause = (ex as? CompletionException)?.cause ?: ex
+                                    logger.error(
+                                        "Iroha block ${block.blockV1.payload.height} Ethereum transactions failed",
+                                        cause
+                                    )
+                                    exitProcess(1)
+                                }
+                            }
+                            // but blocks are acknowledged in order, once all the previous blocks are processed
+                            irohaBlocksAcknowledged = irohaBlocksAcknowledged.thenCombine(processed) { _, _ -> ack() }
                         }, { ex ->
                             logger.error("Withdrawal observable error", ex)
                             exitProcess(1)
@@ -204,14 +245,24 @@ class EthDepositInitialization(
 
         val builder = OkHttpClient().newBuilder()
         builder.authenticator(BasicAuthenticator(passwordsConfig))
+        val httpClient = builder.build()
 
         val web3jExecutorService = UnwrappingExceptionsScheduledThreadPoolExecutor(isHealthy)
 
+        // batches are routed over the same ranked nodes as the other reads
+        val batchClient = PooledWeb3jService.http(
+            ethDepositConfig.ethereum.url,
+            httpClient,
+            ethDepositConfig.ethereum.readHedgeDelayMs
+        )
+
         val web3 = Web3j.build(
-            HttpService(ethDepositConfig.ethereum.url, builder.build(), false),
+            batchClient,
             JsonRpc2_0Web3j.DEFAULT_BLOCK_TIME.toLong(),
             web3jExecutorService
         )
+        // stops the web3j scheduler and the request threads of the node pool
+        Runtime.getRuntime().addShutdownHook(Thread { web3.shutdown() })
 
         /** List of all observable wallets */
         val ethHandler = EthChainHandler(
@@ -220,21 +271,106 @@ class EthDepositInitialization(
             ethWalletProvider,
             ethTokensProvider,
             ethNotificationMqProducer,
-            masterContractAbi
+            masterContractAbi,
+            BatchReceiptFetcher(batchClient)
         )
-        return EthChainListener(
-            web3,
-            BigInteger.valueOf(ethDepositConfig.ethereum.confirmationPeriod),
-            ethDepositConfig.startEthereumBlock,
-            FileBasedLastReadBlockProvider(ethDepositConfig.lastEthereumReadBlockFilePath),
-            ethDepositConfig.ignoreStartBlock,
-            customHealthIndicator
-        ).getBlockObservable()
+        val lastReadBlockProvider = CheckpointLastReadBlockProvider(
+            ethDepositConfig.lastEthereumReadBlockCheckpointPath
+        ) {
+            if (File(ethDepositConfig.lastEthereumReadBlockFilePath).exists()) {
+                FileBasedLastReadBlockProvider(ethDepositConfig.lastEthereumReadBlockFilePath).getLastBlockHeight()
+            } else {
+                BigInteger.ZERO
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(Thread { lastReadBlockProvider.close() })
+        val confirmationPeriod = BigInteger.valueOf(ethDepositConfig.ethereum.confirmationPeriod)
+        // the last read block is saved once the parser has emitted the block events
+        val checkpoints = EthBlockCheckpoints(ethDepositConfig.blockParsingWindowSize)
+        val chainListener: ChainListener<EthBlock> = if (ethDepositConfig.ethereum.logsScanRangeSize > 0) {
+            EthLogsChainListener(
+                web3,
+                batchClient,
+                ethDepositConfig.ethMasterAddress,
+                ethTokensProvider,
+                confirmationPeriod,
+                ethDepositConfig.startEthereumBlock,
+                lastReadBlockProvider,
+                ethDepositConfig.ignoreStartBlock,
+                customHealthIndicator,
+                ethDepositConfig.ethereum.logsScanRangeSize,
+                checkpoints = checkpoints
+            )
+        } else {
+            val headsSource = when (EthHeadsTransport.of(ethDepositConfig.ethereum.headsTransport)) {
+                EthHeadsTransport.HTTP -> null
+                EthHeadsTransport.WS -> WebSocketHeadsSource(web3, ethDepositConfig.ethereum.wsUrl)
+            }
+            EthChainListener(
+                web3,
+                confirmationPeriod,
+                ethDepositConfig.startEthereumBlock,
+                lastReadBlockProvider,
+                ethDepositConfig.ignoreStartBlock,
+                customHealthIndicator,
+                ethDepositConfig.ethereum.catchUpWindowSize,
+                headsSource = headsSource,
+                blockScreen = if (ethDepositConfig.ethereum.logsBloomScreening) {
+                    LogsBloomBlockScreen(web3, ethDepositConfig.ethMasterAddress, ethTokensProvider)
+                } else {
+                    null
+                },
+                checkpoints = checkpoints
+            ).also { listener -> subscribeOnReorgs(listener) }
+        }
+        return chainListener.getBlockObservable()
             .map { observable ->
-                observable.flatMapIterable { ethHandler.parseBlock(it) }
+                ParallelBlockParser(
+                    ethHandler,
+                    ethDepositConfig.blockParsingWindowSize,
+                    createPrettyFixThreadPool(ETH_DEPOSIT_SERVICE_NAME, "block-parsing"),
+                    checkpoints::parsed
+                ).parse(observable)
             }
     }
 
+    /**
+     * Reports chain reorganisations detected by [chainListener].
+     * The listener has already rewound the last read block checkpoint when an event is emitted,
+     * so the events of the orphaned blocks that are still being parsed are never checkpointed.
+     */
+    private fun subscribeOnReorgs(chainListener: EthChainListener) {
+        val shallowReorgs = EthMetrics.counter(
+            EthMetrics.registry,
+            "eth.chain.reorgs",
+            "Number of Ethereum chain reorganisations",
+            "deep", "false"
+        )
+        val deepReorgs = EthMetrics.counter(
+            EthMetrics.registry,
+            "eth.chain.reorgs",
+            "Number of Ethereum chain reorganisations",
+            "deep", "true"
+        )
+        chainListener.getReorgObservable().subscribe { event ->
+            val orphanedHashes = event.orphanedBlocks.map { it.hash }
+            if (event.ancestorFound) {
+                shallowReorgs.increment()
+                logger.warn {
+                    "Ethereum blocks $orphanedHashes are orphaned by block ${event.detectedBy.hash}. " +
+                            "Deposits are read again from block ${event.forkBlockNumber}"
+                }
+            } else {
+                deepReorgs.increment()
+                logger.error {
+                    "Ethereum chain reorganisation is deeper than the header buffer, blocks $orphanedHashes " +
+                            "are orphaned by block ${event.detectedBy.hash}. " +
+                            "Deposits of the older blocks may belong to the abandoned branch"
+                }
+            }
+        }
+    }
+
     /**
      * Init Notary
      */
@@ -7,17 +7,17 @@ package jp.co.soramitsu.soranet.eth.bridge
 
 import com.d3.commons.expansion.ServiceExpansion
 import iroha.protocol.BlockOuterClass
-import jp.co.soramitsu.soranet.eth.config.EthereumConfig
-import jp.co.soramitsu.soranet.eth.config.EthereumPasswords
 import jp.co.soramitsu.soranet.eth.sidechain.util.DeployHelper
+import org.web3j.protocol.core.methods.response.TransactionReceipt
 import org.web3j.utils.Numeric
+import java.util.concurrent.CompletableFuture
 
 /**
  * Withdrawal service expansion strategy
+ * @param deployHelper - Ethereum client shared by the service
  */
 class EthereumBridgeEthExpansionStrategy(
-    private val ethereumConfig: EthereumConfig,
-    private val ethereumPasswords: EthereumPasswords,
+    private val deployHelper: DeployHelper,
     private val ethMasterAddress: String,
     private val expansionService: ServiceExpansion,
     private val proofCollector: ProofCollector
@@ -27,8 +27,11 @@ class EthereumBridgeEthExpansionStrategy(
      * - query proofs for expansion from all notaries
      * - send expansion transaction to Ethereum
      * @param block - iroha block
+     * @return receipts of the sent transactions, failed with [org.web3j.protocol.exceptions.TransactionException]
+     * if a transaction is not mined in time or fails
      */
-    fun filterAndExpand(block: BlockOuterClass.Block) {
+    fun filterAndExpand(block: BlockOuterClass.Block): CompletableFuture<Void> {
+        val receipts = ArrayList<CompletableFuture<TransactionReceipt>>()
         expansionService.expand(block) { expansionDetails, triggerTxHash, _ ->
             val ethereumPeerAddress = expansionDetails.additionalData["eth_address"]!!
             val addPeerProof = proofCollector.collectProofForAddPeer(
@@ -36,18 +39,22 @@ class EthereumBridgeEthExpansionStrategy(
                 triggerTxHash
             ).get()
 
-            val masterContract = DeployHelper(
-                ethereumConfig,
-                ethereumPasswords
-            ).loadMasterContract(ethMasterAddress)
+            val masterContract = deployHelper.getMasterContract(ethMasterAddress)
 
-            masterContract.addPeerByPeer(
-                ethereumPeerAddress,
-                Numeric.hexStringToByteArray(triggerTxHash),
-                addPeerProof.v,
-                addPeerProof.r,
-                addPeerProof.s
-            ).send()
+            // the receipt is polled together with other pending transactions,
+            // the block is acknowledged only once the peer is added
+            val receipt = deployHelper.sendAsync(
+                ethMasterAddress,
+                masterContract.addPeerByPeer(
+                    ethereumPeerAddress,
+                    Numeric.hexStringToByteArray(triggerTxHash),
+                    addPeerProof.v,
+                    addPeerProof.r,
+                    addPeerProof.s
+                )
+            )
+            receipts.add(receipt)
         }
+        return CompletableFuture.allOf(*receipts.toTypedArray())
     }
 }
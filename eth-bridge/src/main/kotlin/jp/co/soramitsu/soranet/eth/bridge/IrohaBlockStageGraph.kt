@@ -0,0 +1,173 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.bridge
+
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import iroha.protocol.BlockOuterClass
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
+import mu.KLogging
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Handler of Iroha blocks that is a part of [IrohaBlockStageGraph]
+ * @param name - unique stage name
+ * @param dependsOn - names of stages that must finish handling a block before this stage starts
+ * @param handler - block handler
+ */
+open class IrohaBlockStage(
+    val name: String,
+    val dependsOn: List<String> = emptyList(),
+    val handler: (BlockOuterClass.Block) -> Unit
+)
+
+/**
+ * Stage that starts work finishing after the stage itself, e.g. Ethereum transactions waiting for receipts.
+ * Dependent stages start once [deferredHandler] returns, the block is complete once the returned future completes.
+ * @param name - unique stage name
+ * @param dependsOn - names of stages that must finish handling a block before this stage starts
+ * @param deferredHandler - block handler that returns its pending work
+ */
+class DeferredIrohaBlockStage(
+    name: String,
+    dependsOn: List<String> = emptyList(),
+    val deferredHandler: (BlockOuterClass.Block) -> CompletableFuture<*>
+) : IrohaBlockStage(name, dependsOn, { block -> deferredHandler(block) })
+
+/**
+ * Statistics of stage execution
+ * @param count - number of handled blocks
+ * @param lastMillis - duration of the last block handling
+ * @param maxMillis - maximum duration of block handling
+ * @param totalMillis - total duration of block handling
+ */
+data class IrohaBlockStageTiming(
+    val count: Long = 0,
+    val lastMillis: Long = 0,
+    val maxMillis: Long = 0,
+    val totalMillis: Long = 0
+) {
+    fun add(millis: Long) = IrohaBlockStageTiming(count + 1, millis, maxOf(maxMillis, millis), totalMillis + millis)
+}
+
+/**
+ * Runs Iroha block handlers as a graph of stages.
+ * A stage starts as soon as all the stages it depends on have handled the block, independent stages run concurrently.
+ * [process] returns only when every stage has handled the block, so blocks are handled one after another.
+ * Work left pending by [DeferredIrohaBlockStage]s is returned as a future, so the block may be acknowledged later
+ * without holding the next blocks.
+ * @param stages - stages of the graph
+ * @param executorService - executor of the stages
+ * @param meterRegistry - registry of the stage timers
+ */
+class IrohaBlockStageGraph(
+    stages: List<IrohaBlockStage>,
+    private val executorService: ExecutorService,
+    meterRegistry: MeterRegistry = EthMetrics.registry
+) {
+    /** Stages in topological order */
+    private val orderedStages: List<IrohaBlockStage>
+
+    private val timings = ConcurrentHashMap<String, IrohaBlockStageTiming>()
+
+    private val timers: Map<String, Timer> = stages.associate { stage ->
+        stage.name to EthMetrics.timer(
+            meterRegistry,
+            "iroha.block.stage",
+            "Time of Iroha block handling by a stage",
+            "stage", stage.name
+        )
+    }
+
+    init {
+        val byName = stages.associateBy { it.name }
+        require(byName.size == stages.size) { "Stage names must be unique" }
+        stages.forEach { stage ->
+            stage.dependsOn.forEach { dependency ->
+                require(byName.containsKey(dependency)) { "Stage ${stage.name} depends on unknown stage $dependency" }
+            }
+        }
+        orderedStages = sort(stages, byName)
+        stages.forEach { timings[it.name] = IrohaBlockStageTiming() }
+    }
+
+    /**
+     * Handles [block] with all the stages
+     * @return pending work of deferred stages, completed if there is none
+     * @throws Exception thrown by a stage
+     */
+    fun process(block: BlockOuterClass.Block): CompletableFuture<Void> {
+        val futures = HashMap<String, CompletableFuture<Void>>()
+        val pending = ConcurrentLinkedQueue<CompletableFuture<*>>()
+        orderedStages.forEach { stage ->
+            val dependencies = stage.dependsOn.map { futures.getValue(it) }.toTypedArray()
+            futures[stage.name] = CompletableFuture.allOf(*dependencies)
+                .thenRunAsync(Runnable { runStage(stage, block)?.let { pending.add(it) } }, executorService)
+        }
+        try {
+            CompletableFuture.allOf(*futures.values.toTypedArray()).join()
+        } catch (e: CompletionException) {
+            throw e.cause as? Exception ?: e
+        }
+        return CompletableFuture.allOf(*pending.toTypedArray())
+    }
+
+    /**
+     * @return stage name -> execution statistics
+     */
+    fun getTimings(): Map<String, IrohaBlockStageTiming> = HashMap(timings)
+
+    /**
+     * @return pending work of a deferred stage or null
+     */
+    private fun runStage(stage: IrohaBlockStage, block: BlockOuterClass.Block): CompletableFuture<*>? {
+        val start = System.currentTimeMillis()
+        try {
+            return if (stage is DeferredIrohaBlockStage) {
+                stage.deferredHandler(block)
+            } else {
+                stage.handler(block)
+                null
+            }
+        } finally {
+            val duration = System.currentTimeMillis() - start
+            timings.compute(stage.name) { _, timing -> timing!!.add(duration) }
+            timers.getValue(stage.name).record(duration, TimeUnit.MILLISECONDS)
+            logger.debug { "Stage ${stage.name} handled block ${block.blockV1.payload.height} in $duration ms" }
+        }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+
+        /**
+         * Sorts stages so that every stage goes after its dependencies
+         * @throws IllegalArgumentException if dependencies have cycles
+         */
+        private fun sort(stages: List<IrohaBlockStage>, byName: Map<String, IrohaBlockStage>): List<IrohaBlockStage> {
+            val sorted = LinkedHashMap<String, IrohaBlockStage>()
+            val visiting = HashSet<String>()
+            fun visit(stage: IrohaBlockStage) {
+                if (sorted.containsKey(stage.name)) {
+                    return
+                }
+                require(visiting.add(stage.name)) { "Stage ${stage.name} has cyclic dependencies" }
+                stage.dependsOn.forEach { visit(byName.getValue(it)) }
+                visiting.remove(stage.name)
+                sorted[stage.name] = stage
+            }
+            stages.forEach { visit(it) }
+            return sorted.values.toList()
+        }
+    }
+}
@@ -8,13 +8,25 @@ package jp.co.soramitsu.soranet.eth.bridge
 import com.d3.commons.model.D3ErrorException
 import com.d3.commons.provider.NotaryPeerListProvider
 import com.github.kittinunf.result.Result
+import com.squareup.moshi.JsonAdapter
 import com.squareup.moshi.Moshi
+import io.micrometer.core.instrument.MeterRegistry
 import jp.co.soramitsu.soranet.eth.bridge.endpoint.EthNotaryResponse
 import jp.co.soramitsu.soranet.eth.bridge.endpoint.EthNotaryResponseMoshiAdapter
 import jp.co.soramitsu.soranet.eth.bridge.endpoint.IrohaTransactionHashType
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
+import jp.co.soramitsu.soranet.eth.sidechain.util.VRS
 import jp.co.soramitsu.soranet.eth.sidechain.util.extractVRS
 import mu.KLogging
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.IOException
 import java.math.BigInteger
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
 
 /**
  * Approval for adding of a new peer
@@ -24,15 +36,56 @@ data class AddPeerProof(
     val irohaHash: String,
     val r: ArrayList<ByteArray>,
     val s: ArrayList<ByteArray>,
-    val v: ArrayList<BigInteger>
+    val v: ArrayList<BigInteger>,
+    val responses: List<PeerProofResponse> = emptyList()
+)
+
+/**
+ * Answer of a notary peer that arrived before the proof was collected
+ * @param peer - peer url
+ * @param durationMs - request duration in milliseconds
+ * @param error - reason of failure or null if the peer returned a signature
+ */
+data class PeerProofResponse(
+    val peer: String,
+    val durationMs: Long,
+    val error: String? = null
 )
 
 /**
  * Collect proofs of notaries for ethereum contracts.
+ * All the peers are queried concurrently, collection stops as soon as the required number of signatures is reached.
+ * @param notaryPeerListProvider - provider of notary peers
+ * @param requestTimeoutMs - deadline of a single peer request in milliseconds
+ * @param httpClient - HTTP client shared by all the requests
+ * @param meterRegistry - registry of the collector metrics
  */
 class ProofCollector(
-    private val notaryPeerListProvider: NotaryPeerListProvider
+    private val notaryPeerListProvider: NotaryPeerListProvider,
+    private val requestTimeoutMs: Long = DEFAULT_REQUEST_TIMEOUT_MS,
+    httpClient: OkHttpClient = OkHttpClient(),
+    meterRegistry: MeterRegistry = EthMetrics.registry
 ) {
+    private val httpClient = httpClient.newBuilder()
+        .callTimeout(requestTimeoutMs, TimeUnit.MILLISECONDS)
+        .build()
+    private val collectTimer = EthMetrics.timer(
+        meterRegistry,
+        "eth.proof.collect",
+        "Time of collecting add peer signatures"
+    )
+    private val successfulRequestTimer = EthMetrics.timer(
+        meterRegistry,
+        PEER_REQUEST_METRIC,
+        "Time of a proof request to a notary peer",
+        "outcome", "success"
+    )
+    private val failedRequestTimer = EthMetrics.timer(
+        meterRegistry,
+        PEER_REQUEST_METRIC,
+        "Time of a proof request to a notary peer",
+        "outcome", "error"
+    )
 
     /**
      * Gather proof from notaries for add peer
@@ -43,45 +96,36 @@ class ProofCollector(
         peerEthereumAddress: String,
         irohaTxHash: IrohaTransactionHashType
     ): Result<AddPeerProof, Exception> {
+        val start = System.nanoTime()
         return Result.of {
+            val peers = notaryPeerListProvider.getPeerList()
+            val quorum = requiredSignatures(peers.size)
+            logger.info { "Query ${peers.size} peers for add peer proof, $quorum signatures required" }
+
+            val answers = LinkedBlockingQueue<PeerAnswer>()
+            val calls = peers.map { peer -> queryPeer(peer, "$peer/ethereum/proof/add_peer/$irohaTxHash", answers) }
+
             val vv = ArrayList<BigInteger>()
             val rr = ArrayList<ByteArray>()
             val ss = ArrayList<ByteArray>()
-
-            notaryPeerListProvider.getPeerList().forEach { peer ->
-                logger.info { "Query $peer for add peer proof" }
-
-                val res: khttp.responses.Response
-                try {
-                    res = khttp.get("$peer/ethereum/proof/add_peer/$irohaTxHash")
-                } catch (e: Exception) {
-                    logger.warn { "Exception was thrown while refund server request: server $peer" }
-                    logger.warn { e.localizedMessage }
-                    return@forEach
-                }
-                if (res.statusCode != 200) {
-                    logger.warn { "Error happened while refund server request: server $peer, error ${res.statusCode}" }
-                    return@forEach
-                }
-
-                val moshi = Moshi.Builder().add(EthNotaryResponseMoshiAdapter()).build()!!
-                val ethNotaryAdapter = moshi.adapter(EthNotaryResponse::class.java)!!
-
-                when (val response = ethNotaryAdapter.fromJson(res.jsonObject.toString())) {
-                    is EthNotaryResponse.Error -> {
-                        logger.warn { "EthNotaryResponse.Error: ${response.reason}" }
-                        return@forEach
-                    }
-
-                    is EthNotaryResponse.Successful -> {
-                        val signature = response.ethSignature
-                        val vrs = extractVRS(signature)
+            val responses = ArrayList<PeerProofResponse>()
+            try {
+                // every call has its own deadline, the extra second covers answer delivery
+                val deadline = System.currentTimeMillis() + requestTimeoutMs + 1_000
+                while (responses.size < peers.size && vv.size < quorum) {
+                    val answer = answers.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS) ?: break
+                    responses.add(answer.response)
+                    answer.vrs?.let { vrs ->
                         vv.add(vrs.v)
                         rr.add(vrs.r)
                         ss.add(vrs.s)
                     }
                 }
+            } finally {
+                // late answers are ignored
+                calls.forEach { it.cancel() }
             }
+            logger.info { "Add peer proof responses: $responses" }
 
             if (vv.size == 0) {
                 throw D3ErrorException.fatal(
@@ -89,19 +133,84 @@ class ProofCollector(
                     description = "Not a single valid response was received from any refund server"
                 )
             }
+            if (vv.size < quorum) {
+                logger.warn { "Only ${vv.size} of $quorum required add peer signatures were collected" }
+            }
 
             AddPeerProof(
                 peerEthereumAddress,
                 irohaTxHash,
                 rr,
                 ss,
-                vv
+                vv,
+                responses
             )
+        }.also { collectTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS) }
+    }
+
+    /**
+     * Sends proof request to [peer] and puts its answer to [answers]
+     */
+    private fun queryPeer(peer: String, url: String, answers: LinkedBlockingQueue<PeerAnswer>): Call {
+        val start = System.currentTimeMillis()
+        fun answer(vrs: VRS?, error: String?) {
+            val duration = System.currentTimeMillis() - start
+            (if (error == null) successfulRequestTimer else failedRequestTimer).record(duration, TimeUnit.MILLISECONDS)
+            answers.add(PeerAnswer(PeerProofResponse(peer, duration, error), vrs))
         }
+
+        val call = httpClient.newCall(Request.Builder().url(url).get().build())
+        call.enqueue(object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                if (!call.isCanceled()) {
+                    logger.warn { "Exception was thrown while refund server request: server $peer, ${e.message}" }
+                }
+                answer(null, e.message ?: e.javaClass.simpleName)
+            }
+
+            override fun onResponse(call: Call, response: Response) {
+                response.use {
+                    if (response.code != 200) {
+                        logger.warn {
+                            "Error happened while refund server request: server $peer, error ${response.code}"
+                        }
+                        answer(null, "HTTP ${response.code}")
+                        return
+                    }
+                    try {
+                        when (val notaryResponse = ethNotaryAdapter.fromJson(response.body!!.string())) {
+                            is EthNotaryResponse.Error -> {
+                                logger.warn { "EthNotaryResponse.Error: ${notaryResponse.reason}" }
+                                answer(null, notaryResponse.reason)
+                            }
+                            is EthNotaryResponse.Successful -> answer(extractVRS(notaryResponse.ethSignature), null)
+                            null -> answer(null, "Empty response")
+                        }
+                    } catch (e: Exception) {
+                        logger.warn("Cannot parse refund server response: server $peer", e)
+                        answer(null, e.message ?: e.javaClass.simpleName)
+                    }
+                }
+            }
+        })
+        return call
     }
 
+    private class PeerAnswer(val response: PeerProofResponse, val vrs: VRS?)
+
     /**
      * Logger
      */
-    companion object : KLogging()
+    companion object : KLogging() {
+        const val DEFAULT_REQUEST_TIMEOUT_MS = 10_000L
+        private const val PEER_REQUEST_METRIC = "eth.proof.peer.request"
+
+        private val ethNotaryAdapter: JsonAdapter<EthNotaryResponse> =
+            Moshi.Builder().add(EthNotaryResponseMoshiAdapter()).build().adapter(EthNotaryResponse::class.java)
+
+        /**
+         * Number of signatures the master contract requires for [peersCount] peers
+         */
+        fun requiredSignatures(peersCount: Int) = peersCount - (peersCount - 1) / 3
+    }
 }
@@ -9,8 +9,10 @@ import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
 import com.d3.commons.sidechain.iroha.util.ModelUtil
 import com.d3.commons.util.GsonInstance
 import com.d3.commons.util.irohaEscape
+import io.micrometer.core.instrument.MeterRegistry
 import iroha.protocol.BlockOuterClass
 import iroha.protocol.Commands
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
 import jp.co.soramitsu.soranet.eth.sidechain.util.*
 import mu.KLogging
 import org.web3j.crypto.Credentials
@@ -24,9 +26,22 @@ class ReferendumHashProofHandler(
     private val soraProofSetterAccountId: String,
     private val deployHelper: DeployHelper,
     private val irohaConsumer: IrohaConsumer,
-    private val credentials: Credentials
+    private val credentials: Credentials,
+    meterRegistry: MeterRegistry = EthMetrics.registry
 ) {
     private val gson = GsonInstance.get()
+    private val proofsCounter = EthMetrics.counter(
+        meterRegistry,
+        PROOFS_METRIC,
+        "Number of proofs written to Iroha",
+        "type", "referendum"
+    )
+    private val submitTimer = EthMetrics.timer(
+        meterRegistry,
+        IROHA_SUBMIT_METRIC,
+        "Time of sending a proof transaction to Iroha",
+        "handler", "referendum"
+    )
 
     init {
         logger.info { "Referendum: Initialization of ReferendumHashProofHandler soraProofAccountId=$soraProofSetterAccountId" }
@@ -46,7 +61,10 @@ class ReferendumHashProofHandler(
                         // write proof
                         val key = credentials.address
                         val proof = createProof(hash)
-                        ModelUtil.setAccountDetail(irohaConsumer, accountId, key, proof).get()
+                        submitTimer.recordCallable {
+                            ModelUtil.setAccountDetail(irohaConsumer, accountId, key, proof)
+                        }.get()
+                        proofsCounter.increment()
                     }
             }
     }
@@ -0,0 +1,91 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.bridge
+
+import io.micrometer.core.instrument.MeterRegistry
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
+import mu.KLogging
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs service startup as concurrent phases.
+ * A phase starts as soon as the phases it depends on are finished, so independent initializations,
+ * like credentials decryption, Iroha queries and RMQ connections, overlap.
+ * Duration of every phase is recorded, [logTimings] reports the breakdown once the service is ready.
+ * @param executorService - executor of the phases
+ * @param meterRegistry - registry of the phase timers
+ */
+class StartupPhases(
+    private val executorService: ExecutorService,
+    private val meterRegistry: MeterRegistry = EthMetrics.registry
+) {
+    private val start = System.currentTimeMillis()
+
+    /** Phase name -> duration in milliseconds */
+    private val timings = ConcurrentHashMap<String, Long>()
+
+    /**
+     * Starts a phase
+     * @param name - unique phase name
+     * @param dependencies - phases that must finish before this phase starts
+     * @param action - initialization, results of [dependencies] are available with [await]
+     * @return result of the phase
+     */
+    fun <T> run(name: String, vararg dependencies: CompletableFuture<*>, action: () -> T): CompletableFuture<T> =
+        CompletableFuture.allOf(*dependencies).thenApplyAsync({
+            val phaseStart = System.currentTimeMillis()
+            try {
+                action()
+            } finally {
+                val duration = System.currentTimeMillis() - phaseStart
+                timings[name] = duration
+                EthMetrics.timer(
+                    meterRegistry,
+                    "startup.phase",
+                    "Time of a service startup phase",
+                    "phase", name
+                ).record(duration, TimeUnit.MILLISECONDS)
+                logger.info { "Startup phase $name finished in $duration ms" }
+            }
+        }, executorService)
+
+    /**
+     * Waits for a phase
+     * @return result of the phase
+     * @throws Exception thrown by the phase or by a phase it depends on
+     */
+    fun <T> await(phase: CompletableFuture<T>): T =
+        try {
+            phase.join()
+        } catch (e: CompletionException) {
+            throw e.cause as? Exception ?: e
+        }
+
+    /**
+     * @return phase name -> duration in milliseconds of finished phases
+     */
+    fun getTimings(): Map<String, Long> = HashMap(timings)
+
+    /**
+     * Logs durations of the phases and the total time to ready
+     */
+    fun logTimings() {
+        val total = System.currentTimeMillis() - start
+        logger.info {
+            "Service is ready in $total ms, phases: " +
+                    timings.entries.sortedByDescending { it.value }.joinToString { (name, millis) -> "$name $millis ms" }
+        }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
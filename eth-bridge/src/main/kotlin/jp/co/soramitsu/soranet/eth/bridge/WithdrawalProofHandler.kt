@@ -7,26 +7,55 @@ package jp.co.soramitsu.soranet.eth.bridge
 
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
-import com.d3.commons.sidechain.iroha.util.ModelUtil
 import com.d3.commons.util.GsonInstance
+import com.d3.commons.util.createPrettyFixThreadPool
 import com.d3.commons.util.hex
 import com.d3.commons.util.irohaEscape
+import io.micrometer.core.instrument.MeterRegistry
 import iroha.protocol.BlockOuterClass
+import iroha.protocol.Commands
+import jp.co.soramitsu.iroha.java.Transaction
+import jp.co.soramitsu.iroha.java.TransactionBuilder
 import jp.co.soramitsu.iroha.java.Utils
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
 import jp.co.soramitsu.soranet.eth.provider.EthAddressProvider
 import jp.co.soramitsu.soranet.eth.provider.EthTokensProvider
 import jp.co.soramitsu.soranet.eth.sidechain.util.*
 import mu.KLogging
 import org.web3j.crypto.Credentials
 import org.web3j.crypto.WalletUtils
+import java.io.Closeable
 import java.math.BigDecimal
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
 
 const val ETH_WITHDRAWAL_PROOF_DOMAIN = "ethWithdrawalProof"
 const val WITHDRAWAL_ACCOUNT_PUBLIC_KEY =
     "0000000000000000000000000000000000000000000000000000000000000000"
 
+/** Name of the counter of proofs written to Iroha */
+const val PROOFS_METRIC = "eth.proofs"
+/** Name of the timer of proof transactions sending */
+const val IROHA_SUBMIT_METRIC = "iroha.tx.submit"
+
+/**
+ * Withdrawal transfer that requires a proof
+ * @param transfer - transfer to the withdrawal trigger account
+ * @param txHash - hash of the Iroha transaction with the transfer
+ */
+private data class WithdrawalRequest(
+    val transfer: Commands.TransferAsset,
+    val txHash: String
+) {
+    val proofAccountName = txHash.take(32).toLowerCase()
+    val proofAccountId = "$proofAccountName@$ETH_WITHDRAWAL_PROOF_DOMAIN"
+}
+
 /**
- * Class responsible for withdrawal approval for wallet accounts
+ * Class responsible for withdrawal approval for wallet accounts.
+ * Proofs of a block are signed in parallel and written to Iroha with a couple of batch transactions:
+ * one that creates missing proof accounts and one that stores the proofs.
  */
 class WithdrawalProofHandler(
     private val withdrawalTriggerAccountId: String,
@@ -35,91 +64,197 @@ class WithdrawalProofHandler(
     private val deployHelper: DeployHelper,
     private val queryHelper: IrohaQueryHelper,
     private val irohaConsumer: IrohaConsumer,
-    private val credentials: Credentials
-) {
+    private val credentials: Credentials,
+    private val executorService: ExecutorService = createPrettyFixThreadPool(
+        ETH_DEPOSIT_SERVICE_NAME,
+        "withdrawal-proof"
+    ),
+    meterRegistry: MeterRegistry = EthMetrics.registry
+) : Closeable {
     private val gson = GsonInstance.get()
+    private val proofsCounter = EthMetrics.counter(
+        meterRegistry,
+        PROOFS_METRIC,
+        "Number of proofs written to Iroha",
+        "type", "withdrawal"
+    )
+    private val submitTimer = EthMetrics.timer(
+        meterRegistry,
+        IROHA_SUBMIT_METRIC,
+        "Time of sending a proof transaction to Iroha",
+        "handler", "withdrawal"
+    )
 
     init {
         logger.info { "Wallet Withdrawal: Initialization of WithdrawalProofHandler withrdawalTriggerAccountId=$withdrawalTriggerAccountId" }
     }
 
     /**
-     * Filter expansion trigger event and call expansion logic
+     * Filter withdrawal events and write their proofs
      * @param block - iroha block
      */
     fun proceedBlock(block: BlockOuterClass.Block) {
-        block.blockV1.payload.transactionsList
+        val requests = getWithdrawalRequests(block)
+        if (requests.isEmpty()) {
+            return
+        }
+        logger.info { "Wallet Withdrawal: ${requests.size} withdrawals in block ${block.blockV1.payload.height}" }
+
+        // signing and registration queries don't depend on each other
+        val proofs = requests.map { request -> submit { request to createProof(request) } }
+        createAccounts(filterMissing(requests.map { it.proofAccountName }.distinct()))
+
+        // write proofs
+        val key = credentials.address
+        proofs.map { it.get() }
+            .chunked(MAX_COMMANDS_PER_TRANSACTION)
+            .forEach { chunk ->
+                val builder = Transaction.builder(irohaConsumer.creator)
+                chunk.forEach { (request, proof) -> builder.setAccountDetail(request.proofAccountId, key, proof) }
+                send(builder).get()
+                proofsCounter.increment(chunk.size.toDouble())
+                logger.info { "Wallet Withdrawal: ${chunk.size} proofs were written" }
+            }
+    }
+
+    /**
+     * Collects withdrawal transfers of registered wallets in eth tokens
+     */
+    private fun getWithdrawalRequests(block: BlockOuterClass.Block): List<WithdrawalRequest> {
+        val transfers = block.blockV1.payload.transactionsList
             // Get commands
-            .forEach { tx ->
+            .flatMap { tx ->
                 val txHash = String.hex(Utils.hash(tx))
                 tx.payload.reducedPayload.commandsList
                     .filter { command -> command.hasTransferAsset() }
-                    .map { command -> command.transferAsset }
-                    .filter { transfer -> transfer.destAccountId == withdrawalTriggerAccountId }
+                    .map { command -> WithdrawalRequest(command.transferAsset, txHash) }
+                    .filter { request -> request.transfer.destAccountId == withdrawalTriggerAccountId }
                     // check if description is valid Ethereum address
-                    .filter { transfer -> WalletUtils.isValidAddress(transfer.description) }
-                    .filter { transfer ->
-                        // check token is eth token
-                        tokensProvider.getEthTokens().get().containsValue(transfer.assetId)
-                    }
-                    .filter { transfer ->
-                        // check account is registered in Ethereum
-                        walletsProvider.getAddressByAccountId(transfer.srcAccountId).get().isPresent
-                    }
-                    .map { transfer ->
-                        logger.info { "Wallet Withdrawal: Withdrawal event from=${transfer.srcAccountId}, to=${transfer.destAccountId}, descr=${transfer.description}, asset=${transfer.assetId}, amount=${transfer.amount}" }
-
-                        // create account if not exists
-                        val proofAccountName = txHash.take(32).toLowerCase()
-                        val proofAccountId = "$proofAccountName@$ETH_WITHDRAWAL_PROOF_DOMAIN"
-                        createAccountIfNotExists(proofAccountName)
-
-                        // write proof
-                        val key = credentials.address
-                        val proof = createProof(
-                            transfer.srcAccountId,
-                            transfer.assetId,
-                            transfer.amount,
-                            transfer.description,
-                            txHash
-                        )
-                        ModelUtil.setAccountDetail(irohaConsumer, proofAccountId, key, proof).get()
-                    }
+                    .filter { request -> WalletUtils.isValidAddress(request.transfer.description) }
+            }
+        if (transfers.isEmpty()) {
+            return transfers
+        }
+        val ethTokens = tokensProvider.getTokensSnapshot()
+        return transfers
+            // check token is eth token
+            .filter { request -> ethTokens.contains(request.transfer.assetId) }
+            .filter { request ->
+                // check account is registered in Ethereum
+                walletsProvider.getAddressByAccountId(request.transfer.srcAccountId).get().isPresent
+            }
+            .onEach { request ->
+                val transfer = request.transfer
+                logger.info { "Wallet Withdrawal: Withdrawal event from=${transfer.srcAccountId}, to=${transfer.destAccountId}, descr=${transfer.description}, asset=${transfer.assetId}, amount=${transfer.amount}" }
             }
     }
 
-    private fun createAccountIfNotExists(proofAccountName: String) {
-        if (!queryHelper.isRegistered(
-                proofAccountName,
-                ETH_WITHDRAWAL_PROOF_DOMAIN,
-                WITHDRAWAL_ACCOUNT_PUBLIC_KEY
-            ).get()
-        ) {
-            ModelUtil.createAccount(
-                irohaConsumer,
-                proofAccountName,
+    private fun isRegistered(proofAccountName: String) = queryHelper.isRegistered(
+        proofAccountName,
+        ETH_WITHDRAWAL_PROOF_DOMAIN,
+        WITHDRAWAL_ACCOUNT_PUBLIC_KEY
+    ).get()
+
+    /**
+     * @return names of proof accounts that are not registered in Iroha
+     */
+    private fun filterMissing(accountNames: List<String>) =
+        accountNames.map { name -> submit { name to isRegistered(name) } }
+            .map { it.get() }
+            .filter { (_, registered) -> !registered }
+            .map { (name, _) -> name }
+
+    /**
+     * Creates proof accounts with batch transactions.
+     * Other notaries create the same accounts and a single existing account rejects the whole batch,
+     * so accounts that are still missing after a rejection are created one per transaction.
+     * @param accountNames - names of accounts to create
+     * @throws IllegalStateException if an account is neither created nor registered by another notary
+     */
+    private fun createAccounts(accountNames: List<String>) {
+        val rejected = accountNames.chunked(MAX_COMMANDS_PER_TRANSACTION)
+            .filter { chunk -> !sendCreateAccounts(chunk) }
+            .flatten()
+        if (rejected.isEmpty()) {
+            return
+        }
+        filterMissing(rejected)
+            .map { name -> submit { name to sendCreateAccounts(listOf(name)) } }
+            .map { it.get() }
+            .filter { (name, created) -> !created && !isRegistered(name) }
+            .forEach { (name, _) ->
+                throw IllegalStateException("Proof account $name@$ETH_WITHDRAWAL_PROOF_DOMAIN was not created")
+            }
+    }
+
+    /**
+     * Sends a transaction that creates proof accounts
+     * @param accountNames - names of accounts to create
+     * @return true if the transaction is committed
+     */
+    private fun sendCreateAccounts(accountNames: List<String>): Boolean {
+        val builder = Transaction.builder(irohaConsumer.creator)
+        accountNames.forEach { name ->
+            builder.createAccount(
+                name,
                 ETH_WITHDRAWAL_PROOF_DOMAIN,
-                Utils.parseHexPublicKey(WITHDRAWAL_ACCOUNT_PUBLIC_KEY),
-                emptyList()
-            ).fold(
-                { logger.info { "Wallet Withdrawal: create account \"$proofAccountName@$ETH_WITHDRAWAL_PROOF_DOMAIN\" for proofs" } },
-                { logger.info { "Wallet Withdrawal: account \"$proofAccountName@$ETH_WITHDRAWAL_PROOF_DOMAIN\" exists: ${it.message}" } }
+                Utils.parseHexPublicKey(WITHDRAWAL_ACCOUNT_PUBLIC_KEY)
             )
         }
+        return send(builder)
+            .fold(
+                {
+                    logger.info { "Wallet Withdrawal: create ${accountNames.size} accounts in \"$ETH_WITHDRAWAL_PROOF_DOMAIN\" for proofs" }
+                    true
+                },
+                {
+                    logger.info { "Wallet Withdrawal: proof accounts were not created: ${it.message}" }
+                    false
+                }
+            )
+    }
+
+    private fun send(builder: TransactionBuilder) = submitTimer.recordCallable {
+        irohaConsumer.send(builder.setQuorum(irohaConsumer.getConsumerQuorum().get()).build())
+    }
+
+    private fun createProof(request: WithdrawalRequest) = createProof(
+        request.transfer.srcAccountId,
+        request.transfer.assetId,
+        request.transfer.amount,
+        request.transfer.description,
+        request.txHash
+    )
+
+    private fun <T> submit(task: () -> T): Future<T> = executorService.submit(Callable { task() })
+
+    override fun close() {
+        executorService.shutdownNow()
     }
 
-    private fun createProof(
+    /**
+     * Creates withdrawal proof signed by the notary
+     * @param accountId - withdrawing client account id
+     * @param assetId - withdrawn asset id
+     * @param amount - withdrawn amount
+     * @param beneficiary - Ethereum address to withdraw to
+     * @param txHash - hash of the Iroha withdrawal transaction
+     * @return escaped JSON of the proof
+     */
+    fun createProof(
         accountId: String,
         assetId: String,
         amount: String,
         beneficiary: String,
         txHash: String
     ): String {
-        val ethTokenAddress = tokensProvider.getTokenAddress(assetId).get()
-        val tokenPrecision = tokensProvider.getTokenPrecision(assetId).get()
+        val token = tokensProvider.getTokensSnapshot().getToken(assetId)
+            ?: throw IllegalArgumentException("Token $assetId not found")
+        val ethTokenAddress = token.address
+        val tokenPrecision = token.precision ?: tokensProvider.getTokenPrecision(assetId).get()
         val decimalAmount = BigDecimal(amount).scaleByPowerOfTen(tokenPrecision).toPlainString()
         val hash =
-            if (tokensProvider.isIrohaAnchored(assetId).get())
+            if (token.isIrohaAnchored)
                 hashToMint(
                     ethTokenAddress,
                     decimalAmount,
@@ -153,5 +288,8 @@ class WithdrawalProofHandler(
     /**
      * Logger
      */
-    companion object : KLogging()
+    companion object : KLogging() {
+        /** Maximum number of commands in a proof transaction */
+        private const val MAX_COMMANDS_PER_TRANSACTION = 500
+    }
 }
@@ -12,6 +12,7 @@ import io.ktor.application.install
 import io.ktor.features.CORS
 import io.ktor.features.ContentNegotiation
 import io.ktor.gson.gson
+import io.ktor.http.ContentType
 import io.ktor.http.HttpStatusCode
 import io.ktor.response.respond
 import io.ktor.response.respondText
@@ -20,6 +21,8 @@ import io.ktor.routing.routing
 import io.ktor.server.engine.embeddedServer
 import io.ktor.server.netty.Netty
 import io.ktor.server.netty.NettyApplicationEngine
+import io.micrometer.prometheus.PrometheusMeterRegistry
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
 import mu.KLogging
 import java.io.Closeable
 import java.math.BigInteger
@@ -28,11 +31,14 @@ import java.util.concurrent.TimeUnit
 data class Response(val code: HttpStatusCode, val message: String)
 
 /**
- * Class is waiting for custodian's intention for rollback
+ * Class is waiting for custodian's intention for rollback.
+ * Also serves health status and Prometheus metrics.
+ * @param metricsRegistry - registry served at /metrics
  */
 class EthServerEndpoint(
     private val serverBundle: ServerInitializationBundle,
     private val addPeerStrategy: EthAddPeerStrategy,
+    private val metricsRegistry: PrometheusMeterRegistry = EthMetrics.registry,
     private val customHealthcheck: () -> Boolean = { true }
 ) : Closeable {
     private val moshi = Moshi
@@ -41,6 +47,7 @@ class EthServerEndpoint(
         .add(BigInteger::class.java, BigIntegerMoshiAdapter())
         .build()!!
     private val ethNotaryAdapter = moshi.adapter(EthNotaryResponse::class.java)!!
+    private val metricsContentType = ContentType.parse(EthMetrics.CONTENT_TYPE)
     private val server: NettyApplicationEngine
 
     init {
@@ -68,6 +75,9 @@ class EthServerEndpoint(
                         )
                     )
                 }
+                get("/metrics") {
+                    call.respondText(onCallMetrics(), metricsContentType)
+                }
             }
         }
         server.start(wait = false)
@@ -83,6 +93,11 @@ class EthServerEndpoint(
         } ?: onErrorPipelineCall()
     }
 
+    /**
+     * @return metrics in Prometheus text format
+     */
+    fun onCallMetrics(): String = metricsRegistry.scrape()
+
     /**
      * Transforms EthNotaryResponse to Response
      */
@@ -8,22 +8,30 @@
 package jp.co.soramitsu.soranet.eth.bridge
 
 import com.d3.chainadapter.client.RMQConfig
+import com.d3.chainadapter.client.ReliableIrohaChainListener
 import com.d3.commons.config.loadLocalConfigs
 import com.d3.commons.config.loadRawLocalConfigs
 import com.d3.commons.model.IrohaCredential
 import com.d3.commons.sidechain.iroha.consumer.MultiSigIrohaConsumer
 import com.d3.commons.sidechain.iroha.util.impl.IrohaQueryHelperImpl
+import com.d3.commons.util.createPrettyFixThreadPool
+import com.d3.commons.util.createPrettySingleThreadPool
 import com.github.kittinunf.result.*
 import jp.co.soramitsu.iroha.java.IrohaAPI
 import jp.co.soramitsu.iroha.java.Utils
 import jp.co.soramitsu.soranet.eth.config.EthereumPasswords
 import jp.co.soramitsu.soranet.eth.config.loadEthPasswords
+import jp.co.soramitsu.soranet.eth.mq.EthNotificationMqProducer
 import jp.co.soramitsu.soranet.eth.provider.ETH_WALLET
 import jp.co.soramitsu.soranet.eth.provider.EthAddressProviderIrohaImpl
+import jp.co.soramitsu.soranet.eth.provider.EthRegistryStorage
 import jp.co.soramitsu.soranet.eth.provider.EthTokensProviderImpl
 import jp.co.soramitsu.soranet.eth.registration.EthRegistrationConfig
 import jp.co.soramitsu.soranet.eth.registration.wallet.EthereumWalletRegistrationHandler
 import mu.KLogging
+import org.web3j.crypto.WalletUtils
+import org.web3j.utils.Files
+import java.io.File
 import kotlin.system.exitProcess
 
 private val logger = KLogging().logger
@@ -108,37 +116,114 @@ fun executeDeposit(
         irohaCredential.keyPair
     )
 
-    val ethWalletProvider = EthAddressProviderIrohaImpl(
-        queryHelper,
-        depositConfig.ethereumWalletStorageAccount,
-        depositConfig.ethereumWalletSetterAccount,
-        ETH_WALLET
-    )
+    val startupExecutorService = createPrettyFixThreadPool(ETH_DEPOSIT_SERVICE_NAME, "startup")
+    val startup = StartupPhases(startupExecutorService)
 
-    val ethTokensProvider = EthTokensProviderImpl(
-        queryHelper,
-        depositConfig.ethAnchoredTokenStorageAccount,
-        depositConfig.ethAnchoredTokenSetterAccount,
-        depositConfig.irohaAnchoredTokenStorageAccount,
-        depositConfig.irohaAnchoredTokenSetterAccount
-    )
+    // scrypt decryption takes seconds, the credentials are decrypted once and shared
+    val ethCredential = startup.run("credentials") {
+        WalletUtils.loadCredentials(
+            ethereumPasswords.credentialsPassword,
+            ethereumPasswords.credentialsPath
+        )
+    }
 
-    val registrationHandler =
-        EthereumWalletRegistrationHandler(
-            MultiSigIrohaConsumer(irohaCredential, irohaAPI),
-            registrationConfig.registrationCredential.accountId,
+    // registries are queried from Iroha only if there is no valid local snapshot
+    val registry = startup.run("registry-snapshot") {
+        EthRegistryStorage.load(depositConfig.registrySnapshotPath)
+    }
+
+    val ethWalletProvider = startup.run("wallets", registry) {
+        EthAddressProviderIrohaImpl(
+            queryHelper,
             depositConfig.ethereumWalletStorageAccount,
-            ethWalletProvider
+            depositConfig.ethereumWalletSetterAccount,
+            ETH_WALLET,
+            initialWallets = startup.await(registry)?.wallets
         )
+    }
 
-    return EthDepositInitialization(
-        irohaCredential,
-        irohaAPI,
-        depositConfig,
-        ethereumPasswords,
-        rmqConfig,
+    val ethTokensProvider = startup.run("tokens", registry) {
+        EthTokensProviderImpl(
+            queryHelper,
+            depositConfig.ethAnchoredTokenStorageAccount,
+            depositConfig.ethAnchoredTokenSetterAccount,
+            depositConfig.irohaAnchoredTokenStorageAccount,
+            depositConfig.irohaAnchoredTokenSetterAccount,
+            startup.await(registry)?.tokens
+        )
+    }
+
+    val irohaChainListener = startup.run("rmq-consumer") {
+        ReliableIrohaChainListener(
+            rmqConfig,
+            depositConfig.ethIrohaDepositQueue,
+            consumerExecutorService = createPrettySingleThreadPool(
+                ETH_DEPOSIT_SERVICE_NAME,
+                "rmq-consumer"
+            ),
+            // blocks are acknowledged once all the stages have handled them
+            autoAck = false
+        )
+    }
+
+    val ethNotificationMqProducer = startup.run("rmq-producer") {
+        EthNotificationMqProducer(
+            rmqConfig,
+            depositConfig.notificationsSpillFilePath
+        )
+    }
+
+    val masterContractAbi = startup.run("master-abi") {
+        Files.readString(File(depositConfig.masterContractAbiPath))
+    }
+
+    val initialization = startup.run(
+        "deposit",
+        ethCredential,
         ethWalletProvider,
         ethTokensProvider,
-        registrationHandler
-    ).init()
+        irohaChainListener,
+        ethNotificationMqProducer,
+        masterContractAbi
+    ) {
+        val registryStorage = EthRegistryStorage(
+            depositConfig.registrySnapshotPath,
+            startup.await(ethWalletProvider).walletIndex,
+            startup.await(ethTokensProvider),
+            startup.await(registry)
+        )
+
+        val registrationHandler =
+            EthereumWalletRegistrationHandler(
+                MultiSigIrohaConsumer(irohaCredential, irohaAPI),
+                registrationConfig.registrationCredential.accountId,
+                depositConfig.ethereumWalletStorageAccount,
+                startup.await(ethWalletProvider),
+                createPrettyFixThreadPool(ETH_DEPOSIT_SERVICE_NAME, "registration-proofs")
+            )
+
+        EthDepositInitialization(
+            irohaCredential,
+            irohaAPI,
+            depositConfig,
+            ethereumPasswords,
+            startup.await(ethCredential),
+            startup.await(irohaChainListener),
+            startup.await(ethNotificationMqProducer),
+            startup.await(masterContractAbi),
+            startup.await(ethWalletProvider),
+            startup.await(ethTokensProvider),
+            registrationHandler,
+            registryStorage
+        )
+    }
+
+    val ready = startup.run("listeners", initialization) {
+        startup.await(initialization).init().get()
+    }
+
+    return Result.of {
+        startup.await(ready)
+        startup.logTimings()
+    }.also { startupExecutorService.shutdown() }
 }
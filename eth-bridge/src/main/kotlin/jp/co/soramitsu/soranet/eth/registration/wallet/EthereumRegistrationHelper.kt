@@ -33,24 +33,44 @@ fun createRegistrationProof(ecKeyPair: ECKeyPair): EthereumRegistrationProof {
 
 /**
  * Check proof is actually signature of hash of address get from public key.
+ * The recovery id is taken from `v` of the signature, the other recovery ids are tried only if it doesn't match.
  * @param proof signature and public key
  * @return true if signature is correct, false otherwise
  */
 fun checkRegistrationProof(proof: EthereumRegistrationProof): Boolean {
     val address = Keys.getAddress(proof.publicKey)
+    val hash = Hash.sha3(prepareDataToSign(address))
+    val ecdsaSignature =
+        ECDSASignature(BigInteger(proof.signature.r, 16), BigInteger(proof.signature.s, 16))
 
+    val recId = recoveryId(proof.signature.v)
+    if (recId != null && Sign.recoverFromSignature(recId, ecdsaSignature, hash) == proof.publicKey) {
+        return true
+    }
     // Iterate recId [0..3] while the correct way not found
     // there are 4 potential outputs including null values, thus we should check output
     // comparing to expecting public key
-    val ecdsaSignature =
-        ECDSASignature(BigInteger(proof.signature.r, 16), BigInteger(proof.signature.s, 16))
     for (i in 0..3) {
+        if (i == recId) {
+            continue
+        }
         // null is a valid result, skip it
-        val res =
-            Sign.recoverFromSignature(i, ecdsaSignature, Hash.sha3(prepareDataToSign(address)))
-                ?: continue
-        if (Keys.getAddress(res) == address)
+        val res = Sign.recoverFromSignature(i, ecdsaSignature, hash) ?: continue
+        if (res == proof.publicKey)
             return true
     }
     return false
 }
+
+/**
+ * @param v - hex encoded `v` of a signature, either 27/28 or 0/1
+ * @return recovery id or null if [v] is malformed
+ */
+private fun recoveryId(v: String): Int? {
+    val value = v.removePrefix("0x").toIntOrNull(16) ?: return null
+    return when (value) {
+        0, 1 -> value
+        27, 28 -> value - 27
+        else -> null
+    }
+}
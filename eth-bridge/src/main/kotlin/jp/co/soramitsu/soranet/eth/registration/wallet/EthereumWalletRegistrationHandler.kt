@@ -15,17 +15,53 @@ import jp.co.soramitsu.iroha.java.Utils
 import jp.co.soramitsu.soranet.eth.provider.ETH_WALLET
 import jp.co.soramitsu.soranet.eth.provider.EthAddressProvider
 import mu.KLogging
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
 
 const val ETH_FAILED_REGISTRATION_KEY = "failed_registration"
 
 /**
- * Handles ethereum wallet registration events from Iroha blocks
+ * Wallet registration request found in an Iroha block
+ * @param clientId - account to register the wallet for
+ * @param txHash - hash of the Iroha transaction with the request
+ * @param time - time of the Iroha transaction
+ * @param triggerAccountId - account the request was set to
+ * @param proof - escaped JSON of [EthereumRegistrationProof]
+ */
+private data class RegistrationRequest(
+    val clientId: String,
+    val txHash: String,
+    val time: Long,
+    val triggerAccountId: String,
+    val proof: String
+)
+
+/**
+ * Result of a registration proof verification
+ * @param proof - parsed proof or null if the proof is malformed
+ * @param isValid - true if the proof signature is correct
+ * @param error - reason of failed parsing or verification
+ */
+private class ProofVerification(
+    val proof: EthereumRegistrationProof?,
+    val isValid: Boolean,
+    val error: Exception?
+)
+
+/**
+ * Handles ethereum wallet registration events from Iroha blocks.
+ * Proofs of a block may be verified in parallel, but wallets are registered one by one in the block order.
+ * @param verificationExecutorService - bounded pool to verify proofs of a block in parallel, proofs are verified
+ * in the calling thread if not set
+ * @param verifiedProofsCacheSize - maximum number of verification results kept to skip repeated proofs
  */
 class EthereumWalletRegistrationHandler(
     private val irohaConsumer: IrohaConsumer,
     private val registrationTriggerAccountId: String,
     walletStorageIrohaAccountId: String,
-    private val ethWalletProvider: EthAddressProvider
+    private val ethWalletProvider: EthAddressProvider,
+    private val verificationExecutorService: ExecutorService? = null,
+    verifiedProofsCacheSize: Int = DEFAULT_VERIFIED_PROOFS_CACHE_SIZE
 ) {
     init {
         logger.info { "Initialization of EthereumWalletRegistrationHandler with registrationTriggerAccountId=$registrationTriggerAccountId" }
@@ -39,11 +75,25 @@ class EthereumWalletRegistrationHandler(
         ETH_WALLET
     )
 
+    /** LRU cache of proof -> verification result */
+    private val verifiedProofs = object : LinkedHashMap<EthereumRegistrationProof, Boolean>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<EthereumRegistrationProof, Boolean>) =
+            size > verifiedProofsCacheSize
+    }
+
     fun filterAndRegister(block: BlockOuterClass.Block) {
-        block.blockV1.payload.transactionsList
+        val requests = getRegistrationRequests(block)
+        if (requests.isEmpty()) {
+            return
+        }
+        val verifications = verify(requests)
+        requests.zip(verifications).forEach { (request, verification) -> register(request, verification) }
+    }
+
+    private fun getRegistrationRequests(block: BlockOuterClass.Block): List<RegistrationRequest> {
+        return block.blockV1.payload.transactionsList
             // Get commands
             .flatMap { tx ->
-                val txHash = Utils.toHexHash(tx)
                 val clientId = tx.payload.reducedPayload.creatorAccountId
                 val time = tx.payload.reducedPayload.createdTime
                 tx.payload.reducedPayload.commandsList
@@ -55,42 +105,84 @@ class EthereumWalletRegistrationHandler(
                                 setAccountDetail.key == ETH_REGISTRATION_KEY
                     }
                     .map { setAccountDetail ->
-                        try {
-                            logger.info { "Check registration wallet proof for account $clientId" }
-                            val registrationProof = gson.fromJson(
-                                setAccountDetail.value.irohaUnEscape(),
-                                EthereumRegistrationProof::class.java
-                            )
-                            val ethAddress = "0x${registrationProof.getAddress()}"
-
-                            // check address is not used
-                            if (ethWalletProvider.getAddresses().get().containsKey(ethAddress))
-                                throw IllegalArgumentException("Address $ethAddress already registered as wallet")
-
-                            // ensure wallet is signed with correct private key
-                            if (checkRegistrationProof(registrationProof)) {
-                                registrator.register(
-                                    ethAddress,
-                                    clientId,
-                                    time
-                                ) { clientId }.get()
-                                ethWalletProvider.addNewAddress(ethAddress, clientId)
-                                logger.info { "Registration request with Ethereum wallet $ethAddress triggered for $clientId submitted" }
-                            } else {
-                                throw IllegalArgumentException("Registration triggered with wrong proof for ${setAccountDetail.accountId} with wallet $ethAddress")
-                            }
-                        } catch (ex: Exception) {
-                            logger.error(
-                                "Ethereum registration for client $clientId failed",
-                                ex
-                            )
-                            saveFailedRegistration(clientId, txHash, ex.message!!, time)
-                            logger.info("Saved the fail reason for client $clientId")
-                        }
+                        RegistrationRequest(
+                            clientId,
+                            Utils.toHexHash(tx),
+                            time,
+                            setAccountDetail.accountId,
+                            setAccountDetail.value
+                        )
                     }
             }
     }
 
+    /**
+     * Verifies proofs of [requests]
+     * @return verification results in [requests] order
+     */
+    private fun verify(requests: List<RegistrationRequest>): List<ProofVerification> {
+        val executorService = verificationExecutorService
+        if (executorService == null || requests.size == 1) {
+            return requests.map { verify(it) }
+        }
+        return requests.map { request -> executorService.submit(Callable { verify(request) }) }
+            .map { it.get() }
+    }
+
+    private fun verify(request: RegistrationRequest): ProofVerification {
+        logger.info { "Check registration wallet proof for account ${request.clientId}" }
+        val proof = try {
+            gson.fromJson(request.proof.irohaUnEscape(), EthereumRegistrationProof::class.java)
+        } catch (e: Exception) {
+            return ProofVerification(null, false, e)
+        }
+        return try {
+            ProofVerification(proof, isValid(proof), null)
+        } catch (e: Exception) {
+            ProofVerification(proof, false, e)
+        }
+    }
+
+    private fun isValid(proof: EthereumRegistrationProof): Boolean {
+        synchronized(verifiedProofs) { verifiedProofs[proof] }?.let { return it }
+        val isValid = checkRegistrationProof(proof)
+        synchronized(verifiedProofs) { verifiedProofs[proof] = isValid }
+        return isValid
+    }
+
+    private fun register(request: RegistrationRequest, verification: ProofVerification) {
+        val clientId = request.clientId
+        try {
+            val registrationProof = verification.proof ?: throw verification.error!!
+            val ethAddress = "0x${registrationProof.getAddress()}"
+
+            // check address is not used
+            if (ethWalletProvider.getAddresses().get().containsKey(ethAddress))
+                throw IllegalArgumentException("Address $ethAddress already registered as wallet")
+
+            verification.error?.let { throw it }
+            // ensure wallet is signed with correct private key
+            if (verification.isValid) {
+                registrator.register(
+                    ethAddress,
+                    clientId,
+                    request.time
+                ) { clientId }.get()
+                ethWalletProvider.addNewAddress(ethAddress, clientId)
+                logger.info { "Registration request with Ethereum wallet $ethAddress triggered for $clientId submitted" }
+            } else {
+                throw IllegalArgumentException("Registration triggered with wrong proof for ${request.triggerAccountId} with wallet $ethAddress")
+            }
+        } catch (ex: Exception) {
+            logger.error(
+                "Ethereum registration for client $clientId failed",
+                ex
+            )
+            saveFailedRegistration(clientId, request.txHash, ex.message!!, request.time)
+            logger.info("Saved the fail reason for client $clientId")
+        }
+    }
+
     private fun saveFailedRegistration(accountId: String, hash: String, reason: String, time: Long) {
         val tx = Transaction.builder(irohaConsumer.creator, time)
             .setAccountDetail(
@@ -106,5 +198,7 @@ class EthereumWalletRegistrationHandler(
     /**
      * Logger
      */
-    companion object : KLogging()
+    companion object : KLogging() {
+        const val DEFAULT_VERIFIED_PROOFS_CACHE_SIZE = 10_000
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.bridge
+
+import iroha.protocol.BlockOuterClass
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+
+class IrohaBlockStageGraphTest {
+
+    private val executorService = Executors.newFixedThreadPool(4)
+
+    private val block = BlockOuterClass.Block.newBuilder()
+        .setBlockV1(
+            BlockOuterClass.Block_v1.newBuilder()
+                .setPayload(BlockOuterClass.Block_v1.Payload.newBuilder().setHeight(1))
+        )
+        .build()
+
+    @AfterEach
+    fun tearDown() {
+        executorService.shutdownNow()
+    }
+
+    /**
+     * @given graph with two independent stages and a stage that depends on both
+     * @when a block is processed
+     * @then independent stages run concurrently and the dependent stage runs after them
+     */
+    @Test
+    fun dependenciesTest() {
+        val events = Collections.synchronizedList(ArrayList<String>())
+        val graph = IrohaBlockStageGraph(
+            listOf(
+                IrohaBlockStage("proofs", listOf("tokens", "wallets")) { events.add("proofs") },
+                IrohaBlockStage("tokens") {
+                    Thread.sleep(STAGE_DURATION_MS)
+                    events.add("tokens")
+                },
+                IrohaBlockStage("wallets") {
+                    Thread.sleep(STAGE_DURATION_MS)
+                    events.add("wallets")
+                }
+            ),
+            executorService
+        )
+
+        val start = System.currentTimeMillis()
+        graph.process(block)
+
+        assertTrue(System.currentTimeMillis() - start < 2 * STAGE_DURATION_MS)
+        assertEquals(setOf("tokens", "wallets"), events.take(2).toSet())
+        assertEquals("proofs", events[2])
+        val timings = graph.getTimings()
+        assertEquals(1, timings.getValue("tokens").count)
+        assertTrue(timings.getValue("tokens").lastMillis >= STAGE_DURATION_MS)
+    }
+
+    /**
+     * @given graph with a failing stage and an independent slow stage
+     * @when a block is processed
+     * @then the failure is thrown after all the stages are finished and dependent stages are skipped
+     */
+    @Test
+    fun failureTest() {
+        val events = Collections.synchronizedList(ArrayList<String>())
+        val graph = IrohaBlockStageGraph(
+            listOf(
+                IrohaBlockStage("tokens") { throw IllegalStateException("Iroha is down") },
+                IrohaBlockStage("proofs", listOf("tokens")) { events.add("proofs") },
+                IrohaBlockStage("expansion") {
+                    Thread.sleep(STAGE_DURATION_MS)
+                    events.add("expansion")
+                }
+            ),
+            executorService
+        )
+
+        val ex = assertThrows<IllegalStateException> { graph.process(block) }
+
+        assertEquals("Iroha is down", ex.message)
+        assertEquals(listOf("expansion"), events)
+    }
+
+    /**
+     * @given graph with a deferred stage and a stage that depends on it
+     * @when a block is processed
+     * @then processing returns before the deferred work is done and the returned future completes with the work
+     */
+    @Test
+    fun deferredTest() {
+        val events = Collections.synchronizedList(ArrayList<String>())
+        val receipt = CompletableFuture<String>()
+        val graph = IrohaBlockStageGraph(
+            listOf(
+                DeferredIrohaBlockStage("expansion") {
+                    events.add("expansion")
+                    receipt
+                },
+                IrohaBlockStage("proofs", listOf("expansion")) { events.add("proofs") }
+            ),
+            executorService
+        )
+
+        val pending = graph.process(block)
+
+        assertEquals(listOf("expansion", "proofs"), events)
+        assertFalse(pending.isDone)
+        receipt.complete("receipt")
+        assertTrue(pending.isDone)
+        assertEquals(1, graph.getTimings().getValue("expansion").count)
+    }
+
+    /**
+     * @given stages with cyclic dependencies
+     * @when graph is created
+     * @then IllegalArgumentException is thrown
+     */
+    @Test
+    fun cycleTest() {
+        assertThrows<IllegalArgumentException> {
+            IrohaBlockStageGraph(
+                listOf(
+                    IrohaBlockStage("a", listOf("b")) {},
+                    IrohaBlockStage("b", listOf("a")) {}
+                ),
+                executorService
+            )
+        }
+    }
+
+    companion object {
+        private const val STAGE_DURATION_MS = 300L
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.bridge
+
+import com.d3.commons.provider.NotaryPeerListProvider
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import com.squareup.moshi.Moshi
+import com.sun.net.httpserver.HttpServer
+import jp.co.soramitsu.soranet.eth.bridge.endpoint.EthNotaryResponse
+import jp.co.soramitsu.soranet.eth.bridge.endpoint.EthNotaryResponseMoshiAdapter
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.net.InetSocketAddress
+import java.util.concurrent.Executors
+
+class ProofCollectorTest {
+
+    private val adapter = Moshi.Builder().add(EthNotaryResponseMoshiAdapter()).build()
+        .adapter(EthNotaryResponse::class.java)
+
+    private val servers = ArrayList<HttpServer>()
+
+    @AfterEach
+    fun tearDown() {
+        servers.forEach { it.stop(0) }
+    }
+
+    /**
+     * @given 4 peers, one of them answers in 5 seconds
+     * @when add peer proof is collected
+     * @then the proof is returned as soon as 3 signatures required by the contract are collected
+     */
+    @Test
+    fun quorumTest() {
+        val peers = listOf(peer(0), peer(0), peer(0), peer(5_000))
+
+        val start = System.currentTimeMillis()
+        val proof = ProofCollector(peerListProvider(peers), 10_000)
+            .collectProofForAddPeer(ETH_ADDRESS, IROHA_HASH)
+            .get()
+
+        assertTrue(System.currentTimeMillis() - start < 2_000)
+        assertEquals(3, proof.v.size)
+        assertEquals(3, proof.r.size)
+        assertEquals(3, proof.s.size)
+        assertEquals(peers.take(3).toSet(), proof.responses.map { it.peer }.toSet())
+        assertTrue(proof.responses.all { it.error == null })
+    }
+
+    /**
+     * @given 4 peers, one of them is down and one answers with an error
+     * @when add peer proof is collected
+     * @then all the answers are reported and the collected signatures are returned
+     */
+    @Test
+    fun failedPeersTest() {
+        val errorPeer = peer(0, EthNotaryResponse.Error("Not an add peer transaction"))
+        val peers = listOf(peer(0), peer(0), errorPeer, "http://127.0.0.1:1")
+
+        val proof = ProofCollector(peerListProvider(peers), 1_000)
+            .collectProofForAddPeer(ETH_ADDRESS, IROHA_HASH)
+            .get()
+
+        assertEquals(2, proof.v.size)
+        assertEquals(4, proof.responses.size)
+        assertEquals(2, proof.responses.count { it.error != null })
+        assertEquals("Not an add peer transaction", proof.responses.single { it.peer == errorPeer }.error)
+    }
+
+    /**
+     * @given 2 peers that don't answer in time
+     * @when add peer proof is collected
+     * @then the collection fails after the request deadline
+     */
+    @Test
+    fun deadlineTest() {
+        val peers = listOf(peer(5_000), peer(5_000))
+
+        val start = System.currentTimeMillis()
+        val result = ProofCollector(peerListProvider(peers), 500)
+            .collectProofForAddPeer(ETH_ADDRESS, IROHA_HASH)
+
+        assertTrue(System.currentTimeMillis() - start < 3_000)
+        assertTrue(result is Result.Failure)
+    }
+
+    private fun peerListProvider(peers: List<String>) = mock<NotaryPeerListProvider> {
+        on { getPeerList() } doReturn peers
+    }
+
+    /**
+     * Starts a local notary that answers add peer proof requests
+     * @param delayMs - answer delay
+     * @param response - answer
+     * @return url of the notary
+     */
+    private fun peer(
+        delayMs: Long,
+        response: EthNotaryResponse = EthNotaryResponse.Successful("0x" + "11".repeat(64) + "1b")
+    ): String {
+        val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+        server.executor = Executors.newCachedThreadPool()
+        server.createContext("/ethereum/proof/add_peer/") { exchange ->
+            try {
+                Thread.sleep(delayMs)
+                val body = adapter.toJson(response).toByteArray()
+                exchange.sendResponseHeaders(200, body.size.toLong())
+                exchange.responseBody.use { it.write(body) }
+            } catch (e: Exception) {
+                exchange.close()
+            }
+        }
+        server.start()
+        servers.add(server)
+        return "http://127.0.0.1:${server.address.port}"
+    }
+
+    companion object {
+        private const val ETH_ADDRESS = "0x0000000000000000000000000000000000000001"
+        private const val IROHA_HASH = "hash"
+    }
+}
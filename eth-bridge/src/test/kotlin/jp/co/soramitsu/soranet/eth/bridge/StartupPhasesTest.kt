@@ -0,0 +1,85 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.bridge
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class StartupPhasesTest {
+
+    private val executorService = Executors.newFixedThreadPool(4)
+
+    private val meterRegistry = SimpleMeterRegistry()
+
+    private val startup = StartupPhases(executorService, meterRegistry)
+
+    @AfterEach
+    fun tearDown() {
+        executorService.shutdownNow()
+    }
+
+    /**
+     * @given two independent phases and a phase that depends on both
+     * @when the phases are run
+     * @then independent phases overlap, the dependent phase gets their results and all durations are recorded
+     */
+    @Test
+    fun dependenciesTest() {
+        val start = System.currentTimeMillis()
+        val credentials = startup.run("credentials") {
+            Thread.sleep(PHASE_DURATION_MS)
+            "credentials"
+        }
+        val wallets = startup.run("wallets") {
+            Thread.sleep(PHASE_DURATION_MS)
+            "wallets"
+        }
+        val deposit = startup.run("deposit", credentials, wallets) {
+            startup.await(credentials) + " and " + startup.await(wallets)
+        }
+
+        assertEquals("credentials and wallets", startup.await(deposit))
+        assertTrue(System.currentTimeMillis() - start < 2 * PHASE_DURATION_MS)
+        val timings = startup.getTimings()
+        assertEquals(setOf("credentials", "wallets", "deposit"), timings.keys)
+        assertTrue(timings.getValue("credentials") >= PHASE_DURATION_MS)
+        assertEquals(
+            1L,
+            meterRegistry.get("startup.phase").tag("phase", "wallets").timer().count()
+        )
+        startup.logTimings()
+    }
+
+    /**
+     * @given failing phase and a phase that depends on it
+     * @when the dependent phase is awaited
+     * @then the failure is thrown and the dependent phase is not run
+     */
+    @Test
+    fun failureTest() {
+        val dependentRun = AtomicBoolean()
+        val wallets = startup.run<String>("wallets") { throw IllegalStateException("Iroha is down") }
+        val deposit = startup.run("deposit", wallets) { dependentRun.set(true) }
+
+        assertThrows<IllegalStateException> { startup.await(deposit) }
+        executorService.shutdown()
+        executorService.awaitTermination(1, TimeUnit.SECONDS)
+        assertFalse(dependentRun.get())
+        assertEquals(setOf("wallets"), startup.getTimings().keys)
+    }
+
+    companion object {
+        private const val PHASE_DURATION_MS = 500L
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.bridge
+
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.argumentCaptor
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import iroha.protocol.BlockOuterClass
+import jp.co.soramitsu.iroha.java.Transaction
+import jp.co.soramitsu.soranet.eth.provider.EthAddressProvider
+import jp.co.soramitsu.soranet.eth.provider.EthTokensProvider
+import jp.co.soramitsu.soranet.eth.provider.EthTokensSnapshot
+import jp.co.soramitsu.soranet.eth.sidechain.util.DeployHelper
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.web3j.crypto.Credentials
+import java.util.*
+import java.util.concurrent.Executors
+
+class WithdrawalProofHandlerTest {
+
+    private val tokensProvider = mock<EthTokensProvider> {
+        on { getTokensSnapshot() } doReturn EthTokensSnapshot(
+            mapOf(TOKEN_ADDRESS to ASSET_ID),
+            emptyMap(),
+            mapOf(ASSET_ID to 18)
+        )
+    }
+
+    private val walletsProvider = mock<EthAddressProvider> {
+        on { getAddressByAccountId(any()) } doReturn Result.of { Optional.of(BENEFICIARY) }
+    }
+
+    private val deployHelper = mock<DeployHelper> {
+        on { signUserData(any()) } doReturn "0x" + "11".repeat(64) + "1b"
+    }
+
+    private val queryHelper = mock<IrohaQueryHelper> {
+        on { isRegistered(any(), any(), any()) } doReturn Result.of { false }
+    }
+
+    private val irohaConsumer = mock<IrohaConsumer> {
+        on { creator } doReturn WITHDRAWAL_ACCOUNT_ID
+        on { getConsumerQuorum() } doReturn Result.of { 1 }
+        on { send(any<Transaction>()) } doReturn Result.of { "hash" }
+    }
+
+    private val credentials = Credentials.create("0x" + "01".repeat(32))
+
+    private val executorService = Executors.newFixedThreadPool(4)
+
+    private val handler = WithdrawalProofHandler(
+        TRIGGER_ACCOUNT_ID,
+        tokensProvider,
+        walletsProvider,
+        deployHelper,
+        queryHelper,
+        irohaConsumer,
+        credentials,
+        executorService
+    )
+
+    @AfterEach
+    fun tearDown() {
+        handler.close()
+    }
+
+    /**
+     * @given Iroha block with 100 withdrawals
+     * @when the block is handled
+     * @then proof accounts are created with one transaction and proofs are written with another one
+     */
+    @Test
+    fun batchProofsTest() {
+        handler.proceedBlock(createBlock(WITHDRAWALS))
+
+        val captor = argumentCaptor<Transaction>()
+        verify(irohaConsumer, times(2)).send(captor.capture())
+        val createAccounts = captor.firstValue.build().payload.reducedPayload.commandsList
+        val setDetails = captor.secondValue.build().payload.reducedPayload.commandsList
+        assertEquals(WITHDRAWALS, createAccounts.count { it.hasCreateAccount() })
+        assertEquals(WITHDRAWALS, setDetails.count { it.hasSetAccountDetail() })
+        assertTrue(setDetails.all { it.setAccountDetail.key == credentials.address })
+        assertEquals(
+            createAccounts.map { "${it.createAccount.accountName}@$ETH_WITHDRAWAL_PROOF_DOMAIN" }.toSet(),
+            setDetails.map { it.setAccountDetail.accountId }.toSet()
+        )
+    }
+
+    /**
+     * @given Iroha block with withdrawals whose proof accounts exist
+     * @when the block is handled
+     * @then only the proofs transaction is sent
+     */
+    @Test
+    fun existingAccountsTest() {
+        val queryHelper = mock<IrohaQueryHelper> {
+            on { isRegistered(any(), any(), any()) } doReturn Result.of { true }
+        }
+        val handler = WithdrawalProofHandler(
+            TRIGGER_ACCOUNT_ID,
+            tokensProvider,
+            walletsProvider,
+            deployHelper,
+            queryHelper,
+            irohaConsumer,
+            credentials,
+            executorService
+        )
+
+        handler.proceedBlock(createBlock(10))
+
+        val captor = argumentCaptor<Transaction>()
+        verify(irohaConsumer, times(1)).send(captor.capture())
+        assertEquals(
+            10,
+            captor.firstValue.build().payload.reducedPayload.commandsList.count { it.hasSetAccountDetail() }
+        )
+    }
+
+    /**
+     * @given Iroha block with withdrawals and a proof account created by another notary meanwhile
+     * @when the block is handled and the batch of proof accounts is rejected
+     * @then the missing accounts are created one per transaction and the proofs are written
+     */
+    @Test
+    fun rejectedAccountsBatchTest() {
+        val irohaConsumer = mock<IrohaConsumer> {
+            on { creator } doReturn WITHDRAWAL_ACCOUNT_ID
+            on { getConsumerQuorum() } doReturn Result.of { 1 }
+            on { send(any<Transaction>()) } doAnswer { invocation ->
+                val commands = invocation.getArgument<Transaction>(0).build().payload.reducedPayload.commandsList
+                Result.of<String> {
+                    check(commands.count { it.hasCreateAccount() } <= 1) { "Account already exists" }
+                    "hash"
+                }
+            }
+        }
+        val handler = createHandler(irohaConsumer)
+
+        handler.proceedBlock(createBlock(10))
+
+        val captor = argumentCaptor<Transaction>()
+        verify(irohaConsumer, times(12)).send(captor.capture())
+        val commands = captor.allValues.map { it.build().payload.reducedPayload.commandsList }
+        assertEquals(10, commands.first().count { it.hasCreateAccount() })
+        assertTrue(commands.subList(1, 11).all { tx -> tx.single().hasCreateAccount() })
+        assertEquals(10, commands.last().count { it.hasSetAccountDetail() })
+    }
+
+    /**
+     * @given Iroha block with withdrawals and Iroha that rejects proof accounts creation
+     * @when the block is handled
+     * @then the handler fails and no proofs are written
+     */
+    @Test
+    fun accountsNotCreatedTest() {
+        val irohaConsumer = mock<IrohaConsumer> {
+            on { creator } doReturn WITHDRAWAL_ACCOUNT_ID
+            on { getConsumerQuorum() } doReturn Result.of { 1 }
+            on { send(any<Transaction>()) } doReturn Result.of<String> { throw IllegalStateException("Rejected") }
+        }
+        val handler = createHandler(irohaConsumer)
+
+        assertThrows<IllegalStateException> { handler.proceedBlock(createBlock(2)) }
+
+        val captor = argumentCaptor<Transaction>()
+        verify(irohaConsumer, times(3)).send(captor.capture())
+        assertTrue(captor.allValues.all { tx ->
+            tx.build().payload.reducedPayload.commandsList.all { it.hasCreateAccount() }
+        })
+    }
+
+    private fun createHandler(irohaConsumer: IrohaConsumer) = WithdrawalProofHandler(
+        TRIGGER_ACCOUNT_ID,
+        tokensProvider,
+        walletsProvider,
+        deployHelper,
+        queryHelper,
+        irohaConsumer,
+        credentials,
+        executorService
+    )
+
+    private fun createBlock(withdrawals: Int): BlockOuterClass.Block {
+        val payload = BlockOuterClass.Block_v1.Payload.newBuilder().setHeight(1)
+        (1..withdrawals).forEach { i ->
+            payload.addTransactions(
+                Transaction.builder("user$i@d3", 1_000_000L + i)
+                    .transferAsset("user$i@d3", TRIGGER_ACCOUNT_ID, ASSET_ID, BENEFICIARY, "1.5")
+                    .build()
+                    .build()
+            )
+        }
+        return BlockOuterClass.Block.newBuilder()
+            .setBlockV1(BlockOuterClass.Block_v1.newBuilder().setPayload(payload))
+            .build()
+    }
+
+    companion object {
+        private const val WITHDRAWALS = 100
+        private const val TRIGGER_ACCOUNT_ID = "notary@notary"
+        private const val WITHDRAWAL_ACCOUNT_ID = "withdrawal@notary"
+        private const val ASSET_ID = "token#ethereum"
+        private const val TOKEN_ADDRESS = "0x2222222222222222222222222222222222222222"
+        private const val BENEFICIARY = "0x1111111111111111111111111111111111111111"
+    }
+}
@@ -11,8 +11,12 @@ import com.nhaarman.mockitokotlin2.doReturn
 import com.nhaarman.mockitokotlin2.mock
 import com.squareup.moshi.Moshi
 import io.ktor.http.HttpStatusCode
+import io.micrometer.prometheus.PrometheusConfig
+import io.micrometer.prometheus.PrometheusMeterRegistry
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
 import org.junit.jupiter.api.AfterAll
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.TestInstance
 import java.math.BigInteger
@@ -44,8 +48,10 @@ class RefundServerEndpointTest {
         } doReturn successResponse
     }
 
+    private val metricsRegistry = PrometheusMeterRegistry(PrometheusConfig.DEFAULT)
+
     private val server =
-        EthServerEndpoint(serverBundle, ethAddPeerStrategyMock)
+        EthServerEndpoint(serverBundle, ethAddPeerStrategyMock, metricsRegistry)
 
     @AfterAll
     fun tearDown() {
@@ -84,4 +90,19 @@ class RefundServerEndpointTest {
         assertEquals(HttpStatusCode.BadRequest, answer.code)
         assertEquals(failureResponse.reason, answer.message)
     }
+
+    /**
+     * @given initialized server class and a timer recorded by a component
+     * @when  call onCallMetrics()
+     * @then  check that the timer histogram is returned in Prometheus format
+     */
+    @Test
+    fun metricsCallTest() {
+        EthMetrics.timer(metricsRegistry, "eth.test", "Test timer").record(Runnable { })
+
+        val metrics = server.onCallMetrics()
+
+        assertTrue(metrics.contains("eth_test_seconds_count 1.0"))
+        assertTrue(metrics.contains("eth_test_seconds_bucket{le="))
+    }
 }
@@ -86,4 +86,18 @@ class EthereumRegistrationHelperTest {
             )
         }
     }
+
+    /**
+     * @given proof with `v` that doesn't match the signature recovery id
+     * @when check signature
+     * @then check returns true
+     */
+    @Test
+    fun testWrongRecoveryId() {
+        val keypair = Keys.createEcKeyPair()
+        val proof = createRegistrationProof(keypair)
+        val wrongV = if (proof.signature.v == "1b") "1c" else "1b"
+
+        assertTrue { checkRegistrationProof(proof.copy(signature = proof.signature.copy(v = wrongV))) }
+    }
 }
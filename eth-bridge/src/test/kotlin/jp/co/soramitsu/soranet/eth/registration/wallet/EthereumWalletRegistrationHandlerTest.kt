@@ -0,0 +1,129 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.registration.wallet
+
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.d3.commons.util.irohaEscape
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import iroha.protocol.BlockOuterClass
+import jp.co.soramitsu.iroha.java.Transaction
+import jp.co.soramitsu.soranet.eth.provider.EthAddressProvider
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.web3j.crypto.ECKeyPair
+import org.web3j.crypto.Keys
+import java.util.*
+import java.util.concurrent.Executors
+
+class EthereumWalletRegistrationHandlerTest {
+
+    private val irohaConsumer = mock<IrohaConsumer> {
+        on { creator } doReturn REGISTRATION_ACCOUNT_ID
+        on { getConsumerQuorum() } doReturn Result.of { 1 }
+        on { send(any<Transaction>()) } doReturn Result.of { "hash" }
+    }
+
+    /** Wallets in order of registration */
+    private val wallets = LinkedHashMap<String, String>()
+
+    private val walletsProvider = object : EthAddressProvider {
+        override fun getAddresses(): Result<Map<String, String>, Exception> = Result.of { HashMap(wallets) }
+
+        override fun getAddressByAccountId(irohaAccountId: String): Result<Optional<String>, Exception> =
+            Result.of { Optional.ofNullable(wallets.entries.find { it.value == irohaAccountId }?.key) }
+
+        override fun addNewAddress(wallet: String, irohaAccountId: String) {
+            wallets[wallet] = irohaAccountId
+        }
+    }
+
+    private val executorService = Executors.newFixedThreadPool(4)
+
+    private val handler = EthereumWalletRegistrationHandler(
+        irohaConsumer,
+        TRIGGER_ACCOUNT_ID,
+        STORAGE_ACCOUNT_ID,
+        walletsProvider,
+        executorService
+    )
+
+    @AfterEach
+    fun tearDown() {
+        executorService.shutdownNow()
+    }
+
+    /**
+     * @given Iroha block with 20 registrations
+     * @when the block is handled with parallel verification
+     * @then wallets are registered in the block order
+     */
+    @Test
+    fun parallelVerificationOrderTest() {
+        val keyPairs = List(20) { Keys.createEcKeyPair() }
+
+        handler.filterAndRegister(createBlock(keyPairs.mapIndexed { i, keyPair -> "client$i@d3" to keyPair }))
+
+        assertEquals(
+            keyPairs.map { "0x" + Keys.getAddress(it.publicKey) },
+            wallets.keys.toList()
+        )
+        assertEquals(List(20) { "client$it@d3" }, wallets.values.toList())
+    }
+
+    /**
+     * @given Iroha block with two registrations of the same wallet and a malformed proof
+     * @when the block is handled with parallel verification
+     * @then only the first registration of the wallet succeeds
+     */
+    @Test
+    fun duplicateWalletTest() {
+        val keyPair = Keys.createEcKeyPair()
+        val payload = createBlock(listOf("first@d3" to keyPair, "second@d3" to keyPair)).blockV1.payload.toBuilder()
+        payload.addTransactions(
+            Transaction.builder("malformed@d3", System.currentTimeMillis())
+                .setAccountDetail(TRIGGER_ACCOUNT_ID, ETH_REGISTRATION_KEY, "not a proof".irohaEscape())
+                .build()
+                .build()
+        )
+
+        handler.filterAndRegister(
+            BlockOuterClass.Block.newBuilder()
+                .setBlockV1(BlockOuterClass.Block_v1.newBuilder().setPayload(payload))
+                .build()
+        )
+
+        assertEquals(mapOf("0x" + Keys.getAddress(keyPair.publicKey) to "first@d3"), wallets)
+    }
+
+    private fun createBlock(registrations: List<Pair<String, ECKeyPair>>): BlockOuterClass.Block {
+        val payload = BlockOuterClass.Block_v1.Payload.newBuilder().setHeight(1)
+        registrations.forEachIndexed { i, (clientId, keyPair) ->
+            payload.addTransactions(
+                Transaction.builder(clientId, 1_000_000L + i)
+                    .setAccountDetail(
+                        TRIGGER_ACCOUNT_ID,
+                        ETH_REGISTRATION_KEY,
+                        createRegistrationProof(keyPair).toJson().irohaEscape()
+                    )
+                    .build()
+                    .build()
+            )
+        }
+        return BlockOuterClass.Block.newBuilder()
+            .setBlockV1(BlockOuterClass.Block_v1.newBuilder().setPayload(payload))
+            .build()
+    }
+
+    companion object {
+        private const val TRIGGER_ACCOUNT_ID = "registration_trigger@notary"
+        private const val REGISTRATION_ACCOUNT_ID = "registration@notary"
+        private const val STORAGE_ACCOUNT_ID = "wallets@notary"
+    }
+}
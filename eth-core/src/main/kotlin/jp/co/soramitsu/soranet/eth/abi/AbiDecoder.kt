@@ -10,11 +10,20 @@ import jp.co.soramitsu.soranet.eth.abi.AbiGsonHelper.ETH_PREFIX
 import jp.co.soramitsu.soranet.eth.abi.AbiGsonHelper.customGson
 import org.ethereum.solidity.Abi
 import java.util.*
-import javax.xml.bind.DatatypeConverter
 
+/**
+ * Decoder of contract method calls.
+ * Methods are looked up by the 4-byte selector in a sorted int index, so dispatch neither allocates nor
+ * decodes the whole call data. Use [projection] to read only the needed static parameters.
+ */
 data class AbiDecoder(val methodIDs: HashMap<String, Abi.Entry> = HashMap()) {
     private val savedAbis = mutableListOf<Abi.Entry>()
 
+    /** Sorted selectors of known methods */
+    private var selectors = IntArray(0)
+    /** Methods in [selectors] order */
+    private var functions = emptyArray<Abi.Function>()
+
     data class DecodedMethod(
         val name: String,
         val params: List<Param>
@@ -46,6 +55,7 @@ data class AbiDecoder(val methodIDs: HashMap<String, Abi.Entry> = HashMap()) {
             }
             savedAbis.add(entry)
         }
+        rebuildSelectors()
     }
 
     fun removeAbi(json: String) {
@@ -60,15 +70,38 @@ data class AbiDecoder(val methodIDs: HashMap<String, Abi.Entry> = HashMap()) {
             }
             savedAbis.remove(entry)
         }
+        rebuildSelectors()
     }
 
+    private fun rebuildSelectors() {
+        val sorted = methodIDs.values
+            .filterIsInstance<Abi.Function>()
+            .sortedBy { selectorOf(it) }
+        selectors = sorted.map { selectorOf(it) }.toIntArray()
+        functions = sorted.toTypedArray()
+    }
+
+    /**
+     * @return known method called with [data] or null
+     */
+    private fun findFunction(data: String): Abi.Function? {
+        val start = dataStart(data)
+        if (data.length - start < SELECTOR_HEX_LENGTH) {
+            return null
+        }
+        val index = Arrays.binarySearch(selectors, parseHexInt(data, start))
+        return if (index >= 0) functions[index] else null
+    }
+
+    /**
+     * @return name of the method called with [data] or null if the method is unknown
+     */
+    fun getMethodName(data: String): String? = findFunction(data)?.name
+
     fun decodeMethod(data: String): DecodedMethod {
-        val noPrefix = data.removePrefix(ETH_PREFIX)
-        val bytes = DatatypeConverter.parseHexBinary(noPrefix.toUpperCase())
-        val methodBytes = bytes.sliceArray(0..3)
-        val entry = methodIDs[Utils.toHex(methodBytes)]
-        if (entry is Abi.Function) {
-            val decoded = entry.decode(bytes)
+        val entry = findFunction(data)
+        if (entry != null) {
+            val decoded = entry.decode(parseHex(data, dataStart(data)))
             val params = mutableListOf<Param>()
             for (i in decoded.indices) {
                 val name = entry.inputs[i].name
@@ -81,4 +114,110 @@ data class AbiDecoder(val methodIDs: HashMap<String, Abi.Entry> = HashMap()) {
         }
         throw IllegalStateException("Input data is not processable by the AbiDecoder instance. Add the corresponding Abi first");
     }
+
+    /**
+     * Precompiles a reader of static parameters of [methodNames].
+     * A method is projected only if it has all the [params], parameters are read from their fixed offsets
+     * in the call data head without decoding the rest of the call.
+     * @param methodNames - names of methods to project
+     * @param params - names and Solidity types of parameters to read, types must be static
+     * @return projection of the methods
+     */
+    fun projection(methodNames: Collection<String>, vararg params: Pair<String, String>): AbiProjection {
+        val projectedSelectors = ArrayList<Int>()
+        val projectedOffsets = ArrayList<IntArray>()
+        // functions are sorted by selector, so are the projected ones
+        functions.filter { methodNames.contains(it.name) }.forEach { function ->
+            val headOffsets = HashMap<String, Int>()
+            var offset = SELECTOR_HEX_LENGTH
+            function.inputs.forEach { input ->
+                if (!input.type.isDynamicType) {
+                    headOffsets[input.name + ":" + input.type] = offset
+                }
+                offset += input.type.fixedSize * 2
+            }
+            val paramOffsets = params.map { (name, type) -> headOffsets["$name:$type"] }
+            if (paramOffsets.all { it != null }) {
+                projectedSelectors.add(selectorOf(function))
+                projectedOffsets.add(paramOffsets.map { it!! }.toIntArray())
+            }
+        }
+        return AbiProjection(projectedSelectors.toIntArray(), projectedOffsets.toTypedArray(), params.map { it.first })
+    }
+
+    /**
+     * Reader of static parameters of several methods
+     * @param selectors - sorted selectors of projected methods
+     * @param offsets - hex offsets of parameter words after the `0x` prefix in [selectors] order
+     * @param paramNames - names of projected parameters
+     */
+    class AbiProjection internal constructor(
+        private val selectors: IntArray,
+        private val offsets: Array<IntArray>,
+        val paramNames: List<String>
+    ) {
+        /**
+         * @return 32-byte words of the parameters in [paramNames] order or null if [data] calls another method
+         * @throws IllegalArgumentException if [data] is too short
+         */
+        fun decode(data: String): List<ByteArray>? {
+            val start = dataStart(data)
+            if (data.length - start < SELECTOR_HEX_LENGTH) {
+                return null
+            }
+            val index = Arrays.binarySearch(selectors, parseHexInt(data, start))
+            if (index < 0) {
+                return null
+            }
+            return offsets[index].map { offset ->
+                require(data.length >= start + offset + WORD_HEX_LENGTH) { "Call data is too short" }
+                parseHex(data, start + offset, WORD_HEX_LENGTH)
+            }
+        }
+    }
+
+    companion object {
+        private const val SELECTOR_HEX_LENGTH = 8
+        private const val WORD_HEX_LENGTH = 64
+
+        private fun selectorOf(function: Abi.Function): Int {
+            val signature = function.encodeSignature()
+            return (signature[0].toInt() and 0xff shl 24) or
+                    (signature[1].toInt() and 0xff shl 16) or
+                    (signature[2].toInt() and 0xff shl 8) or
+                    (signature[3].toInt() and 0xff)
+        }
+
+        private fun dataStart(data: String) = if (data.startsWith(ETH_PREFIX)) ETH_PREFIX.length else 0
+
+        private fun hexDigit(data: String, index: Int): Int {
+            val digit = Character.digit(data[index], 16)
+            require(digit >= 0) { "Invalid hex character '${data[index]}' at $index" }
+            return digit
+        }
+
+        /**
+         * Parses 8 hex characters of [data] starting from [from]
+         */
+        private fun parseHexInt(data: String, from: Int): Int {
+            var result = 0
+            for (i in from until from + SELECTOR_HEX_LENGTH) {
+                result = result shl 4 or hexDigit(data, i)
+            }
+            return result
+        }
+
+        /**
+         * Parses [length] hex characters of [data] starting from [from], the rest of the string by default
+         */
+        private fun parseHex(data: String, from: Int, length: Int = data.length - from): ByteArray {
+            require(length % 2 == 0) { "Hex string has odd length" }
+            val bytes = ByteArray(length / 2)
+            for (i in bytes.indices) {
+                val index = from + i * 2
+                bytes[i] = (hexDigit(data, index) shl 4 or hexDigit(data, index + 1)).toByte()
+            }
+            return bytes
+        }
+    }
 }
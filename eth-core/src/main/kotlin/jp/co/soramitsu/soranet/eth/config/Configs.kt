@@ -22,10 +22,44 @@ const val ETH_NODE_PASSWORD_ENV = "ETH_NODE_PASSWORD"
  * Ethereum configurations
  */
 interface EthereumConfig {
+    /** Ethereum client url, several comma separated urls make a pool with latency based routing and failover */
     val url: String
     val gasPrice: Long
     val gasLimit: Long
     val confirmationPeriod: Long
+
+    /** Maximum number of blocks loaded concurrently while catching up with the chain */
+    val catchUpWindowSize: Int
+
+    /**
+     * Number of blocks scanned with one eth_getLogs request. 0 means that all blocks are loaded and scanned.
+     * Ether deposits are found by historical master balances, so the client must be an archive node,
+     * otherwise every block of a scanned range is loaded.
+     */
+    val logsScanRangeSize: Int
+
+    /** Transport of new chain heads: `http` for polling or `ws` for `newHeads` subscription */
+    val headsTransport: String
+
+    /** WebSocket url of Ethereum client, used if [headsTransport] is `ws` */
+    val wsUrl: String
+
+    /** Time to wait for a read before sending it to the next Ethereum client of the pool. 0 disables hedging */
+    val readHedgeDelayMs: Long
+
+    /** Load bodies only of blocks whose logs bloom or master balance show interesting transactions */
+    val logsBloomScreening: Boolean
+}
+
+/**
+ * Transports of new Ethereum chain heads
+ */
+enum class EthHeadsTransport {
+    HTTP, WS;
+
+    companion object {
+        fun of(name: String) = valueOf(name.toUpperCase())
+    }
 }
 
 /**
@@ -0,0 +1,67 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.metrics
+
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics
+import io.micrometer.core.instrument.binder.system.ProcessorMetrics
+import io.micrometer.prometheus.PrometheusConfig
+import io.micrometer.prometheus.PrometheusMeterRegistry
+import io.prometheus.client.exporter.common.TextFormat
+import java.time.Duration
+
+/**
+ * Metrics of the service exposed in Prometheus format.
+ * Timers publish histogram buckets, so recording a value is a couple of lock-free counter updates.
+ */
+object EthMetrics {
+
+    /** Content type of [PrometheusMeterRegistry.scrape] output */
+    const val CONTENT_TYPE: String = TextFormat.CONTENT_TYPE_004
+
+    /** Registry shared by all the components of the service */
+    val registry = PrometheusMeterRegistry(PrometheusConfig.DEFAULT)
+
+    init {
+        JvmMemoryMetrics().bindTo(registry)
+        JvmGcMetrics().bindTo(registry)
+        JvmThreadMetrics().bindTo(registry)
+        ProcessorMetrics().bindTo(registry)
+    }
+
+    /**
+     * Creates or gets a timer with histogram buckets from 1 ms to 1 minute
+     * @param registry - registry of the timer
+     * @param name - timer name
+     * @param description - timer description
+     * @param tags - tag keys and values
+     */
+    fun timer(registry: MeterRegistry, name: String, description: String, vararg tags: String): Timer =
+        Timer.builder(name)
+            .description(description)
+            .tags(*tags)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofMillis(1))
+            .maximumExpectedValue(Duration.ofMinutes(1))
+            .register(registry)
+
+    /**
+     * Creates or gets a counter
+     * @param registry - registry of the counter
+     * @param name - counter name
+     * @param description - counter description
+     * @param tags - tag keys and values
+     */
+    fun counter(registry: MeterRegistry, name: String, description: String, vararg tags: String): Counter =
+        Counter.builder(name)
+            .description(description)
+            .tags(*tags)
+            .register(registry)
+}
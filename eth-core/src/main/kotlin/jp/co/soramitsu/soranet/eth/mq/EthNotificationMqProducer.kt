@@ -13,38 +13,115 @@ import com.rabbitmq.client.Channel
 import com.rabbitmq.client.Connection
 import com.rabbitmq.client.ConnectionFactory
 import com.rabbitmq.client.MessageProperties
+import com.rabbitmq.client.ShutdownSignalException
 import com.rabbitmq.client.impl.DefaultExceptionHandler
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
 import mu.KLogging
-import kotlin.system.exitProcess
+import java.io.Closeable
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
 
-class EthNotificationMqProducer(rmqConfig: RMQConfig) {
+/**
+ * Non-blocking producer of notification events.
+ * Events are put into a bounded in-memory queue and published in batches by a dedicated thread
+ * on a channel in publisher confirm mode. Batches that are not confirmed are published again,
+ * the deduplication header prevents double delivery. Events that cannot be published because the broker
+ * is unreachable or the queue is full are appended to a local spill file and published once the broker is back.
+ * Only the publisher thread touches the spill file, events that overflow the queue are handed to it in memory.
+ * @param connect - opens the RMQ connection with the given consumer executor
+ * @param spillFilePath - path to the spill file
+ * @param capacity - maximum number of events kept in memory
+ * @param batchSize - maximum number of events published before waiting for confirms
+ * @param meterRegistry - registry of the producer metrics
+ */
+class EthNotificationMqProducer internal constructor(
+    connect: (ExecutorService) -> Connection,
+    spillFilePath: String,
+    capacity: Int,
+    private val batchSize: Int,
+    meterRegistry: MeterRegistry
+) : Closeable {
+
+    /**
+     * @param rmqConfig - RMQ configuration
+     * @param spillFilePath - path to the spill file
+     * @param capacity - maximum number of events kept in memory
+     * @param batchSize - maximum number of events published before waiting for confirms
+     * @param meterRegistry - registry of the producer metrics
+     */
+    constructor(
+        rmqConfig: RMQConfig,
+        spillFilePath: String,
+        capacity: Int = DEFAULT_CAPACITY,
+        batchSize: Int = DEFAULT_BATCH_SIZE,
+        meterRegistry: MeterRegistry = EthMetrics.registry
+    ) : this(
+        { executorService -> createConnection(rmqConfig, executorService) },
+        spillFilePath,
+        capacity,
+        batchSize,
+        meterRegistry
+    )
 
     private val subscriberExecutorService = createPrettySingleThreadPool(
         "eth-notifications", "events_queue"
     )
-    private val connectionFactory = ConnectionFactory()
+    private val publisherExecutorService = createPrettySingleThreadPool(
+        "eth-notifications", "events_publisher"
+    )
     private val connection: Connection
     private val channel: Channel
     private val gson = GsonInstance.get()
+    private val pendingEvents = ArrayBlockingQueue<PendingEvent>(capacity)
+    /** Events that didn't fit into [pendingEvents], guarded by itself, spilled by the publisher thread */
+    private val overflowEvents = ArrayDeque<PendingEvent>()
+    private val spillFile = EventsSpillFile(spillFilePath)
+    private val lastConfirmLatency = AtomicLong()
+    private val maxConfirmLatency = AtomicLong()
+    private val confirmTimer = EthMetrics.timer(
+        meterRegistry,
+        "eth.notifications.confirm",
+        "Time between publication of a batch of notification events and its confirmation"
+    )
+    @Volatile
+    private var running = true
 
-    init {
-        connectionFactory.host = rmqConfig.host
-        connectionFactory.port = rmqConfig.port
-        connectionFactory.exceptionHandler = object : DefaultExceptionHandler() {
-            override fun handleConnectionRecoveryException(conn: Connection, exception: Throwable) {
-                logger.error("RMQ connection error", exception)
-                exitProcess(1)
-            }
+    /** Number of events waiting in memory to be published */
+    val queueDepth: Int
+        get() = pendingEvents.size
 
-            override fun handleUnexpectedConnectionDriverException(
-                conn: Connection,
-                exception: Throwable
-            ) {
-                logger.error("RMQ connection error", exception)
-                exitProcess(1)
-            }
-        }
-        connection = connectionFactory.newConnection(subscriberExecutorService)
+    /** Number of events that overflowed the queue and wait to be spilled */
+    val overflowDepth: Int
+        get() = synchronized(overflowEvents) { overflowEvents.size }
+
+    /** Number of events waiting in the spill file to be published */
+    val spilledEvents: Int
+        get() = spillFile.size
+
+    /** Time between the publication of the last confirmed batch and its confirmation in milliseconds */
+    val lastConfirmLatencyMillis: Long
+        get() = lastConfirmLatency.get()
+
+    /** Maximum confirmation latency observed in milliseconds */
+    val maxConfirmLatencyMillis: Long
+        get() = maxConfirmLatency.get()
+
+    init {
+        require(batchSize > 0) { "Batch size must be positive, got $batchSize" }
+        Gauge.builder("eth.notifications.queue.depth", this) { it.queueDepth.toDouble() }
+            .description("Number of notification events waiting in memory to be published")
+            .register(meterRegistry)
+        Gauge.builder("eth.notifications.spilled", this) { it.spilledEvents.toDouble() }
+            .description("Number of notification events waiting in the spill file to be published")
+            .register(meterRegistry)
+        connection = connect(subscriberExecutorService)
         channel = connection.createChannel()
         channel.basicQos(16)
         val arguments = hashMapOf(
@@ -56,29 +133,172 @@ class EthNotificationMqProducer(rmqConfig: RMQConfig) {
             Pair("x-cache-ttl", 60_000 * 60 * 24)
         )
         channel.queueDeclare(EVENTS_QUEUE_NAME, true, false, false, arguments)
+        channel.confirmSelect()
+        if (spillFile.size > 0) {
+            logger.info("${spillFile.size} spilled events will be published")
+        }
+        publisherExecutorService.execute { runPublisher() }
     }
 
     /**
-     * Puts event into RabbitMQ for notification service processing
+     * Puts event into RabbitMQ for notification service processing.
+     * The call doesn't wait for the broker, the event is published asynchronously.
      * @param event - event to put
      */
     fun enqueue(event: BasicEvent) {
-        val messageProperties = MessageProperties.MINIMAL_PERSISTENT_BASIC.builder()
-            .headers(
-                mapOf(
-                    Pair(EVENT_TYPE_HEADER, event.javaClass.canonicalName),
-                    Pair(NOTIFICATION_SERVICE_ID_HEADER, NOTIFICATION_SERVICE_NAME),
-                    Pair(DEDUPLICATION_HEADER, event.id + "_" + NOTIFICATION_SERVICE_NAME)
-                )
-            ).build()
-        val json = gson.toJson(event)
-        channel.basicPublish(
-            NOTIFICATION_EXCHANGE_NAME,
-            EVENTS_QUEUE_NAME,
-            messageProperties,
-            json.toByteArray()
+        val pendingEvent = PendingEvent(
+            event.javaClass.canonicalName,
+            event.id + "_" + NOTIFICATION_SERVICE_NAME,
+            gson.toJson(event)
         )
-        logger.info("Event $event has been successfully published to queue $EVENTS_QUEUE_NAME.")
+        val enqueued = synchronized(overflowEvents) {
+            // once an event has overflowed, the next ones follow it until the publisher spills them
+            if (overflowEvents.isEmpty() && pendingEvents.offer(pendingEvent)) {
+                true
+            } else {
+                overflowEvents.add(pendingEvent)
+                false
+            }
+        }
+        if (enqueued) {
+            logger.info("Event $event has been enqueued for publishing to queue $EVENTS_QUEUE_NAME.")
+        } else {
+            logger.warn("Events queue is full. Event $event is spilled.")
+        }
+    }
+
+    private fun runPublisher() {
+        while (running || pendingEvents.isNotEmpty()) {
+            try {
+                if (overflowDepth > 0) {
+                    spillPendingEvents()
+                }
+                if (spillFile.size > 0 && !publishSpilledEvents()) {
+                    // keep the order: events enqueued while the broker is unreachable go after the spilled ones
+                    spillPendingEvents()
+                    Thread.sleep(RETRY_INTERVAL_MS)
+                    continue
+                }
+                val first = pendingEvents.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS) ?: continue
+                val batch = ArrayList<PendingEvent>(batchSize)
+                batch.add(first)
+                pendingEvents.drainTo(batch, batchSize - 1)
+                if (!publishWithRetries(batch)) {
+                    logger.warn("Cannot publish ${batch.size} events. Events are spilled.")
+                    spillFile.append(batch)
+                }
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                return
+            } catch (e: Exception) {
+                logger.error("Events publisher error", e)
+            }
+        }
+    }
+
+    /**
+     * Publishes events from the spill file and clears it
+     * @return true if all the spilled events have been confirmed
+     */
+    private fun publishSpilledEvents(): Boolean {
+        val spilled = spillFile.read()
+        val published = spilled.chunked(batchSize).all { publishWithRetries(it) }
+        if (published) {
+            spillFile.clear()
+            logger.info("${spilled.size} spilled events have been published")
+        }
+        return published
+    }
+
+    /**
+     * Moves the queued and the overflowed events to the end of the spill file in order they were enqueued
+     */
+    private fun spillPendingEvents() {
+        val events = synchronized(overflowEvents) {
+            val events = ArrayList<PendingEvent>(pendingEvents.size + overflowEvents.size)
+            pendingEvents.drainTo(events)
+            events.addAll(overflowEvents)
+            overflowEvents.clear()
+            events
+        }
+        spillFile.append(events)
+    }
+
+    /**
+     * Publishes [batch] until it is confirmed
+     * @return true if the batch has been confirmed, false if the broker is unreachable or rejects the batch
+     */
+    private fun publishWithRetries(batch: List<PendingEvent>): Boolean {
+        for (attempt in 1..MAX_PUBLISH_ATTEMPTS) {
+            try {
+                if (publish(batch)) {
+                    return true
+                }
+                logger.warn("Batch of ${batch.size} events has not been confirmed. Attempt $attempt.")
+            } catch (e: IOException) {
+                logger.warn("Cannot publish events", e)
+                return false
+            } catch (e: ShutdownSignalException) {
+                logger.warn("Cannot publish events", e)
+                return false
+            }
+        }
+        return false
+    }
+
+    /**
+     * Publishes [batch] and waits for confirms
+     * @return true if all the events have been acked by the broker
+     */
+    private fun publish(batch: List<PendingEvent>): Boolean {
+        val publishTime = System.currentTimeMillis()
+        batch.forEach { event ->
+            val messageProperties = MessageProperties.MINIMAL_PERSISTENT_BASIC.builder()
+                .headers(
+                    mapOf(
+                        Pair(EVENT_TYPE_HEADER, event.type),
+                        Pair(NOTIFICATION_SERVICE_ID_HEADER, NOTIFICATION_SERVICE_NAME),
+                        Pair(DEDUPLICATION_HEADER, event.deduplicationId)
+                    )
+                ).build()
+            channel.basicPublish(
+                NOTIFICATION_EXCHANGE_NAME,
+                EVENTS_QUEUE_NAME,
+                messageProperties,
+                event.body.toByteArray()
+            )
+        }
+        val confirmed = try {
+            channel.waitForConfirms(CONFIRM_TIMEOUT_MS)
+        } catch (e: TimeoutException) {
+            false
+        }
+        if (confirmed) {
+            val latency = System.currentTimeMillis() - publishTime
+            lastConfirmLatency.set(latency)
+            maxConfirmLatency.accumulateAndGet(latency) { a, b -> maxOf(a, b) }
+            confirmTimer.record(latency, TimeUnit.MILLISECONDS)
+            logger.info("${batch.size} events have been published to queue $EVENTS_QUEUE_NAME in $latency ms.")
+        }
+        return confirmed
+    }
+
+    /**
+     * Publishes the remaining events, spills what cannot be published and closes the connection
+     */
+    override fun close() {
+        running = false
+        publisherExecutorService.shutdown()
+        if (!publisherExecutorService.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            publisherExecutorService.shutdownNow()
+            // the spill file must not be written by two threads
+            publisherExecutorService.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        }
+        spillPendingEvents()
+        if (connection.isOpen) {
+            connection.close()
+        }
+        subscriberExecutorService.shutdownNow()
     }
 
     companion object : KLogging() {
@@ -88,5 +308,38 @@ class EthNotificationMqProducer(rmqConfig: RMQConfig) {
         const val DEDUPLICATION_HEADER = "x-deduplication-header"
         const val NOTIFICATION_SERVICE_NAME = "com.d3.notifications.service.SoraNotificationService"
         const val NOTIFICATION_EXCHANGE_NAME = ""
+
+        const val DEFAULT_CAPACITY = 10_000
+        const val DEFAULT_BATCH_SIZE = 100
+        private const val MAX_PUBLISH_ATTEMPTS = 3
+        private const val CONFIRM_TIMEOUT_MS = 5_000L
+        private const val POLL_TIMEOUT_MS = 1_000L
+        private const val RETRY_INTERVAL_MS = 5_000L
+        private const val CLOSE_TIMEOUT_MS = 10_000L
+
+        private fun createConnection(rmqConfig: RMQConfig, executorService: ExecutorService): Connection {
+            val connectionFactory = ConnectionFactory()
+            connectionFactory.host = rmqConfig.host
+            connectionFactory.port = rmqConfig.port
+            connectionFactory.exceptionHandler = object : DefaultExceptionHandler() {
+                override fun handleConnectionRecoveryException(conn: Connection, exception: Throwable) {
+                    logger.error(
+                        "RMQ connection error, events are spilled until the connection is recovered",
+                        exception
+                    )
+                }
+
+                override fun handleUnexpectedConnectionDriverException(
+                    conn: Connection,
+                    exception: Throwable
+                ) {
+                    logger.error(
+                        "RMQ connection error, events are spilled until the connection is recovered",
+                        exception
+                    )
+                }
+            }
+            return connectionFactory.newConnection(executorService)
+        }
     }
 }
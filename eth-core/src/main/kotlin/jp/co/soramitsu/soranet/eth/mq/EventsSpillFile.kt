@@ -0,0 +1,85 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.mq
+
+import com.google.gson.Gson
+import java.io.File
+import java.io.FileOutputStream
+
+/**
+ * Serialized notification event waiting to be published
+ * @param type - canonical name of the event class
+ * @param deduplicationId - RMQ deduplication header value
+ * @param body - JSON representation of the event
+ */
+data class PendingEvent(
+    val type: String,
+    val deduplicationId: String,
+    val body: String
+)
+
+/**
+ * Append-only file of events that could not be published to RMQ. One JSON line per event.
+ * @param path - path to the file
+ */
+class EventsSpillFile(path: String) {
+    private val file = File(path)
+    private val gson = Gson()
+
+    /** Number of events in the file */
+    @Volatile
+    var size: Int = 0
+        private set
+
+    init {
+        file.absoluteFile.parentFile?.mkdirs()
+        size = if (file.exists()) readEvents().size else 0
+    }
+
+    /**
+     * Appends [events] to the end of the file and syncs it to the disk
+     */
+    @Synchronized
+    fun append(events: List<PendingEvent>) {
+        if (events.isEmpty()) {
+            return
+        }
+        FileOutputStream(file, true).use { stream ->
+            val writer = stream.bufferedWriter()
+            events.forEach { event ->
+                writer.write(gson.toJson(event))
+                writer.newLine()
+            }
+            writer.flush()
+            stream.fd.sync()
+        }
+        size += events.size
+    }
+
+    /**
+     * @return all the events in order they were appended
+     */
+    @Synchronized
+    fun read(): List<PendingEvent> = readEvents()
+
+    /**
+     * Removes all the events from the file
+     */
+    @Synchronized
+    fun clear() {
+        FileOutputStream(file, false).use { stream -> stream.fd.sync() }
+        size = 0
+    }
+
+    private fun readEvents(): List<PendingEvent> {
+        if (!file.exists()) {
+            return emptyList()
+        }
+        return file.readLines()
+            .filter { it.isNotBlank() }
+            .map { gson.fromJson(it, PendingEvent::class.java) }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.provider
+
+import com.d3.commons.sidechain.provider.LastReadBlockProvider
+import com.d3.commons.util.createPrettyScheduledThreadPool
+import mu.KLogging
+import org.web3j.utils.Numeric
+import java.io.Closeable
+import java.io.File
+import java.math.BigInteger
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+
+/** [LastReadBlockProvider] that also keeps the hash of the last processed block */
+interface LastReadBlockHashProvider : LastReadBlockProvider {
+
+    /**
+     * @return hash of the block preceding the last read height or null if unknown
+     */
+    fun getLastBlockHash(): String?
+
+    /**
+     * Saves height to read from and the hash of the block preceding it
+     * @param height - height of the next block to read
+     * @param hash - hash of block height - 1
+     */
+    fun saveLastBlock(height: BigInteger, hash: String)
+}
+
+/**
+ * Checkpoint store of the last read block built on a memory-mapped file with two alternating slots.
+ * Every commit goes to the slot that doesn't hold the latest checkpoint, so a torn write never damages it.
+ * Slots are protected with CRC32, the valid slot with the greatest sequence number wins on load.
+ * Heights are group-committed: a checkpoint is forced to the disk every [commitBlocks] saves
+ * or [commitIntervalMs] milliseconds, whichever comes first.
+ * @param filePath - path to the checkpoint file
+ * @param commitBlocks - maximum number of saves between commits
+ * @param commitIntervalMs - maximum time between a save and its commit in milliseconds
+ * @param initialHeight - height used when there is no valid checkpoint yet, e.g. taken from the legacy text file
+ */
+class CheckpointLastReadBlockProvider(
+    filePath: String,
+    private val commitBlocks: Int = DEFAULT_COMMIT_BLOCKS,
+    private val commitIntervalMs: Long = DEFAULT_COMMIT_INTERVAL_MS,
+    initialHeight: () -> BigInteger = { BigInteger.ZERO }
+) : LastReadBlockHashProvider, Closeable {
+
+    private val fileChannel: FileChannel
+    private val buffer: MappedByteBuffer
+    private val flusher = createPrettyScheduledThreadPool("eth-deposit", "checkpoint-flusher")
+    private val crc = CRC32()
+
+    private var sequence = 0L
+    private var height: BigInteger
+    private var hash: ByteArray? = null
+    private var uncommittedSaves = 0
+    private var lastCommitTime = System.currentTimeMillis()
+
+    init {
+        require(commitBlocks > 0) { "Commit blocks must be positive, got $commitBlocks" }
+        require(commitIntervalMs > 0) { "Commit interval must be positive, got $commitIntervalMs" }
+        val file = File(filePath)
+        file.absoluteFile.parentFile?.mkdirs()
+        fileChannel = FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        )
+        buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE.toLong())
+        val latestSlot = (0 until SLOTS).filter { isValid(it) }.maxBy { buffer.getLong(it * SLOT_SIZE) }
+        if (latestSlot != null) {
+            val offset = latestSlot * SLOT_SIZE
+            sequence = buffer.getLong(offset + SEQUENCE_OFFSET)
+            height = BigInteger.valueOf(buffer.getLong(offset + HEIGHT_OFFSET))
+            if (buffer.get(offset + HASH_FLAG_OFFSET) != 0.toByte()) {
+                hash = ByteArray(HASH_SIZE).also { bytes ->
+                    for (i in 0 until HASH_SIZE) {
+                        bytes[i] = buffer.get(offset + HASH_OFFSET + i)
+                    }
+                }
+            }
+            logger.info("Loaded checkpoint $sequence with height $height from $filePath")
+        } else {
+            height = initialHeight()
+            logger.info("No valid checkpoint in $filePath, start with height $height")
+        }
+        flusher.scheduleWithFixedDelay(
+            { flushIfDue() },
+            commitIntervalMs,
+            commitIntervalMs,
+            TimeUnit.MILLISECONDS
+        )
+    }
+
+    @Synchronized
+    override fun getLastBlockHeight() = height
+
+    @Synchronized
+    override fun getLastBlockHash() = hash?.let { Numeric.toHexString(it) }
+
+    /**
+     * Saves height without a block hash, the stored hash is dropped
+     */
+    @Synchronized
+    override fun saveLastBlockHeight(height: BigInteger) {
+        save(height, null)
+    }
+
+    @Synchronized
+    override fun saveLastBlock(height: BigInteger, hash: String) {
+        save(height, Numeric.hexStringToByteArray(hash))
+    }
+
+    private fun save(height: BigInteger, hash: ByteArray?) {
+        require(height.signum() >= 0 && height.bitLength() < Long.SIZE_BITS) { "Invalid block height $height" }
+        require(hash == null || hash.size == HASH_SIZE) { "Invalid block hash size ${hash?.size}" }
+        this.height = height
+        this.hash = hash
+        uncommittedSaves++
+        if (uncommittedSaves >= commitBlocks || System.currentTimeMillis() - lastCommitTime >= commitIntervalMs) {
+            commit()
+        }
+    }
+
+    /**
+     * Forces the latest saved height to the disk
+     */
+    @Synchronized
+    fun flush() {
+        if (uncommittedSaves > 0) {
+            commit()
+        }
+    }
+
+    @Synchronized
+    private fun flushIfDue() {
+        if (uncommittedSaves > 0 && System.currentTimeMillis() - lastCommitTime >= commitIntervalMs) {
+            commit()
+        }
+    }
+
+    private fun commit() {
+        val nextSequence = sequence + 1
+        val offset = (nextSequence % SLOTS).toInt() * SLOT_SIZE
+        buffer.putLong(offset + SEQUENCE_OFFSET, nextSequence)
+        buffer.putLong(offset + HEIGHT_OFFSET, height.toLong())
+        val hash = this.hash
+        for (i in 0 until HASH_SIZE) {
+            buffer.put(offset + HASH_OFFSET + i, hash?.get(i) ?: 0.toByte())
+        }
+        buffer.put(offset + HASH_FLAG_OFFSET, (if (hash == null) 0 else 1).toByte())
+        buffer.putInt(offset + CRC_OFFSET, checksum(offset))
+        buffer.force()
+        sequence = nextSequence
+        uncommittedSaves = 0
+        lastCommitTime = System.currentTimeMillis()
+    }
+
+    private fun isValid(slot: Int): Boolean {
+        val offset = slot * SLOT_SIZE
+        return buffer.getInt(offset + CRC_OFFSET) == checksum(offset)
+    }
+
+    private fun checksum(offset: Int): Int {
+        crc.reset()
+        for (i in offset until offset + CRC_OFFSET) {
+            crc.update(buffer.get(i).toInt())
+        }
+        return crc.value.toInt()
+    }
+
+    /**
+     * Commits the latest saved height and releases the file
+     */
+    override fun close() {
+        flusher.shutdownNow()
+        flush()
+        fileChannel.close()
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        const val DEFAULT_COMMIT_BLOCKS = 100
+        const val DEFAULT_COMMIT_INTERVAL_MS = 1_000L
+
+        private const val SLOTS = 2
+        private const val SLOT_SIZE = 64
+        private const val FILE_SIZE = SLOTS * SLOT_SIZE
+        private const val HASH_SIZE = 32
+        private const val SEQUENCE_OFFSET = 0
+        private const val HEIGHT_OFFSET = 8
+        private const val HASH_OFFSET = 16
+        private const val HASH_FLAG_OFFSET = HASH_OFFSET + HASH_SIZE
+        private const val CRC_OFFSET = SLOT_SIZE - 4
+    }
+}
@@ -6,6 +6,7 @@
 package jp.co.soramitsu.soranet.eth.provider
 
 import com.github.kittinunf.result.Result
+import iroha.protocol.BlockOuterClass
 import java.util.*
 
 /** Interface of an instance that provides user ethereum wallets*/
@@ -24,4 +25,7 @@ interface EthAddressProvider {
      * Add new pair to the mapping storage
      */
     fun addNewAddress(wallet: String, irohaAccountId: String)
+
+    /** Adds wallets registered in [block] by any notary to the mapping storage */
+    fun filterAndExpand(block: BlockOuterClass.Block)
 }
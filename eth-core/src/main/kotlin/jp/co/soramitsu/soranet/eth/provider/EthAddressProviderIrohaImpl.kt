@@ -7,6 +7,7 @@ package jp.co.soramitsu.soranet.eth.provider
 
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
 import com.github.kittinunf.result.Result
+import iroha.protocol.BlockOuterClass
 import iroha.protocol.QryResponses
 import jp.co.soramitsu.iroha.java.ErrorResponseException
 import mu.KLogging
@@ -17,73 +18,167 @@ const val ETH_WALLET = "ethereum_wallet"
 
 /**
  * Implementation of [EthAddressProvider] with Iroha storage.
+ * Registered wallets are kept in a compact [EthWalletIndex]. Wallets of accounts are resolved by their account details,
+ * the answers are remembered and accounts without wallets are remembered for [negativeCacheTtlMs].
  *
  * @param queryHelper - Iroha queries network layer
  * @param storageAccountId - account that contains details
  * @param setterAccountId - account that has set details
+ * @param key - account detail key of the wallet
+ * @param negativeCacheSize - maximum number of remembered accounts without wallets
+ * @param negativeCacheTtlMs - time an account without wallet is remembered in milliseconds
+ * @param initialWallets - wallets restored from a local snapshot, queried from Iroha if null
  */
 class EthAddressProviderIrohaImpl(
     private val queryHelper: IrohaQueryHelper,
     private val storageAccountId: String,
     private val setterAccountId: String,
-    private val key: String
+    private val key: String,
+    private val negativeCacheSize: Int = DEFAULT_NEGATIVE_CACHE_SIZE,
+    private val negativeCacheTtlMs: Long = DEFAULT_NEGATIVE_CACHE_TTL_MS,
+    initialWallets: EthWalletIndex? = null
 ) : EthAddressProvider {
 
-    private val registeredAddresses: MutableMap<String, String>
+    /** Index of registered wallets */
+    val walletIndex: EthWalletIndex
+
+    /** Account id -> wallet of accounts whose wallets were queried from Iroha */
+    private val queriedAddresses = ConcurrentHashMap<String, String>()
+
+    /** Account id -> time the account is known to have no wallet until, eldest entries are evicted first */
+    private val unregisteredAccounts = object : LinkedHashMap<String, Long>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Long>) = size > negativeCacheSize
+    }
 
     init {
         logger.info {
             "Init address provider with storage account '$storageAccountId' and setter account '$setterAccountId'"
         }
-        registeredAddresses = ConcurrentHashMap(
-            queryHelper.getAccountDetails(
-                storageAccountId,
-                setterAccountId
-            ).get()
-        )
+        walletIndex = initialWallets ?: queryWallets()
+    }
+
+    private fun queryWallets(): EthWalletIndex {
+        val wallets = queryHelper.getAccountDetails(
+            storageAccountId,
+            setterAccountId
+        ).get()
+        val index = EthWalletIndex(wallets.size)
+        wallets.forEach { (wallet, accountId) ->
+            if (EthWalletIndex.isAddress(wallet)) {
+                index.put(wallet, accountId)
+            } else {
+                logger.warn { "Wallet '$wallet' of $accountId is not an Ethereum address, ignored" }
+            }
+        }
+        return index
     }
 
     /**
      * Gets all non free relay wallets
      *
-     * @return map<eth_wallet -> iroha_account> in success case or exception otherwise
+     * @return immutable map<eth_wallet -> iroha_account> in success case or exception otherwise
      */
     override fun getAddresses(): Result<Map<String, String>, Exception> {
-        return Result.of { registeredAddresses }
+        return Result.of { walletIndex.snapshot() }
     }
 
-    /** Get address belonging to [irohaAccountId] */
+    /**
+     * Get address belonging to [irohaAccountId].
+     * The wallet detail of the account is queried once and remembered, a newly registered wallet replaces it.
+     */
     override fun getAddressByAccountId(irohaAccountId: String): Result<Optional<String>, Exception> =
         Result.of {
-            queryHelper.getAccountDetails(
-                irohaAccountId,
-                setterAccountId,
-                key
-            ).fold(
-                { address ->
-                    if (!address.isPresent) {
-                        Optional.empty()
-                    } else {
-                        Optional.of(address.get())
-                    }
-                }, { ex ->
-                    if (ex is ErrorResponseException && ex.errorResponse.reason == QryResponses.ErrorResponse.Reason.NO_ACCOUNT_DETAIL) {
-                        // if no account was found
-                        Optional.empty()
-                    } else {
-                        // if another error or exception occurred
-                        throw ex
-                    }
-                })
+            val known = queriedAddresses[irohaAccountId]
+            if (known != null) {
+                return@of Optional.of(known)
+            }
+            if (isKnownUnregistered(irohaAccountId)) {
+                return@of Optional.empty<String>()
+            }
+            val address = queryAddress(irohaAccountId)
+            if (address.isPresent) {
+                queriedAddresses[irohaAccountId] = address.get()
+            } else {
+                synchronized(unregisteredAccounts) {
+                    unregisteredAccounts[irohaAccountId] = System.currentTimeMillis() + negativeCacheTtlMs
+                }
+            }
+            address
         }
 
     override fun addNewAddress(wallet: String, irohaAccountId: String) {
-        registeredAddresses[wallet] = irohaAccountId
+        if (!EthWalletIndex.isAddress(wallet)) {
+            logger.warn { "Wallet '$wallet' of $irohaAccountId is not an Ethereum address, ignored" }
+            return
+        }
+        walletIndex.put(wallet, irohaAccountId)
+        // registration sets the same wallet to the account details
+        queriedAddresses[irohaAccountId] = wallet
+        synchronized(unregisteredAccounts) {
+            unregisteredAccounts.remove(irohaAccountId)
+        }
         logger.info("Added new eth address to the storage: $wallet : $irohaAccountId")
     }
 
+    /**
+     * Adds wallets set to the storage account by the setter account in [block].
+     * Registrations made by other notaries and multisignature registrations reach the index this way only.
+     */
+    override fun filterAndExpand(block: BlockOuterClass.Block) {
+        block.blockV1.payload.transactionsList
+            .filter { it.payload.reducedPayload.creatorAccountId == setterAccountId }
+            .flatMap { it.payload.reducedPayload.commandsList }
+            .filter { command -> command.hasSetAccountDetail() }
+            .map { command -> command.setAccountDetail }
+            .filter { details -> details.accountId == storageAccountId }
+            .forEach { details ->
+                val wallet = details.key
+                val irohaAccountId = details.value
+                // snapshot lookups ignore the case of the address, so checksummed wallets are found as well
+                if (walletIndex.snapshot()[wallet] != irohaAccountId) {
+                    addNewAddress(wallet, irohaAccountId)
+                }
+            }
+    }
+
+    private fun isKnownUnregistered(irohaAccountId: String): Boolean {
+        synchronized(unregisteredAccounts) {
+            val expiration = unregisteredAccounts[irohaAccountId] ?: return false
+            if (expiration > System.currentTimeMillis()) {
+                return true
+            }
+            unregisteredAccounts.remove(irohaAccountId)
+            return false
+        }
+    }
+
+    private fun queryAddress(irohaAccountId: String): Optional<String> =
+        queryHelper.getAccountDetails(
+            irohaAccountId,
+            setterAccountId,
+            key
+        ).fold(
+            { address ->
+                if (!address.isPresent) {
+                    Optional.empty()
+                } else {
+                    Optional.of(address.get())
+                }
+            }, { ex ->
+                if (ex is ErrorResponseException && ex.errorResponse.reason == QryResponses.ErrorResponse.Reason.NO_ACCOUNT_DETAIL) {
+                    // if no account was found
+                    Optional.empty()
+                } else {
+                    // if another error or exception occurred
+                    throw ex
+                }
+            })
+
     /**
      * Logger
      */
-    companion object : KLogging()
+    companion object : KLogging() {
+        const val DEFAULT_NEGATIVE_CACHE_SIZE = 10_000
+        const val DEFAULT_NEGATIVE_CACHE_TTL_MS = 60_000L
+    }
 }
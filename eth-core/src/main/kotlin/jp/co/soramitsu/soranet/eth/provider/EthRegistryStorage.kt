@@ -0,0 +1,342 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.provider
+
+import mu.KLogging
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+import java.util.zip.CheckedOutputStream
+
+/**
+ * Wallets and tokens restored by [EthRegistryStorage.load]
+ * @param height - height of the last Iroha block they reflect
+ * @param wallets - registered wallets
+ * @param tokens - registered tokens
+ */
+class EthRegistry(
+    val height: Long,
+    val wallets: EthWalletIndex,
+    val tokens: EthTokensSnapshot
+)
+
+/**
+ * Local copy of the wallet and token registries, so the bridge doesn't query all of them from Iroha on startup.
+ * The registries are kept in a snapshot file and a journal of changes made by the Iroha blocks after it.
+ * Both are protected with CRC32: a corrupt snapshot is ignored as a whole, a journal is cut at its first corrupt
+ * record, which is the tail torn by a crash.
+ * [save] must be called after every Iroha block is handled and before it is acknowledged, so a block that
+ * is not in the journal is delivered again. Blocks that change nothing cost nothing, blocks that do are
+ * appended and forced to the disk. Once the journal grows over [compactionBytes], a new snapshot replaces it.
+ * @param filePath - path to the snapshot file, the journal is stored next to it
+ * @param walletIndex - index of registered wallets, [EthRegistry.wallets] if loaded
+ * @param tokensProvider - provider of registered tokens
+ * @param loaded - registries loaded from [filePath] or null if they were queried from Iroha
+ * @param compactionBytes - journal size that triggers a new snapshot
+ */
+class EthRegistryStorage(
+    private val filePath: String,
+    private val walletIndex: EthWalletIndex,
+    private val tokensProvider: EthTokensProvider,
+    loaded: EthRegistry?,
+    private val compactionBytes: Long = DEFAULT_COMPACTION_BYTES
+) : Closeable {
+
+    /** Journal of the current snapshot, null until a snapshot is written */
+    private var journal: FileChannel? = null
+
+    /** Number of wallet index entries persisted */
+    private var walletsVersion = 0
+
+    private var ethAnchoredTokens: Map<String, String> = emptyMap()
+    private var irohaAnchoredTokens: Map<String, String> = emptyMap()
+
+    init {
+        if (loaded != null) {
+            walletsVersion = loaded.wallets.snapshot().version
+            ethAnchoredTokens = loaded.tokens.ethAnchoredTokens
+            irohaAnchoredTokens = loaded.tokens.irohaAnchoredTokens
+            journal = FileChannel.open(
+                journalPath(filePath),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND
+            )
+        }
+    }
+
+    /**
+     * Persists changes of the registries made by Iroha block [height]
+     * @param height - height of the handled Iroha block
+     */
+    @Synchronized
+    fun save(height: Long) {
+        val wallets = walletIndex.snapshot()
+        val tokens = tokensProvider.getTokensSnapshot()
+        val journal = journal
+        if (journal == null || journal.size() >= compactionBytes) {
+            writeSnapshot(height, wallets, tokens)
+            return
+        }
+        val tokensChanged = tokens.ethAnchoredTokens != ethAnchoredTokens ||
+                tokens.irohaAnchoredTokens != irohaAnchoredTokens
+        if (wallets.version == walletsVersion && !tokensChanged) {
+            return
+        }
+        val body = ByteArrayOutputStream()
+        DataOutputStream(body).use { output ->
+            writeBody(output, height, walletsVersion, wallets.version, if (tokensChanged) tokens else null)
+        }
+        val bytes = body.toByteArray()
+        val crc = CRC32()
+        crc.update(bytes)
+        val record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.size)
+            .putInt(bytes.size)
+            .putInt(crc.value.toInt())
+            .put(bytes)
+        record.flip()
+        while (record.hasRemaining()) {
+            journal.write(record)
+        }
+        journal.force(false)
+        remember(wallets, tokens)
+    }
+
+    private fun writeSnapshot(height: Long, wallets: EthWalletIndex.Snapshot, tokens: EthTokensSnapshot) {
+        val start = System.currentTimeMillis()
+        val file = File(filePath)
+        file.absoluteFile.parentFile?.mkdirs()
+        val temporary = File(filePath + TEMPORARY_SUFFIX)
+        FileOutputStream(temporary).use { stream ->
+            val crc = CRC32()
+            val output = DataOutputStream(BufferedOutputStream(CheckedOutputStream(stream, crc), BUFFER_SIZE))
+            output.writeInt(MAGIC)
+            output.writeInt(FORMAT_VERSION)
+            writeBody(output, height, 0, wallets.version, tokens)
+            output.flush()
+            // the checksum itself goes past the checked stream
+            DataOutputStream(stream).writeInt(crc.value.toInt())
+            stream.fd.sync()
+        }
+        Files.move(
+            temporary.toPath(),
+            file.toPath(),
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING
+        )
+        // records left in the journal by a crash right here are older than the snapshot and are skipped on load
+        journal?.close()
+        journal = FileChannel.open(
+            journalPath(filePath),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING
+        ).also { it.force(true) }
+        remember(wallets, tokens)
+        logger.info {
+            "Saved registry snapshot of ${wallets.size} wallets at Iroha block $height " +
+                    "in ${System.currentTimeMillis() - start} ms"
+        }
+    }
+
+    private fun remember(wallets: EthWalletIndex.Snapshot, tokens: EthTokensSnapshot) {
+        walletsVersion = wallets.version
+        ethAnchoredTokens = tokens.ethAnchoredTokens
+        irohaAnchoredTokens = tokens.irohaAnchoredTokens
+    }
+
+    /**
+     * Writes wallet index entries [from] to [to] and [tokens] if they are given
+     */
+    private fun writeBody(output: DataOutputStream, height: Long, from: Int, to: Int, tokens: EthTokensSnapshot?) {
+        output.writeLong(height)
+        output.writeInt(to - from)
+        walletIndex.forEachEntry(from, to) { high, middle, low, accountBytes, offset, length ->
+            output.writeLong(high)
+            output.writeLong(middle)
+            output.writeInt(low)
+            output.writeShort(length)
+            output.write(accountBytes, offset, length)
+        }
+        writeTokens(output, tokens?.ethAnchoredTokens)
+        writeTokens(output, tokens?.irohaAnchoredTokens)
+    }
+
+    @Synchronized
+    override fun close() {
+        journal?.close()
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        const val DEFAULT_COMPACTION_BYTES = 64L * 1024 * 1024
+
+        private const val MAGIC = 0x45524547
+        private const val FORMAT_VERSION = 1
+        private const val JOURNAL_SUFFIX = ".journal"
+        private const val TEMPORARY_SUFFIX = ".tmp"
+        private const val RECORD_HEADER_SIZE = 8
+        private const val BUFFER_SIZE = 1 shl 16
+
+        /** Token count of a journal record that doesn't change tokens */
+        private const val UNCHANGED = -1
+
+        /**
+         * Loads registries with memory-mapped reads of the snapshot and its journal.
+         * A torn tail of the journal is cut off.
+         * @param filePath - path to the snapshot file
+         * @return registries or null if the snapshot is missing or corrupt and registries must be queried from Iroha
+         */
+        fun load(filePath: String): EthRegistry? {
+            val file = File(filePath)
+            if (!file.exists()) {
+                logger.info("No registry snapshot $filePath")
+                return null
+            }
+            val start = System.currentTimeMillis()
+            return try {
+                val registry = FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                    val size = channel.size()
+                    require(size in MIN_SNAPSHOT_SIZE..Int.MAX_VALUE) { "Invalid snapshot size $size" }
+                    val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                    val checksumOffset = size.toInt() - Int.SIZE_BYTES
+                    require(checksum(buffer, 0, checksumOffset) == buffer.getInt(checksumOffset)) {
+                        "Snapshot checksum mismatch"
+                    }
+                    require(buffer.getInt() == MAGIC) { "Not a registry snapshot" }
+                    val version = buffer.getInt()
+                    require(version == FORMAT_VERSION) { "Unsupported snapshot version $version" }
+                    val height = buffer.getLong()
+                    val wallets = EthWalletIndex(buffer.getInt(buffer.position()))
+                    readWallets(buffer, wallets)
+                    val ethAnchoredTokens = readTokens(buffer)!!
+                    val irohaAnchoredTokens = readTokens(buffer)!!
+                    EthRegistry(height, wallets, EthTokensSnapshot(ethAnchoredTokens, irohaAnchoredTokens, emptyMap()))
+                }
+                replayJournal(filePath, registry).also {
+                    logger.info {
+                        "Loaded ${it.wallets.size} wallets and ${it.tokens.allTokens.size} tokens at Iroha block " +
+                                "${it.height} from $filePath in ${System.currentTimeMillis() - start} ms"
+                    }
+                }
+            } catch (e: Exception) {
+                logger.warn("Registry snapshot $filePath is corrupt", e)
+                null
+            }
+        }
+
+        /**
+         * Applies journal records newer than [registry] and cuts off the torn tail
+         */
+        private fun replayJournal(filePath: String, registry: EthRegistry): EthRegistry {
+            val path = journalPath(filePath)
+            if (!Files.exists(path)) {
+                return registry
+            }
+            var height = registry.height
+            var ethAnchoredTokens = registry.tokens.ethAnchoredTokens
+            var irohaAnchoredTokens = registry.tokens.irohaAnchoredTokens
+            FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE).use { channel ->
+                val size = channel.size()
+                require(size <= Int.MAX_VALUE) { "Invalid journal size $size" }
+                val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                var valid = 0
+                while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                    val length = buffer.getInt()
+                    val crc = buffer.getInt()
+                    if (length < 0 || length > buffer.remaining() ||
+                        checksum(buffer, buffer.position(), buffer.position() + length) != crc
+                    ) {
+                        break
+                    }
+                    val end = buffer.position() + length
+                    val recordHeight = buffer.getLong()
+                    if (recordHeight > registry.height) {
+                        readWallets(buffer, registry.wallets)
+                        readTokens(buffer)?.let { ethAnchoredTokens = it }
+                        readTokens(buffer)?.let { irohaAnchoredTokens = it }
+                        height = recordHeight
+                    }
+                    buffer.position(end)
+                    valid = end
+                }
+                if (valid < size) {
+                    logger.warn("Cut ${size - valid} bytes of torn records off registry journal $path")
+                    channel.truncate(valid.toLong())
+                }
+            }
+            return EthRegistry(
+                height,
+                registry.wallets,
+                EthTokensSnapshot(ethAnchoredTokens, irohaAnchoredTokens, emptyMap())
+            )
+        }
+
+        private fun readWallets(buffer: ByteBuffer, index: EthWalletIndex) {
+            repeat(buffer.getInt()) {
+                val high = buffer.getLong()
+                val middle = buffer.getLong()
+                val low = buffer.getInt()
+                val account = ByteArray(java.lang.Short.toUnsignedInt(buffer.getShort()))
+                buffer.get(account)
+                index.put(high, middle, low, account)
+            }
+        }
+
+        private fun writeTokens(output: DataOutputStream, tokens: Map<String, String>?) {
+            if (tokens == null) {
+                output.writeInt(UNCHANGED)
+                return
+            }
+            output.writeInt(tokens.size)
+            tokens.forEach { (address, assetId) ->
+                output.writeUTF(address)
+                output.writeUTF(assetId)
+            }
+        }
+
+        /**
+         * @return tokens or null if the record doesn't change them
+         */
+        private fun readTokens(buffer: ByteBuffer): Map<String, String>? {
+            val count = buffer.getInt()
+            if (count == UNCHANGED) {
+                return null
+            }
+            val tokens = HashMap<String, String>(count * 2)
+            repeat(count) {
+                tokens[readUtf(buffer)] = readUtf(buffer)
+            }
+            return tokens
+        }
+
+        /**
+         * Reads a string written with [DataOutputStream.writeUTF], the registry strings are ASCII
+         */
+        private fun readUtf(buffer: ByteBuffer): String {
+            val bytes = ByteArray(java.lang.Short.toUnsignedInt(buffer.getShort()))
+            buffer.get(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
+
+        private fun checksum(buffer: ByteBuffer, from: Int, to: Int): Int {
+            val crc = CRC32()
+            crc.update(buffer.duplicate().position(from).limit(to) as ByteBuffer)
+            return crc.value.toInt()
+        }
+
+        private fun journalPath(filePath: String) = File(filePath + JOURNAL_SUFFIX).toPath()
+
+        /** Magic, format version, height, wallet count, two token counts and checksum */
+        private const val MIN_SNAPSHOT_SIZE = 4L + 4 + 8 + 4 + 4 + 4 + 4
+    }
+}
@@ -11,6 +11,11 @@ import iroha.protocol.BlockOuterClass
 /** Interface of an instance that provides with ethereum ERC20 token white list. */
 interface EthTokensProvider {
 
+    /**
+     * Returns immutable view of all supported tokens with O(1) lookups by address and asset id
+     */
+    fun getTokensSnapshot(): EthTokensSnapshot
+
     /**
      * Return all supported Ethereum tokens.
      */
@@ -7,11 +7,10 @@ package jp.co.soramitsu.soranet.eth.provider
 
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
 import com.github.kittinunf.result.Result
-import com.github.kittinunf.result.fanout
 import com.github.kittinunf.result.map
 import iroha.protocol.BlockOuterClass
 import mu.KLogging
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
 
 const val ETH_NAME = "ether"
 const val ETH_DOMAIN = "ethereum"
@@ -30,18 +29,18 @@ const val ETH_ADDRESS = "0x0000000000000000000000000000000000000000"
  * anchored ERC20 tokens
  * @param irohaAnchoredTokenSetterAccount - tokenSetterAccount that set details about ERC20 tokens
  * anchored in Iroha
+ * @param initialTokens - tokens restored from a local snapshot, queried from Iroha if null
  */
 class EthTokensProviderImpl(
     private val irohaQueryHelper: IrohaQueryHelper,
     private val ethAnchoredTokenStorageAccount: String,
     private val ethAnchoredTokenSetterAccount: String,
     private val irohaAnchoredTokenStorageAccount: String,
-    private val irohaAnchoredTokenSetterAccount: String
+    private val irohaAnchoredTokenSetterAccount: String,
+    initialTokens: EthTokensSnapshot? = null
 ) : EthTokensProvider {
 
-    private val irohaAnchoredTokens: MutableMap<String, String>
-    private val ethAnchoredTokens: MutableMap<String, String>
-    private val tokenPrecisions: MutableMap<String, Int>
+    private val snapshot: AtomicReference<EthTokensSnapshot>
 
     init {
         logger.info {
@@ -51,30 +50,33 @@ class EthTokensProviderImpl(
                 Iroha anchored token storage: '$irohaAnchoredTokenStorageAccount', setter: '$irohaAnchoredTokenSetterAccount'
             """.trimIndent()
         }
-        irohaAnchoredTokens = ConcurrentHashMap(
-            irohaQueryHelper.getAccountDetails(
-                irohaAnchoredTokenStorageAccount,
-                irohaAnchoredTokenSetterAccount
-            ).get()
+        snapshot = AtomicReference(
+            initialTokens ?: EthTokensSnapshot(
+                irohaQueryHelper.getAccountDetails(
+                    ethAnchoredTokenStorageAccount,
+                    ethAnchoredTokenSetterAccount
+                ).get(),
+                irohaQueryHelper.getAccountDetails(
+                    irohaAnchoredTokenStorageAccount,
+                    irohaAnchoredTokenSetterAccount
+                ).get(),
+                emptyMap()
+            )
         )
-        ethAnchoredTokens = ConcurrentHashMap(
-            irohaQueryHelper.getAccountDetails(
-                ethAnchoredTokenStorageAccount,
-                ethAnchoredTokenSetterAccount
-            ).get()
-        )
-        tokenPrecisions = mutableMapOf("$ETH_NAME#$ETH_DOMAIN" to ETH_PRECISION)
     }
 
+    /**
+     * Get current tokens.
+     * @return immutable view of tokens, it is replaced as a whole when new tokens are added
+     */
+    override fun getTokensSnapshot(): EthTokensSnapshot = snapshot.get()
+
     /**
      * Get all Ethereum tokens.
      * @returns map (EthreumAddress -> TokenName)
      */
     override fun getEthTokens(): Result<Map<String, String>, Exception> {
-        return getEthAnchoredTokens().fanout { getIrohaAnchoredTokens() }
-            .map { (ethAnchored, irohaAnchored) ->
-                ethAnchored.plus(irohaAnchored).plus(ETH_ADDRESS to "$ETH_NAME#$ETH_DOMAIN")
-            }
+        return Result.of { snapshot.get().allTokens }
     }
 
     /**
@@ -82,7 +84,7 @@ class EthTokensProviderImpl(
      * @returns map (EthreumAddress -> TokenName)
      */
     override fun getEthAnchoredTokens(): Result<Map<String, String>, Exception> {
-        return Result.of { ethAnchoredTokens }
+        return Result.of { snapshot.get().ethAnchoredTokens }
     }
 
     /**
@@ -90,19 +92,20 @@ class EthTokensProviderImpl(
      * @returns map (EthreumAddress -> TokenName)
      */
     override fun getIrohaAnchoredTokens(): Result<Map<String, String>, Exception> {
-        return Result.of { irohaAnchoredTokens }
+        return Result.of { snapshot.get().irohaAnchoredTokens }
     }
 
     /**
      * Get precision of [assetId] asset in Iroha.
      */
     override fun getTokenPrecision(assetId: String): Result<Int, Exception> {
-        return if (tokenPrecisions.contains(assetId))
-            Result.of { tokenPrecisions[assetId]!! }
-        else irohaQueryHelper.getAssetPrecision(assetId).map { precision ->
-            tokenPrecisions[assetId] = precision
-            logger.info("Got new token precision from Iroha: $assetId : $precision")
-            precision
+        val precision = snapshot.get().getPrecision(assetId)
+        return if (precision != null)
+            Result.of { precision }
+        else irohaQueryHelper.getAssetPrecision(assetId).map { loaded ->
+            snapshot.updateAndGet { it.withPrecision(assetId, loaded) }
+            logger.info("Got new token precision from Iroha: $assetId : $loaded")
+            loaded
         }
     }
 
@@ -110,40 +113,17 @@ class EthTokensProviderImpl(
      * Get token address of [assetId] asset. For ether returns 0x0000000000000000000000000000000000000000
      */
     override fun getTokenAddress(assetId: String): Result<String, Exception> {
-        return Result.of {
-            if (assetId == "$ETH_NAME#$ETH_DOMAIN") {
-                return@of ETH_ADDRESS
-            }
-            val ethAnchoredEntries = ethAnchoredTokens.filter { (_, value) -> value == assetId }.entries
-            if (ethAnchoredEntries.isNotEmpty()) {
-                return@of ethAnchoredEntries.iterator().next().key
-            }
-
-            val irohaAnchoredEntries = irohaAnchoredTokens.filter { (_, value) -> value == assetId }.entries
-            if (irohaAnchoredEntries.isNotEmpty()) {
-                return@of irohaAnchoredEntries.iterator().next().key
-            }
-
-            throw IllegalArgumentException("Token $assetId not found")
-        }
+        return Result.of { getToken(assetId).address }
     }
 
     /** Return true if asset is Iroha anchored. */
     override fun isIrohaAnchored(assetId: String): Result<Boolean, Exception> {
-        return Result.of {
-            if (assetId == "$ETH_NAME#$ETH_DOMAIN")
-                return@of false
-            return@of if (irohaAnchoredTokens.filter { (_, value) -> value == assetId }.isNotEmpty()) {
-                true
-            } else {
-                if (ethAnchoredTokens.filter { (_, value) -> value == assetId }.isEmpty()) {
-                    throw IllegalArgumentException("Token $assetId not found")
-                }
-                false
-            }
-        }
+        return Result.of { getToken(assetId).isIrohaAnchored }
     }
 
+    private fun getToken(assetId: String) = snapshot.get().getToken(assetId)
+        ?: throw IllegalArgumentException("Token $assetId not found")
+
     override fun filterAndExpand(block: BlockOuterClass.Block) {
         val map = block.blockV1.payload.transactionsList.filter {
             val creatorAccountId = it.payload.reducedPayload.creatorAccountId
@@ -159,17 +139,19 @@ class EthTokensProviderImpl(
                         details.accountId == irohaAnchoredTokenStorageAccount
             }
         }
-        map[ethAnchoredTokenSetterAccount]?.forEach {
-            if(it.accountId == ethAnchoredTokenStorageAccount) {
-                ethAnchoredTokens[it.key] = it.value
-                logger.info("Got new token from Iroha: ${it.key} : ${it.value}")
-            }
+        val newEthAnchoredTokens = map[ethAnchoredTokenSetterAccount].orEmpty()
+            .filter { it.accountId == ethAnchoredTokenStorageAccount }
+            .associate { it.key to it.value }
+        val newIrohaAnchoredTokens = map[irohaAnchoredTokenSetterAccount].orEmpty()
+            .filter { it.accountId == irohaAnchoredTokenStorageAccount }
+            .associate { it.key to it.value }
+        if (newEthAnchoredTokens.isEmpty() && newIrohaAnchoredTokens.isEmpty()) {
+            return
         }
-        map[irohaAnchoredTokenSetterAccount]?.forEach {
-            if(it.accountId == irohaAnchoredTokenStorageAccount) {
-                irohaAnchoredTokens[it.key] = it.value
-                logger.info("Got new token from Iroha: ${it.key} : ${it.value}")
-            }
+        // readers see either all the tokens of the block or none of them
+        snapshot.updateAndGet { it.withTokens(newEthAnchoredTokens, newIrohaAnchoredTokens) }
+        newEthAnchoredTokens.plus(newIrohaAnchoredTokens).forEach { (address, assetId) ->
+            logger.info("Got new token from Iroha: $address : $assetId")
         }
     }
 
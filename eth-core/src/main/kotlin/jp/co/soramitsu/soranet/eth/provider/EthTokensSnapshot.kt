@@ -0,0 +1,100 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.provider
+
+/**
+ * Token supported by the bridge
+ * @param assetId - Iroha asset id
+ * @param address - Ethereum address of the token contract, [ETH_ADDRESS] for ether
+ * @param isIrohaAnchored - true if the token is anchored in Iroha
+ * @param precision - precision of the asset in Iroha, null if it hasn't been loaded yet
+ */
+data class EthToken(
+    val assetId: String,
+    val address: String,
+    val isIrohaAnchored: Boolean,
+    val precision: Int?
+)
+
+/**
+ * Immutable view of supported tokens with lookups by Ethereum address and by Iroha asset id
+ * @param ethAnchoredTokens - map (Ethereum address -> asset id) of tokens anchored in Ethereum
+ * @param irohaAnchoredTokens - map (Ethereum address -> asset id) of tokens anchored in Iroha
+ * @param precisions - map (asset id -> precision) of loaded precisions
+ */
+class EthTokensSnapshot(
+    ethAnchoredTokens: Map<String, String>,
+    irohaAnchoredTokens: Map<String, String>,
+    precisions: Map<String, Int>
+) {
+    /** Map (Ethereum address -> asset id) of tokens anchored in Ethereum */
+    val ethAnchoredTokens: Map<String, String> = HashMap(ethAnchoredTokens)
+
+    /** Map (Ethereum address -> asset id) of tokens anchored in Iroha */
+    val irohaAnchoredTokens: Map<String, String> = HashMap(irohaAnchoredTokens)
+
+    /** Map (Ethereum address -> asset id) of all tokens including ether */
+    val allTokens: Map<String, String>
+
+    private val precisions: Map<String, Int> = HashMap(precisions)
+
+    private val tokens: Map<String, EthToken>
+
+    init {
+        val all = HashMap<String, String>(ethAnchoredTokens.size + irohaAnchoredTokens.size + 1)
+        all.putAll(ethAnchoredTokens)
+        all.putAll(irohaAnchoredTokens)
+        all[ETH_ADDRESS] = ETH_ASSET_ID
+        allTokens = all
+
+        val byAssetId = HashMap<String, EthToken>(all.size)
+        irohaAnchoredTokens.forEach { (address, assetId) ->
+            byAssetId[assetId] = EthToken(assetId, address, true, precisions[assetId])
+        }
+        // an address of Ethereum anchored token wins if an asset is registered in both lists
+        val irohaAnchoredAssets = irohaAnchoredTokens.values.toSet()
+        ethAnchoredTokens.forEach { (address, assetId) ->
+            byAssetId[assetId] = EthToken(assetId, address, irohaAnchoredAssets.contains(assetId), precisions[assetId])
+        }
+        byAssetId[ETH_ASSET_ID] = EthToken(ETH_ASSET_ID, ETH_ADDRESS, false, ETH_PRECISION)
+        tokens = byAssetId
+    }
+
+    /**
+     * @return token with [assetId] or null if the asset is not supported
+     */
+    fun getToken(assetId: String): EthToken? = tokens[assetId]
+
+    /**
+     * @return loaded precision of [assetId] or null
+     */
+    fun getPrecision(assetId: String): Int? = tokens[assetId]?.precision ?: precisions[assetId]
+
+    /**
+     * @return true if [assetId] is a supported token
+     */
+    fun contains(assetId: String) = tokens.containsKey(assetId)
+
+    /**
+     * @return snapshot with the new tokens added
+     */
+    fun withTokens(newEthAnchoredTokens: Map<String, String>, newIrohaAnchoredTokens: Map<String, String>) =
+        EthTokensSnapshot(
+            ethAnchoredTokens + newEthAnchoredTokens,
+            irohaAnchoredTokens + newIrohaAnchoredTokens,
+            precisions
+        )
+
+    /**
+     * @return snapshot with the precision of [assetId] set
+     */
+    fun withPrecision(assetId: String, precision: Int) =
+        EthTokensSnapshot(ethAnchoredTokens, irohaAnchoredTokens, precisions + (assetId to precision))
+
+    companion object {
+        const val ETH_ASSET_ID = "$ETH_NAME#$ETH_DOMAIN"
+    }
+}
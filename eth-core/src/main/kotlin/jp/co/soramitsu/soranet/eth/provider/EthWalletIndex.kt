@@ -0,0 +1,484 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.provider
+
+import java.util.AbstractMap.SimpleImmutableEntry
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+ * Compact append-only index of registered wallets (Ethereum address -> Iroha account id).
+ * Addresses are kept as their 20 raw bytes in primitive arrays and account ids as UTF-8 bytes in one shared array,
+ * so a wallet costs about 60 bytes of heap instead of two strings and a map node.
+ * Wallets are found by open addressing with linear probing, lookups by address or by log topic allocate nothing.
+ *
+ * Entries are never removed, a wallet registered again with another account is appended as a new entry
+ * that replaces the previous one. Hence a [Snapshot] is just a number of entries:
+ * it sees the wallets registered before it was taken and is never affected by later registrations.
+ *
+ * The index may be read concurrently with a single writer, writes are serialized.
+ * @param initialCapacity - expected number of wallets
+ */
+class EthWalletIndex(initialCapacity: Int = DEFAULT_CAPACITY) {
+
+    /**
+     * Storage of entries by ordinal
+     * @param capacity - maximum number of entries
+     * @param accountBytesCapacity - maximum total length of account ids in bytes
+     */
+    private class Entries(capacity: Int, accountBytesCapacity: Int) {
+        /** Address bytes 0..7 */
+        val keyHigh = LongArray(capacity)
+        /** Address bytes 8..15 */
+        val keyMiddle = LongArray(capacity)
+        /** Address bytes 16..19 */
+        val keyLow = IntArray(capacity)
+        /** Ordinal of the entry of the same wallet this entry has replaced or -1 */
+        val replaced = IntArray(capacity)
+        /** Account id of entry i is stored in [accountBytes] from accountOffsets[i] to accountOffsets[i + 1] */
+        val accountOffsets = IntArray(capacity + 1)
+        val accountBytes = ByteArray(accountBytesCapacity)
+
+        fun copy(capacity: Int, accountBytesCapacity: Int, size: Int): Entries {
+            val copy = Entries(capacity, accountBytesCapacity)
+            System.arraycopy(keyHigh, 0, copy.keyHigh, 0, size)
+            System.arraycopy(keyMiddle, 0, copy.keyMiddle, 0, size)
+            System.arraycopy(keyLow, 0, copy.keyLow, 0, size)
+            System.arraycopy(replaced, 0, copy.replaced, 0, size)
+            System.arraycopy(accountOffsets, 0, copy.accountOffsets, 0, size + 1)
+            System.arraycopy(accountBytes, 0, copy.accountBytes, 0, accountOffsets[size])
+            return copy
+        }
+
+        fun account(ordinal: Int): String {
+            val from = accountOffsets[ordinal]
+            return String(accountBytes, from, accountOffsets[ordinal + 1] - from, Charsets.UTF_8)
+        }
+
+        fun address(ordinal: Int) =
+            String.format("0x%016x%016x%08x", keyHigh[ordinal], keyMiddle[ordinal], keyLow[ordinal])
+    }
+
+    /**
+     * Number of entries and number of distinct wallets among them
+     */
+    private class Bounds(val entries: Int, val wallets: Int)
+
+    /** Entries are published before their ordinals are written to the tables */
+    @Volatile
+    private var entries = Entries(initialCapacity, initialCapacity * ACCOUNT_BYTES_ESTIMATE)
+
+    /** Table of (ordinal + 1) of the latest entry of every wallet, 0 is a free slot */
+    @Volatile
+    private var walletSlots = AtomicIntegerArray(tableCapacity(initialCapacity))
+
+    /** Table of (ordinal + 1) of the latest entry of every account, 0 is a free slot */
+    @Volatile
+    private var accountSlots = AtomicIntegerArray(tableCapacity(initialCapacity))
+
+    /** Published bounds, entries beyond them are being written */
+    @Volatile
+    private var bounds = Bounds(0, 0)
+
+    /** Number of registered wallets */
+    val size: Int
+        get() = bounds.wallets
+
+    /**
+     * Registers [wallet] of [accountId], replaces the account of an already registered wallet
+     * @param wallet - Ethereum address, 0x prefix is optional
+     * @param accountId - Iroha account id
+     * @throws IllegalArgumentException if [wallet] is not an Ethereum address
+     */
+    fun put(wallet: String, accountId: String) {
+        val from = addressStart(wallet)
+        require(from >= 0) { "Not an Ethereum address: $wallet" }
+        put(
+            parseHex(wallet, from, 16),
+            parseHex(wallet, from + 16, 16),
+            parseHex(wallet, from + 32, 8).toInt(),
+            accountId.toByteArray(Charsets.UTF_8)
+        )
+    }
+
+    /**
+     * Registers wallet given by its raw bytes
+     * @param high - address bytes 0..7
+     * @param middle - address bytes 8..15
+     * @param low - address bytes 16..19
+     * @param account - UTF-8 bytes of Iroha account id
+     */
+    internal fun put(high: Long, middle: Long, low: Int, account: ByteArray) {
+        synchronized(this) {
+            val current = bounds
+            val ordinal = current.entries
+            val previous = findWallet(walletSlots, entries, high, middle, low)
+            if (previous >= 0 && accountEquals(entries, previous, account)) {
+                return
+            }
+            ensureCapacity(ordinal + 1, account.size)
+            val entries = entries
+            entries.keyHigh[ordinal] = high
+            entries.keyMiddle[ordinal] = middle
+            entries.keyLow[ordinal] = low
+            entries.replaced[ordinal] = previous
+            val accountFrom = entries.accountOffsets[ordinal]
+            System.arraycopy(account, 0, entries.accountBytes, accountFrom, account.size)
+            entries.accountOffsets[ordinal + 1] = accountFrom + account.size
+            insertWallet(walletSlots, entries, ordinal)
+            insertAccount(accountSlots, entries, ordinal)
+            bounds = Bounds(ordinal + 1, if (previous >= 0) current.wallets else current.wallets + 1)
+        }
+    }
+
+    /**
+     * Passes raw entries to [action] in the order they were registered
+     * @param from - ordinal of the first entry
+     * @param to - ordinal after the last entry, must not exceed [Snapshot.version] of a taken snapshot
+     * @param action - consumer of address bytes 0..7, 8..15, 16..19 and account id bytes given by offset and length
+     */
+    internal fun forEachEntry(
+        from: Int,
+        to: Int,
+        action: (high: Long, middle: Long, low: Int, accountBytes: ByteArray, offset: Int, length: Int) -> Unit
+    ) {
+        val entries = entries
+        for (ordinal in from until to) {
+            val offset = entries.accountOffsets[ordinal]
+            action(
+                entries.keyHigh[ordinal],
+                entries.keyMiddle[ordinal],
+                entries.keyLow[ordinal],
+                entries.accountBytes,
+                offset,
+                entries.accountOffsets[ordinal + 1] - offset
+            )
+        }
+    }
+
+    /**
+     * @param accountId - Iroha account id
+     * @return the latest wallet registered for [accountId] or null,
+     * null as well if that wallet has been registered again with another account since
+     */
+    fun getWallet(accountId: String): String? {
+        val account = accountId.toByteArray(Charsets.UTF_8)
+        val slots = accountSlots
+        val mask = slots.length() - 1
+        var slot = hashAccount(account, 0, account.size) and mask
+        while (true) {
+            val value = slots.get(slot)
+            if (value == 0) {
+                return null
+            }
+            val entries = entries
+            val ordinal = value - 1
+            if (accountEquals(entries, ordinal, account)) {
+                val latest = findWallet(
+                    walletSlots,
+                    entries,
+                    entries.keyHigh[ordinal],
+                    entries.keyMiddle[ordinal],
+                    entries.keyLow[ordinal]
+                )
+                // the reverse entry is stale once the wallet is replaced
+                return if (latest == ordinal) entries.address(ordinal) else null
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    /**
+     * @return view of the wallets registered at the moment
+     */
+    fun snapshot(): Snapshot {
+        val bounds = bounds
+        return Snapshot(bounds.entries, bounds.wallets)
+    }
+
+    /**
+     * Immutable view of the index at some moment, lookups by address are case insensitive
+     * @param version - number of entries the snapshot sees, grows with every registration
+     * @param size - number of distinct wallets among them
+     */
+    inner class Snapshot internal constructor(
+        val version: Int,
+        override val size: Int
+    ) : AbstractMap<String, String>() {
+
+        override val entries: Set<Map.Entry<String, String>>
+            get() = object : AbstractSet<Map.Entry<String, String>>() {
+                override val size: Int
+                    get() = this@Snapshot.size
+
+                override fun iterator(): Iterator<Map.Entry<String, String>> =
+                    (0 until version).asSequence()
+                        .filter { ordinal -> isLatest(ordinal) }
+                        .map { ordinal ->
+                            val entries = this@EthWalletIndex.entries
+                            SimpleImmutableEntry(entries.address(ordinal), entries.account(ordinal))
+                        }
+                        .iterator()
+            }
+
+        override fun containsKey(key: String) = find(key) >= 0
+
+        override fun get(key: String): String? {
+            val ordinal = find(key)
+            return if (ordinal < 0) null else this@EthWalletIndex.entries.account(ordinal)
+        }
+
+        /**
+         * Finds account by an address in log topic form, e.g. `from` of ERC20 `Transfer`
+         * @param topic - 32 bytes hex topic with 12 leading zero bytes
+         * @return account id or null if the topic is not a registered wallet
+         */
+        fun getByTopic(topic: String): String? {
+            val from = if (topic.startsWith(HEX_PREFIX)) 2 else 0
+            if (topic.length != from + TOPIC_LENGTH) {
+                return null
+            }
+            for (i in from until from + TOPIC_PADDING_LENGTH) {
+                if (topic[i] != '0') {
+                    return null
+                }
+            }
+            val ordinal = find(topic, from + TOPIC_PADDING_LENGTH)
+            return if (ordinal < 0) null else this@EthWalletIndex.entries.account(ordinal)
+        }
+
+        private fun find(address: String): Int {
+            val from = addressStart(address)
+            return if (from < 0) -1 else find(address, from)
+        }
+
+        private fun find(hex: String, from: Int): Int {
+            if (!isHex(hex, from, ADDRESS_LENGTH)) {
+                return -1
+            }
+            val ordinal = findWallet(
+                walletSlots,
+                null,
+                parseHex(hex, from, 16),
+                parseHex(hex, from + 16, 16),
+                parseHex(hex, from + 32, 8).toInt()
+            )
+            return visible(ordinal)
+        }
+
+        /**
+         * @return the entry of the same wallet the snapshot sees or -1
+         */
+        private fun visible(latest: Int): Int {
+            if (latest < 0) {
+                return -1
+            }
+            val replaced = this@EthWalletIndex.entries.replaced
+            var ordinal = latest
+            while (ordinal >= version) {
+                ordinal = replaced[ordinal]
+                if (ordinal < 0) {
+                    return -1
+                }
+            }
+            return ordinal
+        }
+
+        private fun isLatest(ordinal: Int): Boolean {
+            val entries = this@EthWalletIndex.entries
+            val latest = findWallet(
+                walletSlots,
+                entries,
+                entries.keyHigh[ordinal],
+                entries.keyMiddle[ordinal],
+                entries.keyLow[ordinal]
+            )
+            return visible(latest) == ordinal
+        }
+    }
+
+    /**
+     * Finds the latest entry of a wallet
+     * @param storage - entries to compare keys with, the current entries are read after every slot if null
+     * @return ordinal of the entry or -1
+     */
+    private fun findWallet(slots: AtomicIntegerArray, storage: Entries?, high: Long, middle: Long, low: Int): Int {
+        val mask = slots.length() - 1
+        var slot = hashAddress(high, middle, low) and mask
+        while (true) {
+            val value = slots.get(slot)
+            if (value == 0) {
+                return -1
+            }
+            // entries are read after the slot, so they contain the entry
+            val entries = storage ?: entries
+            val ordinal = value - 1
+            if (entries.keyHigh[ordinal] == high && entries.keyMiddle[ordinal] == middle &&
+                entries.keyLow[ordinal] == low
+            ) {
+                return ordinal
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    /**
+     * Makes room for [size] entries and [accountLength] more bytes of account ids.
+     * Must be called by the writer.
+     */
+    private fun ensureCapacity(size: Int, accountLength: Int) {
+        val current = entries
+        val ordinal = size - 1
+        val accountBytesNeeded = current.accountOffsets[ordinal] + accountLength
+        if (size > current.keyHigh.size || accountBytesNeeded > current.accountBytes.size) {
+            val capacity = maxOf(current.keyHigh.size * 2, size)
+            val accountBytesCapacity = maxOf(current.accountBytes.size * 2, accountBytesNeeded)
+            entries = current.copy(capacity, accountBytesCapacity, ordinal)
+        }
+        if (size * 2 > walletSlots.length()) {
+            val entries = entries
+            val wallets = AtomicIntegerArray(walletSlots.length() * 2)
+            val accounts = AtomicIntegerArray(accountSlots.length() * 2)
+            // later entries replace earlier ones
+            for (i in 0 until ordinal) {
+                insertWallet(wallets, entries, i)
+                insertAccount(accounts, entries, i)
+            }
+            walletSlots = wallets
+            accountSlots = accounts
+        }
+    }
+
+    /**
+     * Puts [ordinal] to the slot of its wallet, must be called by the writer
+     */
+    private fun insertWallet(slots: AtomicIntegerArray, entries: Entries, ordinal: Int) {
+        val high = entries.keyHigh[ordinal]
+        val middle = entries.keyMiddle[ordinal]
+        val low = entries.keyLow[ordinal]
+        val mask = slots.length() - 1
+        var slot = hashAddress(high, middle, low) and mask
+        while (true) {
+            val value = slots.get(slot)
+            if (value == 0 || (entries.keyHigh[value - 1] == high && entries.keyMiddle[value - 1] == middle &&
+                        entries.keyLow[value - 1] == low)
+            ) {
+                slots.set(slot, ordinal + 1)
+                return
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    /**
+     * Puts [ordinal] to the slot of its account, must be called by the writer
+     */
+    private fun insertAccount(slots: AtomicIntegerArray, entries: Entries, ordinal: Int) {
+        val from = entries.accountOffsets[ordinal]
+        val length = entries.accountOffsets[ordinal + 1] - from
+        val mask = slots.length() - 1
+        var slot = hashAccount(entries.accountBytes, from, length) and mask
+        while (true) {
+            val value = slots.get(slot)
+            if (value == 0 || accountEquals(entries, value - 1, entries.accountBytes, from, length)) {
+                slots.set(slot, ordinal + 1)
+                return
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_CAPACITY = 1024
+        private const val ACCOUNT_BYTES_ESTIMATE = 24
+        private const val HEX_PREFIX = "0x"
+        private const val ADDRESS_LENGTH = 40
+        private const val TOPIC_LENGTH = 64
+        private const val TOPIC_PADDING_LENGTH = TOPIC_LENGTH - ADDRESS_LENGTH
+
+        /**
+         * Builds index of [wallets]
+         * @param wallets - map (Ethereum address -> Iroha account id)
+         * @throws IllegalArgumentException if a key is not an Ethereum address
+         */
+        fun of(wallets: Map<String, String>): EthWalletIndex {
+            val index = EthWalletIndex(maxOf(wallets.size, DEFAULT_CAPACITY))
+            wallets.forEach { (wallet, accountId) -> index.put(wallet, accountId) }
+            return index
+        }
+
+        /**
+         * @return true if [value] is a hex Ethereum address with optional 0x prefix
+         */
+        fun isAddress(value: String) = addressStart(value) >= 0
+
+        /**
+         * @return index of the first hex digit of address [value] or -1 if it is not an address
+         */
+        private fun addressStart(value: String): Int {
+            val from = if (value.startsWith(HEX_PREFIX)) 2 else 0
+            return if (value.length == from + ADDRESS_LENGTH && isHex(value, from, ADDRESS_LENGTH)) from else -1
+        }
+
+        private fun tableCapacity(capacity: Int) = Integer.highestOneBit(maxOf(capacity, 2) * 2 - 1) * 2
+
+        private fun isHex(value: String, from: Int, length: Int): Boolean {
+            for (i in from until from + length) {
+                if (hexDigit(value[i]) < 0) {
+                    return false
+                }
+            }
+            return true
+        }
+
+        private fun hexDigit(c: Char) = when (c) {
+            in '0'..'9' -> c - '0'
+            in 'a'..'f' -> c - 'a' + 10
+            in 'A'..'F' -> c - 'A' + 10
+            else -> -1
+        }
+
+        /**
+         * Parses up to 16 hex digits that have been checked with [isHex]
+         */
+        private fun parseHex(value: String, from: Int, length: Int): Long {
+            var result = 0L
+            for (i in from until from + length) {
+                result = (result shl 4) or hexDigit(value[i]).toLong()
+            }
+            return result
+        }
+
+        private fun hashAddress(high: Long, middle: Long, low: Int): Int {
+            // addresses are hashes already, just fold the bits
+            val hash = high xor middle xor low.toLong()
+            return (hash xor (hash ushr 32)).toInt()
+        }
+
+        private fun hashAccount(bytes: ByteArray, from: Int, length: Int): Int {
+            var hash = 1
+            for (i in from until from + length) {
+                hash = 31 * hash + bytes[i]
+            }
+            return hash xor (hash ushr 16)
+        }
+
+        private fun accountEquals(entries: Entries, ordinal: Int, account: ByteArray) =
+            accountEquals(entries, ordinal, account, 0, account.size)
+
+        private fun accountEquals(entries: Entries, ordinal: Int, bytes: ByteArray, from: Int, length: Int): Boolean {
+            val accountFrom = entries.accountOffsets[ordinal]
+            if (entries.accountOffsets[ordinal + 1] - accountFrom != length) {
+                return false
+            }
+            for (i in 0 until length) {
+                if (entries.accountBytes[accountFrom + i] != bytes[from + i]) {
+                    return false
+                }
+            }
+            return true
+        }
+    }
+}
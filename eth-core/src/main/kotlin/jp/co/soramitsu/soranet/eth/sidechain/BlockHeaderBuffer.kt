@@ -0,0 +1,90 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import org.web3j.protocol.core.methods.response.EthBlock
+import java.math.BigInteger
+import java.util.*
+
+/**
+ * Header of a processed Ethereum block
+ * @param number - block number
+ * @param hash - block hash
+ * @param parentHash - hash of the parent block
+ */
+data class BlockHeader(
+    val number: BigInteger,
+    val hash: String,
+    val parentHash: String
+) {
+    constructor(block: EthBlock.Block) : this(block.number, block.hash, block.parentHash)
+}
+
+/**
+ * Event of Ethereum chain reorganisation detected by a chain listener
+ * @param forkBlockNumber - number of the first block that was replaced, blocks are re-emitted starting from it
+ * @param orphanedBlocks - previously emitted blocks that are not in the chain anymore
+ * @param detectedBy - header of the block whose parent hash didn't match
+ * @param ancestorFound - false if the common ancestor is deeper than the header buffer
+ */
+data class ChainReorgEvent(
+    val forkBlockNumber: BigInteger,
+    val orphanedBlocks: List<BlockHeader>,
+    val detectedBy: BlockHeader,
+    val ancestorFound: Boolean
+)
+
+/**
+ * Ring buffer of the last processed block headers
+ * @param capacity - maximum number of headers kept
+ */
+class BlockHeaderBuffer(private val capacity: Int) {
+    private val headers = ArrayDeque<BlockHeader>(capacity)
+
+    init {
+        require(capacity > 0) { "Header buffer capacity must be positive, got $capacity" }
+    }
+
+    /** The most recently added header */
+    val last: BlockHeader?
+        get() = headers.peekLast()
+
+    /** The oldest header kept */
+    val first: BlockHeader?
+        get() = headers.peekFirst()
+
+    /**
+     * Adds [header] evicting the oldest one if the buffer is full
+     */
+    fun add(header: BlockHeader) {
+        if (headers.size == capacity) {
+            headers.pollFirst()
+        }
+        headers.addLast(header)
+    }
+
+    /**
+     * @return header of the block with [number] or null if it is not buffered
+     */
+    fun get(number: BigInteger): BlockHeader? = headers.lastOrNull { it.number == number }
+
+    /**
+     * @return headers from the newest to the oldest
+     */
+    fun newestFirst(): List<BlockHeader> = headers.descendingIterator().asSequence().toList()
+
+    /**
+     * Removes all the headers with number greater or equal to [number]
+     * @return removed headers from the oldest to the newest
+     */
+    fun rewindTo(number: BigInteger): List<BlockHeader> {
+        val removed = ArrayList<BlockHeader>()
+        while (headers.isNotEmpty() && headers.peekLast().number >= number) {
+            removed.add(headers.pollLast())
+        }
+        return removed.asReversed()
+    }
+}
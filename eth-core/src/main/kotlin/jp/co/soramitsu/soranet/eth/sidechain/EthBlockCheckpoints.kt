@@ -0,0 +1,108 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import io.micrometer.core.instrument.MeterRegistry
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
+import org.web3j.protocol.core.methods.response.EthBlock
+import java.math.BigInteger
+import java.util.*
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+/**
+ * Checkpoints of Ethereum blocks published to an asynchronous parser.
+ * A chain listener registers a checkpoint with every published block, the checkpoint is saved only when the parser
+ * has emitted the events of the block and of all the blocks published before it, so a crash never skips events.
+ * Publishing blocks while [maxBlocksInFlight] blocks are not parsed yet waits for the parser.
+ * @param maxBlocksInFlight - maximum number of published blocks that are not parsed yet
+ * @param meterRegistry - registry of the block handling timer
+ */
+class EthBlockCheckpoints(
+    maxBlocksInFlight: Int,
+    meterRegistry: MeterRegistry = EthMetrics.registry
+) {
+    /**
+     * Checkpoint waiting for the blocks
+     * @param number - number of the published block or null if the checkpoint follows previous blocks only
+     * @param hash - hash of the published block
+     * @param publishedAt - time the block was published at in nanoseconds
+     * @param save - saves the checkpoint
+     */
+    private class Entry(val number: BigInteger?, val hash: String?, val publishedAt: Long, val save: () -> Unit) {
+        var parsed = false
+    }
+
+    private val permits = Semaphore(maxBlocksInFlight)
+
+    private val entries = ArrayDeque<Entry>()
+
+    private val blockParsingTimer = EthMetrics.timer(
+        meterRegistry,
+        "eth.chain.block.parsing",
+        "Time from publishing an Ethereum block until its events are emitted by the parser"
+    )
+
+    init {
+        require(maxBlocksInFlight > 0) { "Maximum number of blocks in flight must be positive, got $maxBlocksInFlight" }
+    }
+
+    /**
+     * Registers a block that is about to be published, waits while too many blocks are in flight
+     * @param block - block to publish
+     * @param save - saves the checkpoint of [block] once it and all the previous blocks are parsed
+     */
+    fun publish(block: EthBlock, save: () -> Unit = {}) {
+        permits.acquire()
+        synchronized(this) {
+            entries.add(Entry(block.block.number, block.block.hash, System.nanoTime(), save))
+        }
+    }
+
+    /**
+     * Registers a checkpoint that is saved once all the published blocks are parsed
+     * @param save - saves the checkpoint
+     */
+    @Synchronized
+    fun checkpoint(save: () -> Unit) {
+        entries.add(Entry(null, null, System.nanoTime(), save))
+        drain()
+    }
+
+    /**
+     * Forgets blocks from [fromNumber] on that belong to an abandoned chain branch and registers a checkpoint
+     * @param fromNumber - number of the first abandoned block
+     * @param save - saves the rewound checkpoint once the remaining blocks are parsed
+     */
+    @Synchronized
+    fun rewind(fromNumber: BigInteger, save: () -> Unit) {
+        entries.removeIf { entry -> entry.number != null && entry.number >= fromNumber }
+        checkpoint(save)
+    }
+
+    /**
+     * Called by the parser when it has emitted the events of [block]
+     * @param block - parsed block
+     */
+    fun parsed(block: EthBlock) {
+        permits.release()
+        synchronized(this) {
+            // blocks forgotten by rewind are not found
+            val entry = entries.firstOrNull { entry ->
+                !entry.parsed && entry.number == block.block.number && entry.hash == block.block.hash
+            } ?: return
+            entry.parsed = true
+            blockParsingTimer.record(System.nanoTime() - entry.publishedAt, TimeUnit.NANOSECONDS)
+            drain()
+        }
+    }
+
+    private fun drain() {
+        while (entries.isNotEmpty() && (entries.first.number == null || entries.first.parsed)) {
+            entries.poll().save()
+        }
+    }
+}
@@ -8,18 +8,25 @@ package jp.co.soramitsu.soranet.eth.sidechain
 import com.d3.commons.sidechain.ChainHandler
 import com.d3.commons.sidechain.SideChainEvent
 import com.d3.notifications.event.AckEthWithdrawalProofEvent
+import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.fanout
+import com.github.kittinunf.result.map
+import io.micrometer.core.instrument.MeterRegistry
 import jp.co.soramitsu.iroha.java.Utils
 import jp.co.soramitsu.soranet.eth.abi.AbiDecoder
 import jp.co.soramitsu.soranet.eth.abi.AbiGsonHelper.ETH_PREFIX
+import jp.co.soramitsu.soranet.eth.constants.ERC20_TRANSFER_TOPIC
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
 import jp.co.soramitsu.soranet.eth.mq.EthNotificationMqProducer
 import jp.co.soramitsu.soranet.eth.provider.*
 import mu.KLogging
 import org.web3j.protocol.Web3j
 import org.web3j.protocol.core.methods.response.EthBlock
 import org.web3j.protocol.core.methods.response.Transaction
+import org.web3j.protocol.core.methods.response.TransactionReceipt
 import java.math.BigDecimal
 import java.math.BigInteger
+import java.util.concurrent.TimeUnit
 
 /**
  * Implementation of [ChainHandler] for Ethereum side chain.
@@ -31,75 +38,92 @@ import java.math.BigInteger
  * @param web3 - notary.endpoint of Ethereum client
  * @param ethWalletProvider - provider of observable wallets
  * @param ethTokensProvider - provider of observable tokens
+ * @param receiptFetcher - loader of transaction receipts, one request per transaction by default
+ * @param meterRegistry - registry of the handler metrics
  */
 class EthChainHandler(
-    private val web3: Web3j,
+    web3: Web3j,
     private val masterAddres: String,
     private val ethWalletProvider: EthAddressProvider,
     private val ethTokensProvider: EthTokensProvider,
     private val ethNotificationMqProducer: EthNotificationMqProducer,
-    masterContractAbi: String
+    masterContractAbi: String,
+    private val receiptFetcher: EthReceiptFetcher = Web3jReceiptFetcher(web3),
+    meterRegistry: MeterRegistry = EthMetrics.registry
 ) : ChainHandler<EthBlock> {
 
     private val masterContractAbiDecoder = AbiDecoder()
+    private val parseTimer = EthMetrics.timer(meterRegistry, "eth.block.parse", "Time of Ethereum block parsing")
+    private val receiptsTimer = EthMetrics.timer(
+        meterRegistry,
+        "eth.receipts.fetch",
+        "Time of loading receipts of an Ethereum block"
+    )
+    private val eventsCounter = EthMetrics.counter(
+        meterRegistry,
+        "eth.block.events",
+        "Number of deposit events found in Ethereum blocks"
+    )
+
+    /** Master address as a log topic */
+    private val masterTopic = ETH_PREFIX + "0".repeat(24) + masterAddres.removePrefix(ETH_PREFIX)
+
+    /** Reader of the Iroha transaction hash of withdrawal calls */
+    private val withdrawalTxHashProjection: AbiDecoder.AbiProjection
 
     init {
         logger.info { "Initialization of EthChainHandler with master $masterAddres" }
         masterContractAbiDecoder.addAbi(masterContractAbi)
+        withdrawalTxHashProjection = masterContractAbiDecoder.projection(
+            listOf(abiXorWithdrawalMethodName, abiOtherWithdrawalMethodName),
+            txHashAbiParameterName to txHashAbiParameterType
+        )
     }
 
     /**
      * Process Ethereum ERC20 tokens
      * @param tx transaction in block
+     * @param receipt receipt of [tx] that contains data about solidity function execution
      * @return list of notary events on ERC20 deposit
      */
     private fun handleErc20(
         tx: Transaction,
+        receipt: TransactionReceipt,
         time: BigInteger,
-        wallets: Map<String, String>,
+        wallets: EthWalletIndex.Snapshot,
         tokenName: String,
         isIrohaAnchored: Boolean
     ): List<SideChainEvent.PrimaryBlockChainEvent> {
         logger.info { "Handle ERC20 tx ${tx.hash}" }
 
-        // get receipt that contains data about solidity function execution
-        val receipt = web3.ethGetTransactionReceipt(tx.hash).send()
-
         // if tx is committed successfully
-        if (receipt.transactionReceipt.get().isStatusOK) {
-            return receipt.transactionReceipt.get().logs
+        if (receipt.isStatusOK) {
+            return receipt.logs
                 .filter {
                     // filter out transfer
                     // the first topic is a hashed representation of a transfer signature call (the scary string)
-                    it.topics[0] == "0xddf252ad1be2c89b69c2b068fc378daa952ba7f163c4a11628f55a4df523b3ef"
+                    it.topics[0] == ERC20_TRANSFER_TOPIC
                 }
-                .filter {
+                // second and third topics are addresses from and to
+                // transfer from wallet to master, topics are matched without building addresses
+                .filter { masterTopic.equals(it.topics[2], ignoreCase = true) }
+                .mapNotNull { log -> wallets.getByTopic(log.topics[1])?.let { clientId -> Pair(log, clientId) } }
+                .filter { (log, _) ->
                     // check if amount > 0
-                    if (BigInteger(it.data.drop(2), 16) > BigInteger.ZERO) {
+                    if (BigInteger(log.data.drop(2), 16) > BigInteger.ZERO) {
                         true
                     } else {
                         logger.warn { "Transaction ${tx.hash} from Ethereum with 0 ERC20 amount" }
                         false
                     }
                 }
-                .filter {
-                    // second and third topics are addresses from and to
-                    val from = ETH_PREFIX + it.topics[1].drop(26).toLowerCase()
-                    val to = ETH_PREFIX + it.topics[2].drop(26).toLowerCase()
-                    // transfer from wallet to master or deposit to relay
-                    to == masterAddres && wallets.containsKey(from)
-                }
-                .map {
+                .map { (log, clientId) ->
                     ethTokensProvider.getTokenPrecision(tokenName)
                         .fold(
                             { precision ->
-                                // second and third topics are addresses from and to
-                                val from = ETH_PREFIX + it.topics[1].drop(26).toLowerCase()
-                                val to = ETH_PREFIX + it.topics[2].drop(26).toLowerCase()
+                                val from = ETH_PREFIX + log.topics[1].drop(26).toLowerCase()
                                 // amount of transfer is stored in data
-                                val amount = BigInteger(it.data.drop(2), 16)
-
-                                val clientId = wallets[from]!!
+                                val amount = BigInteger(log.data.drop(2), 16)
 
                                 val hashToSave = tx.hash.replace(ETH_PREFIX, "")
                                 if (isIrohaAnchored)
@@ -132,18 +156,18 @@ class EthChainHandler(
     /**
      * Process Ether deposit
      * @param tx transaction in block
+     * @param receipt receipt of [tx]
      * @return list of notary events on Ether deposit
      */
     private fun handleEther(
         tx: Transaction,
+        receipt: TransactionReceipt,
         time: BigInteger,
         clientId: String
     ): List<SideChainEvent.PrimaryBlockChainEvent> {
         logger.info { "Handle Ethereum tx ${tx.hash}" }
 
-        val receipt = web3.ethGetTransactionReceipt(tx.hash).send()
-
-        return if (!receipt.transactionReceipt.get().isStatusOK) {
+        return if (!receipt.isStatusOK) {
             logger.warn { "Transaction ${tx.hash} from Ethereum has FAIL status" }
             listOf()
         } else if (tx.value <= BigInteger.ZERO) {
@@ -168,46 +192,35 @@ class EthChainHandler(
     /**
      * Tries to parse transaction as a master contract method call
      * @param transaction Ethereum block transaction
+     * @param receipt receipt of [transaction]
      * @return list of notary events on Ethereum withdrawal finalization
      */
     private fun handleWithdrawal(
         transaction: Transaction,
+        receipt: TransactionReceipt,
         time: BigInteger
     ): List<SideChainEvent.PrimaryBlockChainEvent> {
         logger.info { "Handle Ethereum master contract call tx ${transaction.hash}" }
 
-        val receipt = web3.ethGetTransactionReceipt(transaction.hash).send()
-
-        if (!receipt.transactionReceipt.get().isStatusOK) {
+        if (!receipt.isStatusOK) {
             logger.warn { "Transaction ${transaction.hash} from Ethereum has FAIL status" }
         } else {
             try {
-                val decodeMethod = masterContractAbiDecoder.decodeMethod(transaction.input)
-                when (decodeMethod.name) {
-                    abiXorWithdrawalMethodName, abiOtherWithdrawalMethodName -> {
-                        val param = decodeMethod.params.find {
-                            it.name == txHashAbiParameterName &&
-                                    it.type == txHashAbiParameterType
-                        }
-                        if (param == null) {
-                            logger.warn { "Transaction ${transaction.hash} contains unexpected method parameters" }
-                            return emptyList()
-                        }
-                        val irohaTxHash = Utils.toHex(param.value as ByteArray)
-                        ethNotificationMqProducer.enqueue(
-                            AckEthWithdrawalProofEvent(
-                                irohaTxHash,
-                                "$irohaTxHash$withdrawalAckId",
-                                time.toLong(),
-                                transaction.blockNumber.toLong(),
-                                transaction.transactionIndex.toInt()
-                            )
-                        )
-                    }
-                    else -> {
-                        logger.warn { "Transaction ${transaction.hash} contains unexpected method call" }
-                    }
+                val params = withdrawalTxHashProjection.decode(transaction.input)
+                if (params == null) {
+                    logger.warn { "Transaction ${transaction.hash} contains unexpected method call" }
+                    return emptyList()
                 }
+                val irohaTxHash = Utils.toHex(params[0])
+                ethNotificationMqProducer.enqueue(
+                    AckEthWithdrawalProofEvent(
+                        irohaTxHash,
+                        "$irohaTxHash$withdrawalAckId",
+                        time.toLong(),
+                        transaction.blockNumber.toLong(),
+                        transaction.transactionIndex.toInt()
+                    )
+                )
             } catch (e: Exception) {
                 logger.error("An error during contract call processing occured", e)
             }
@@ -216,65 +229,142 @@ class EthChainHandler(
         return emptyList()
     }
 
+    /**
+     * Choose how to handle [transaction]
+     * @return kind of the transaction or null if the transaction is not interesting
+     */
+    private fun classify(
+        transaction: Transaction,
+        wallets: EthWalletIndex.Snapshot,
+        ethAnchoredTokens: Map<String, String>,
+        irohaAnchoredTokens: Map<String, String>
+    ): TransactionKind? {
+        val toAddress = transaction.to ?: return null
+        return when {
+            // TODO think how to proof withdrawals for other ERC20 if needed
+            transaction.input != ETH_PREFIX && toAddress == masterAddres -> {
+                logger.info { "Contract method call of master $masterAddres" }
+                TransactionKind.Withdrawal
+            }
+            transaction.input == ETH_PREFIX && toAddress == masterAddres &&
+                    transaction.from?.let { wallets.containsKey(it) } == true -> {
+                val account = wallets.getValue(transaction.from)
+                logger.info { "Ether deposit from wallet ${transaction.from} ($account) to master $masterAddres" }
+                TransactionKind.EtherDeposit(account)
+            }
+            ethAnchoredTokens.containsKey(toAddress) ->
+                TransactionKind.Erc20Deposit(ethAnchoredTokens[toAddress]!!, false)
+            irohaAnchoredTokens.containsKey(toAddress) ->
+                TransactionKind.Erc20Deposit(irohaAnchoredTokens[toAddress]!!, true)
+            else -> null
+        }
+    }
+
     /**
      * Parse [EthBlock] for transactions.
      * @return List of transation we are interested in
      */
-    override fun parseBlock(block: EthBlock): List<SideChainEvent.PrimaryBlockChainEvent> {
+    override fun parseBlock(block: EthBlock): List<SideChainEvent.PrimaryBlockChainEvent> =
+        parseBlock(block, takeSnapshot())
+
+    /**
+     * Parse [EthBlock] for transactions with wallets and tokens taken beforehand
+     * @param block - block to parse
+     * @param snapshot - wallets and tokens taken with [takeSnapshot]
+     * @return List of transation we are interested in
+     */
+    fun parseBlock(
+        block: EthBlock,
+        snapshot: Result<EthParsingSnapshot, Exception>
+    ): List<SideChainEvent.PrimaryBlockChainEvent> {
+        val start = System.nanoTime()
+        val events = snapshot.fold(
+            { parseBlockEvents(block, it) },
+            { ex ->
+                logger.error("Cannot parse block", ex)
+                listOf()
+            }
+        )
+        parseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS)
+        eventsCounter.increment(events.size.toDouble())
+        return events
+    }
+
+    /**
+     * Takes wallets and tokens known at the moment.
+     * Wallets of [EthWalletIndex] are immutable snapshots already, other wallets are indexed every time,
+     * since a wallet may be moved to another account without changing the number of wallets.
+     * @return wallets and tokens to parse blocks with
+     */
+    fun takeSnapshot(): Result<EthParsingSnapshot, Exception> {
+        // both token lists are taken from one snapshot, so a token registered in between is not half seen
+        val tokens = Result.of { ethTokensProvider.getTokensSnapshot() }
+        return ethWalletProvider.getAddresses().fanout { tokens }
+            .map { (wallets, tokens) ->
+                val walletsSnapshot = if (wallets is EthWalletIndex.Snapshot) {
+                    wallets
+                } else {
+                    EthWalletIndex.of(wallets).snapshot()
+                }
+                EthParsingSnapshot(walletsSnapshot, tokens.ethAnchoredTokens, tokens.irohaAnchoredTokens)
+            }
+    }
+
+    private fun parseBlockEvents(
+        block: EthBlock,
+        snapshot: EthParsingSnapshot
+    ): List<SideChainEvent.PrimaryBlockChainEvent> {
         logger.info { "Ethereum chain handler for block ${block.block.number}" }
         // Eth time in seconds, convert ot milliseconds
         val time = block.block.timestamp.multiply(thousand)
-        val addresses = ethWalletProvider.getAddresses()
-        val tokens = ethTokensProvider.getEthAnchoredTokens().fanout {
-            ethTokensProvider.getIrohaAnchoredTokens()
+        val wallets = snapshot.wallets
+        // select transactions of interest first in order to load all their receipts at once
+        val interesting = block.block.transactions
+            .map { it.get() as Transaction }
+            .mapNotNull { transaction ->
+                classify(transaction, wallets, snapshot.ethAnchoredTokens, snapshot.irohaAnchoredTokens)
+                    ?.let { kind -> Pair(transaction, kind) }
+            }
+        val receipts = receiptsTimer.recordCallable {
+            receiptFetcher.getReceipts(interesting.map { (transaction, _) -> transaction.hash })
         }
-        return addresses.fanout { tokens }
-            .fold(
-                { (wallets, tokens) ->
-                    val (ethAnchoredTokens, irohaAnchoredTokens) = tokens
-                    block.block.transactions
-                        .map { it.get() as Transaction }
-                        .flatMap { transaction ->
-                            val toAddress = transaction.to
-                            if (toAddress != null) {
-                                when {
-                                    // TODO think how to proof withdrawals for other ERC20 if needed
-                                    transaction.input != ETH_PREFIX && toAddress == masterAddres -> {
-                                        logger.info { "Contract method call of master $masterAddres" }
-                                        handleWithdrawal(transaction, time)
-                                    }
-                                    transaction.input == ETH_PREFIX && wallets.containsKey(transaction.from) && toAddress == masterAddres -> {
-                                        val account = wallets[transaction.from]!!
-                                        logger.info { "Ether deposit from wallet ${transaction.from} ($account) to master $masterAddres" }
-                                        handleEther(transaction, time, account)
-                                    }
-                                    ethAnchoredTokens.containsKey(toAddress) -> {
-                                        handleErc20(
-                                            transaction,
-                                            time,
-                                            wallets,
-                                            ethAnchoredTokens[toAddress]!!,
-                                            false
-                                        )
-                                    }
-                                    irohaAnchoredTokens.containsKey(toAddress) -> {
-                                        handleErc20(
-                                            transaction,
-                                            time,
-                                            wallets,
-                                            irohaAnchoredTokens[toAddress]!!,
-                                            true
-                                        )
-                                    }
-                                    else -> listOf()
-                                }
-                            } else listOf()
-                        }
-                }, { ex ->
-                    logger.error("Cannot parse block", ex)
-                    listOf()
-                }
-            )
+        return interesting.flatMap { (transaction, kind) ->
+            val receipt = receipts[transaction.hash]
+                ?: throw IllegalStateException("No receipt for Ethereum transaction ${transaction.hash}")
+            when (kind) {
+                is TransactionKind.Withdrawal -> handleWithdrawal(transaction, receipt, time)
+                is TransactionKind.EtherDeposit -> handleEther(transaction, receipt, time, kind.clientId)
+                is TransactionKind.Erc20Deposit -> handleErc20(
+                    transaction,
+                    receipt,
+                    time,
+                    wallets,
+                    kind.tokenName,
+                    kind.isIrohaAnchored
+                )
+            }
+        }
+    }
+
+    /**
+     * Wallets and tokens a block is parsed with
+     * @param wallets - map (wallet -> Iroha account id) of registered wallets
+     * @param ethAnchoredTokens - map (token address -> asset id) of tokens anchored in Ethereum
+     * @param irohaAnchoredTokens - map (token address -> asset id) of tokens anchored in Iroha
+     */
+    class EthParsingSnapshot(
+        val wallets: EthWalletIndex.Snapshot,
+        val ethAnchoredTokens: Map<String, String>,
+        val irohaAnchoredTokens: Map<String, String>
+    )
+
+    /**
+     * Kinds of transactions the handler is interested in
+     */
+    private sealed class TransactionKind {
+        object Withdrawal : TransactionKind()
+        data class EtherDeposit(val clientId: String) : TransactionKind()
+        data class Erc20Deposit(val tokenName: String, val isIrohaAnchored: Boolean) : TransactionKind()
     }
 
     /**
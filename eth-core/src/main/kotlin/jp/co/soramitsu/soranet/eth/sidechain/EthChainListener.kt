@@ -9,21 +9,40 @@ import com.d3.commons.sidechain.ChainListener
 import com.d3.commons.sidechain.provider.LastReadBlockProvider
 import com.d3.commons.util.createPrettySingleThreadPool
 import com.github.kittinunf.result.Result
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
 import io.reactivex.Observable
 import io.reactivex.schedulers.Schedulers
 import io.reactivex.subjects.PublishSubject
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
+import jp.co.soramitsu.soranet.eth.provider.LastReadBlockHashProvider
 import mu.KLogging
 import org.web3j.protocol.Web3j
 import org.web3j.protocol.core.DefaultBlockParameter
+import org.web3j.protocol.core.DefaultBlockParameterName
 import org.web3j.protocol.core.methods.response.EthBlock
 import java.math.BigInteger
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.system.exitProcess
 
 /**
  * Implementation of [ChainListener] for Ethereum sidechain
  * @param web3 - notary.endpoint of Ethereum client
  * @param confirmationPeriod - number of block to consider block final
+ * @param catchUpWindowSize - maximum number of blocks loaded concurrently while catching up with the chain
+ * @param reorgBufferSize - number of the last processed block headers kept to detect chain reorganisations
+ * @param headsSource - source of new chain heads, heads are polled with [web3] if not set
+ * @param blockScreen - pre-screening of block headers, blocks are always loaded with transactions if not set
+ * @param checkpoints - checkpoints of blocks parsed asynchronously,
+ * the last read block is saved as soon as subscribers return from a published block if not set
+ * @param meterRegistry - registry of the listener metrics
  */
 class EthChainListener(
     private val web3: Web3j,
@@ -31,7 +50,13 @@ class EthChainListener(
     startBlock: BigInteger,
     private val lastReadBlockProvider: LastReadBlockProvider,
     private val ignoreStartBlock: Boolean,
-    private val customHealthIndicator: AtomicBoolean
+    private val customHealthIndicator: AtomicBoolean,
+    private val catchUpWindowSize: Int = 1,
+    reorgBufferSize: Int = DEFAULT_REORG_BUFFER_SIZE,
+    private val headsSource: EthHeadsSource? = null,
+    private val blockScreen: LogsBloomBlockScreen? = null,
+    private val checkpoints: EthBlockCheckpoints? = null,
+    meterRegistry: MeterRegistry = EthMetrics.registry
 ) : ChainListener<EthBlock> {
 
     /** Keep counting blocks to prevent double emitting in case of chain reorganisation */
@@ -39,24 +64,59 @@ class EthChainListener(
         private set
 
     private val scheduler = Schedulers.from(createPrettySingleThreadPool("eth-deposit", "eth-event-handler"))
+    /** Blocks are loaded in the listener thread if they are loaded one by one */
+    private val catchUpExecutor = if (catchUpWindowSize > 1) {
+        Executors.newFixedThreadPool(catchUpWindowSize, catchUpThreadFactory())
+    } else {
+        null
+    }
     private val ethBlocksSubject: PublishSubject<EthBlock> = PublishSubject.create()
+    private val reorgSubject: PublishSubject<ChainReorgEvent> = PublishSubject.create()
+    private val headers = BlockHeaderBuffer(reorgBufferSize)
+
+    /** Blocks are loaded with full transactions only if they are not screened */
+    private val fullTransactions = blockScreen == null
     private val ethBlocksObservable = ethBlocksSubject.share().subscribeOn(scheduler).doOnSubscribe {
         runBlockSubjectProducer()
     }
 
+    /** Number of the last chain head seen */
+    private val headBlockNumber = AtomicLong()
+    private val blockHandlingTimer = EthMetrics.timer(
+        meterRegistry,
+        "eth.chain.block.handling",
+        "Time spent by subscribers on a published Ethereum block"
+    )
+
     init {
+        require(catchUpWindowSize > 0) { "Catch up window size must be positive, got $catchUpWindowSize" }
+        Gauge.builder("eth.chain.head", headBlockNumber) { it.get().toDouble() }
+            .description("Number of the last Ethereum chain head seen")
+            .register(meterRegistry)
+        Gauge.builder("eth.chain.blocks.behind", this) { it.blocksBehind().toDouble() }
+            .description("Number of confirmed Ethereum blocks that are not published yet")
+            .register(meterRegistry)
         logger.info {
             "Init EthChainListener. Start with block number $lastBlockNumber, " +
-                    "confirmation period $confirmationPeriod" + " and ignorance of first block: $ignoreStartBlock"
+                    "confirmation period $confirmationPeriod, catch up window $catchUpWindowSize" +
+                    " and ignorance of first block: $ignoreStartBlock"
         }
     }
 
     override fun getBlockObservable(): Result<Observable<EthBlock>, Exception> =
         Result.of { ethBlocksObservable }
 
+    /**
+     * @return observable of detected chain reorganisations.
+     * Blocks of the new branch are emitted by the block observable right after the event.
+     */
+    fun getReorgObservable(): Observable<ChainReorgEvent> = reorgSubject
+
     private fun runBlockSubjectProducer() {
         if (ignoreStartBlock) {
-            lastBlockNumber = web3.blockFlowable(true).toObservable().blockingFirst().block.number
+            lastBlockNumber = web3.blockFlowable(fullTransactions).toObservable().blockingFirst().block.number
+        } else {
+            restoreLastBlockHeader()
         }
         getEthBlockObservable()
             .observeOn(scheduler)
@@ -65,26 +125,62 @@ class EthChainListener(
             .filter { lastBlockNumber <= it.block.number }
             .subscribe({ topBlock ->
                 logger.info { "Ethereum chain listener got block ${topBlock.block.number}" }
+                headBlockNumber.set(topBlock.block.number.toLong())
 
                 customHealthIndicator.set(true)
 
                 val topBlockNumber = topBlock.block.number.minus(confirmationPeriod)
-                while (lastBlockNumber < topBlockNumber) {
-                    val block = web3.ethGetBlockByNumber(
-                        DefaultBlockParameter.valueOf(lastBlockNumber), true
-                    ).send()
-
-                    logger.info { "Ethereum chain listener loaded block ${block.block.number}" }
-
-                    publishEthBlockAndSaveHeight(block)
+                var block = screen(topBlock)
+                catchUp(topBlockNumber)
+                while (!publishEthBlockAndSaveHeight(block)) {
+                    catchUp(topBlockNumber)
+                    // the top block may belong to the abandoned branch
+                    block = loadBlock(block.block.number)
                 }
-                publishEthBlockAndSaveHeight(topBlock)
             }, { ex ->
                 logger.error("Ethereum blocks observable error", ex)
                 exitProcess(1)
             })
     }
 
+    /**
+     * Loads and publishes all the blocks below [topBlockNumber] that have not been read yet.
+     * Up to [catchUpWindowSize] blocks are requested concurrently, but they are published strictly in height order.
+     */
+    private fun catchUp(topBlockNumber: BigInteger) {
+        if (catchUpExecutor == null) {
+            while (lastBlockNumber < topBlockNumber) {
+                val block = loadBlock(lastBlockNumber)
+                logger.info { "Ethereum chain listener loaded block ${block.block.number}" }
+                publishEthBlockAndSaveHeight(block)
+            }
+            return
+        }
+        val inFlight = ArrayDeque<Future<EthBlock>>()
+        var nextToLoad = lastBlockNumber
+        try {
+            while (lastBlockNumber < topBlockNumber) {
+                while (inFlight.size < catchUpWindowSize && nextToLoad < topBlockNumber) {
+                    val blockNumber = nextToLoad
+                    inFlight.add(catchUpExecutor.submit(Callable { loadBlock(blockNumber) }))
+                    nextToLoad = nextToLoad.inc()
+                }
+                val block = inFlight.poll().get()
+
+                logger.info { "Ethereum chain listener loaded block ${block.block.number}" }
+
+                if (!publishEthBlockAndSaveHeight(block)) {
+                    // blocks in flight belong to the abandoned branch
+                    inFlight.forEach { it.cancel(true) }
+                    inFlight.clear()
+                    nextToLoad = lastBlockNumber
+                }
+            }
+        } finally {
+            inFlight.forEach { it.cancel(true) }
+        }
+    }
+
     /**
      * @return a block as soon as it is committed to Ethereum
      */
@@ -94,27 +190,141 @@ class EthChainListener(
 
     override fun close() {
         scheduler.shutdown()
+        catchUpExecutor?.shutdownNow()
         web3.shutdown()
     }
 
     /**
-     * Rethrows an EthBlock into target publish subject and saves last read block value
+     * Rethrows an EthBlock into target publish subject and saves last read block value.
+     * The block is not published if its parent is not the buffered block at the previous height,
+     * the listener is rewound instead.
+     * @return true if the block has been published, false if the chain has been reorganised
+     */
+    private fun publishEthBlockAndSaveHeight(ethBlock: EthBlock): Boolean {
+        val header = BlockHeader(ethBlock.block)
+        val parent = headers.get(header.number.dec())
+        if (parent != null && !parent.hash.equals(header.parentHash, ignoreCase = true)) {
+            rewind(header)
+            return false
+        }
+        if (checkpoints == null) {
+            blockHandlingTimer.record(Runnable { ethBlocksSubject.onNext(ethBlock) })
+            headers.add(header)
+            saveHeight(header.number.inc(), header.hash)
+        } else {
+            // the height is saved once the parser has emitted the events of the block
+            checkpoints.publish(ethBlock) { persistHeight(header.number.inc(), header.hash) }
+            ethBlocksSubject.onNext(ethBlock)
+            headers.add(header)
+            lastBlockNumber = header.number.inc()
+        }
+        return true
+    }
+
+    /**
+     * Finds the last buffered block that is still in the chain, rewinds the listener to the next block
+     * and raises [ChainReorgEvent]
+     * @param detectedBy - header of the block whose parent doesn't match
      */
-    private fun publishEthBlockAndSaveHeight(ethBlock: EthBlock) {
-        ethBlocksSubject.onNext(ethBlock)
-        val height = ethBlock.block.number.inc()
-        lastReadBlockProvider.saveLastBlockHeight(height)
+    private fun rewind(detectedBy: BlockHeader) {
+        val ancestor = headers.newestFirst().firstOrNull { header ->
+            loadBlockHash(header.number).equals(header.hash, ignoreCase = true)
+        }
+        val forkBlockNumber = ancestor?.number?.inc() ?: headers.first!!.number
+        val orphanedBlocks = headers.rewindTo(forkBlockNumber)
+        val event = ChainReorgEvent(forkBlockNumber, orphanedBlocks, detectedBy, ancestor != null)
+        if (ancestor == null) {
+            logger.error {
+                "Ethereum chain reorganisation is deeper than ${orphanedBlocks.size} buffered blocks: $event. " +
+                        "Rewind to the oldest buffered block $forkBlockNumber"
+            }
+        } else {
+            logger.warn { "Ethereum chain reorganisation detected: $event. Rewind to block $forkBlockNumber" }
+        }
+        if (checkpoints == null) {
+            saveHeight(forkBlockNumber, ancestor?.hash)
+        } else {
+            checkpoints.rewind(forkBlockNumber) { persistHeight(forkBlockNumber, ancestor?.hash) }
+            lastBlockNumber = forkBlockNumber
+        }
+        blockScreen?.reset()
+        reorgSubject.onNext(event)
+    }
+
+    private fun saveHeight(height: BigInteger, hash: String?) {
+        persistHeight(height, hash)
         lastBlockNumber = height
     }
 
-    private fun getEthBlockObservable(): Observable<EthBlock> =
-        web3.replayPastAndFutureBlocksFlowable(
-            DefaultBlockParameter.valueOf(lastBlockNumber.plus(confirmationPeriod)),
-            true
+    private fun persistHeight(height: BigInteger, hash: String?) {
+        if (hash != null && lastReadBlockProvider is LastReadBlockHashProvider) {
+            lastReadBlockProvider.saveLastBlock(height, hash)
+        } else {
+            lastReadBlockProvider.saveLastBlockHeight(height)
+        }
+    }
+
+    /**
+     * @return number of confirmed blocks that are not published yet, blocks within the confirmation period
+     * are not counted since they are not published on purpose
+     */
+    private fun blocksBehind() =
+        maxOf(0L, headBlockNumber.get() + 1 - confirmationPeriod.toLong() - lastBlockNumber.toLong())
+
+    private fun loadBlock(number: BigInteger): EthBlock =
+        screen(web3.ethGetBlockByNumber(DefaultBlockParameter.valueOf(number), fullTransactions).send())
+
+    private fun screen(block: EthBlock): EthBlock = blockScreen?.hydrate(block) ?: block
+
+    private fun loadBlockHash(number: BigInteger): String? =
+        web3.ethGetBlockByNumber(DefaultBlockParameter.valueOf(number), false).send().block?.hash
+
+    /**
+     * Puts the header of the last block processed before restart into the buffer,
+     * so the first published block is checked against it
+     */
+    private fun restoreLastBlockHeader() {
+        if (lastReadBlockProvider !is LastReadBlockHashProvider || lastBlockNumber == BigInteger.ZERO) {
+            return
+        }
+        val savedHash = lastReadBlockProvider.getLastBlockHash() ?: return
+        headers.add(BlockHeader(lastBlockNumber.dec(), savedHash, ""))
+    }
+
+    private fun getEthBlockObservable(): Observable<EthBlock> {
+        if (headsSource != null) {
+            // the current head triggers catching up, new heads come from the source
+            return Observable.fromCallable {
+                web3.ethGetBlockByNumber(DefaultBlockParameterName.LATEST, fullTransactions).send()
+            }.concatWith(headsSource.heads(fullTransactions))
+        }
+        var replayFrom = lastBlockNumber.plus(confirmationPeriod)
+        if (catchUpWindowSize > 1) {
+            // web3j replays past blocks one by one, so the gap is left to catchUp() that loads it concurrently
+            replayFrom = maxOf(replayFrom, web3.ethBlockNumber().send().blockNumber)
+        }
+        return web3.replayPastAndFutureBlocksFlowable(
+            DefaultBlockParameter.valueOf(replayFrom),
+            fullTransactions
         ).toObservable()
+    }
 
     /**
      * Logger
      */
-    companion object : KLogging()
+    companion object : KLogging() {
+        const val DEFAULT_REORG_BUFFER_SIZE = 128
+
+        private fun catchUpThreadFactory(): ThreadFactory {
+            return object : ThreadFactory {
+                private val threadCounter = AtomicInteger(0)
+                override fun newThread(runnable: Runnable): Thread {
+                    val thread = Executors.defaultThreadFactory().newThread(runnable)
+                    thread.name = "eth-deposit:eth-catch-up:th-${threadCounter.getAndIncrement()}:id-${thread.id}"
+                    thread.isDaemon = true
+                    return thread
+                }
+            }
+        }
+    }
 }
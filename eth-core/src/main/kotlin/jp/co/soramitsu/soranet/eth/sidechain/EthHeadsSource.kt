@@ -0,0 +1,82 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import io.reactivex.Observable
+import io.reactivex.functions.Function
+import mu.KLogging
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.DefaultBlockParameter
+import org.web3j.protocol.core.methods.response.EthBlock
+import org.web3j.protocol.websocket.WebSocketService
+import org.web3j.utils.Numeric
+import java.util.concurrent.TimeUnit
+
+/**
+ * Source of new Ethereum chain heads
+ */
+interface EthHeadsSource {
+
+    /**
+     * @param fullTransactions - true to load blocks with full transactions, false to load transaction hashes only
+     * @return observable of blocks, emitted as soon as they become chain heads
+     */
+    fun heads(fullTransactions: Boolean): Observable<EthBlock>
+}
+
+/**
+ * [EthHeadsSource] that subscribes to `newHeads` over WebSocket.
+ * When the socket drops or cannot be opened, heads are polled over HTTP with [web3]
+ * for [fallbackIntervalMs] milliseconds, then the subscription is tried again.
+ * @param web3 - HTTP client of the same Ethereum node used to load blocks and poll heads
+ * @param wsUrl - WebSocket url of the Ethereum node
+ * @param fallbackIntervalMs - time of HTTP polling before the next WebSocket attempt in milliseconds
+ */
+class WebSocketHeadsSource(
+    private val web3: Web3j,
+    private val wsUrl: String,
+    private val fallbackIntervalMs: Long = DEFAULT_FALLBACK_INTERVAL_MS
+) : EthHeadsSource {
+
+    override fun heads(fullTransactions: Boolean): Observable<EthBlock> =
+        Observable.defer { newHeads(fullTransactions) }
+            .onErrorResumeNext(Function<Throwable, Observable<EthBlock>> { ex ->
+                logger.warn(
+                    "Ethereum WebSocket subscription failed, fall back to HTTP polling for $fallbackIntervalMs ms",
+                    ex
+                )
+                web3.blockFlowable(fullTransactions).toObservable()
+                    .takeUntil(Observable.timer(fallbackIntervalMs, TimeUnit.MILLISECONDS))
+            })
+            .repeat()
+
+    private fun newHeads(fullTransactions: Boolean): Observable<EthBlock> =
+        Observable.using<EthBlock, Web3j>(
+            {
+                Web3j.build(WebSocketService(wsUrl, false).apply { connect() })
+            },
+            { wsWeb3 ->
+                logger.info { "Subscribed to Ethereum heads at $wsUrl" }
+                wsWeb3.newHeadsNotifications().toObservable()
+                    .map { notification -> loadBlock(notification.params.result.number, fullTransactions) }
+            },
+            // stops the web3j scheduler and closes the WebSocket
+            { wsWeb3 -> wsWeb3.shutdown() }
+        )
+
+    private fun loadBlock(number: String, fullTransactions: Boolean): EthBlock =
+        web3.ethGetBlockByNumber(
+            DefaultBlockParameter.valueOf(Numeric.decodeQuantity(number)),
+            fullTransactions
+        ).send()
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        const val DEFAULT_FALLBACK_INTERVAL_MS = 60_000L
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import com.d3.commons.sidechain.ChainListener
+import com.d3.commons.sidechain.provider.LastReadBlockProvider
+import com.d3.commons.util.createPrettySingleThreadPool
+import com.github.kittinunf.result.Result
+import io.reactivex.Observable
+import io.reactivex.disposables.Disposable
+import io.reactivex.schedulers.Schedulers
+import io.reactivex.subjects.PublishSubject
+import jp.co.soramitsu.soranet.eth.constants.ERC20_TRANSFER_TOPIC
+import jp.co.soramitsu.soranet.eth.provider.EthTokensProvider
+import jp.co.soramitsu.soranet.eth.sidechain.util.JsonRpcBatchSender
+import mu.KLogging
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.DefaultBlockParameter
+import org.web3j.protocol.core.JsonRpc2_0Web3j.DEFAULT_BLOCK_TIME
+import org.web3j.protocol.core.methods.request.EthFilter
+import org.web3j.protocol.core.methods.response.EthBlock
+import org.web3j.protocol.core.methods.response.Log
+import org.web3j.protocol.core.methods.response.Transaction
+import java.math.BigInteger
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.system.exitProcess
+
+/**
+ * Implementation of [ChainListener] for Ethereum sidechain that finds interesting blocks with `eth_getLogs`
+ * over ranges of blocks instead of loading every block with all its transactions.
+ *
+ * Interesting transactions are:
+ * 1) ERC20 Transfer events of whitelisted tokens with `to` equal to master address
+ * 2) any master contract events, e.g. Withdrawal
+ * 3) ether transfers to master. The master fallback function emits no event, so such blocks are found by
+ * comparing master balances: ether leaves master only with an event, hence if master has no events in a range
+ * and its balance is the same before and after the range, nothing was deposited there. Otherwise the range
+ * is bisected down to single blocks. Historical balances require an archive node,
+ * if the balance cannot be queried, all the blocks of the range are loaded in bounded batches.
+ *
+ * Only blocks with interesting transactions are loaded and emitted. Blocks with ether candidates are emitted
+ * with all their transactions, other blocks are emitted with matched transactions only.
+ *
+ * @param web3 - notary.endpoint of Ethereum client
+ * @param batchClient - JSON-RPC batch sender of the same Ethereum nodes
+ * @param masterAddress - address of master contract
+ * @param ethTokensProvider - provider of observable tokens
+ * @param confirmationPeriod - number of block to consider block final
+ * @param rangeSize - maximum number of blocks scanned with one `eth_getLogs` request
+ * @param pollingInterval - period of chain head polling in milliseconds
+ * @param checkpoints - checkpoints of blocks parsed asynchronously,
+ * the last read block is saved as soon as subscribers return from published blocks if not set
+ */
+class EthLogsChainListener(
+    private val web3: Web3j,
+    private val batchClient: JsonRpcBatchSender,
+    private val masterAddress: String,
+    private val ethTokensProvider: EthTokensProvider,
+    private val confirmationPeriod: BigInteger,
+    startBlock: BigInteger,
+    private val lastReadBlockProvider: LastReadBlockProvider,
+    private val ignoreStartBlock: Boolean,
+    private val customHealthIndicator: AtomicBoolean,
+    private val rangeSize: Int,
+    private val pollingInterval: Long = DEFAULT_BLOCK_TIME.toLong(),
+    private val checkpoints: EthBlockCheckpoints? = null
+) : ChainListener<EthBlock> {
+
+    /** Keep counting blocks to prevent double emitting in case of chain reorganisation */
+    var lastBlockNumber = maxOf(lastReadBlockProvider.getLastBlockHeight(), startBlock)
+        private set
+
+    private val masterTopic = "0x" + masterAddress.removePrefix("0x").toLowerCase().padStart(64, '0')
+
+    private val scheduler = Schedulers.from(createPrettySingleThreadPool("eth-deposit", "eth-logs-handler"))
+    private val ethBlocksSubject: PublishSubject<EthBlock> = PublishSubject.create()
+    private val ethBlocksObservable = ethBlocksSubject.share().subscribeOn(scheduler).doOnSubscribe {
+        runBlockSubjectProducer()
+    }
+    private var producer: Disposable? = null
+
+    init {
+        require(rangeSize > 0) { "Logs scan range size must be positive, got $rangeSize" }
+        logger.info {
+            "Init EthLogsChainListener. Start with block number $lastBlockNumber, " +
+                    "confirmation period $confirmationPeriod, range size $rangeSize" +
+                    " and ignorance of first block: $ignoreStartBlock"
+        }
+    }
+
+    override fun getBlockObservable(): Result<Observable<EthBlock>, Exception> =
+        Result.of { ethBlocksObservable }
+
+    private fun runBlockSubjectProducer() {
+        if (ignoreStartBlock) {
+            lastBlockNumber = web3.ethBlockNumber().send().blockNumber
+        }
+        producer = Observable.interval(0, pollingInterval, TimeUnit.MILLISECONDS, scheduler)
+            .subscribe({
+                val topBlockNumber = web3.ethBlockNumber().send().blockNumber.minus(confirmationPeriod)
+                customHealthIndicator.set(true)
+                while (lastBlockNumber <= topBlockNumber) {
+                    val to = minOf(topBlockNumber, lastBlockNumber.plus(BigInteger.valueOf(rangeSize - 1L)))
+                    scanRange(lastBlockNumber, to)
+                }
+            }, { ex ->
+                logger.error("Ethereum logs observable error", ex)
+                exitProcess(1)
+            })
+    }
+
+    /**
+     * Finds, loads and publishes interesting blocks in range [[from], [to]]
+     */
+    private fun scanRange(from: BigInteger, to: BigInteger) {
+        val tokens = ethTokensProvider.getTokensSnapshot()
+        val tokenAddresses = tokens.ethAnchoredTokens.keys + tokens.irohaAnchoredTokens.keys
+        val transferLogs = if (tokenAddresses.isEmpty()) {
+            emptyList()
+        } else {
+            getLogs(
+                EthFilter(blockParameter(from), blockParameter(to), tokenAddresses.toList())
+                    .addSingleTopic(ERC20_TRANSFER_TOPIC)
+                    .addNullTopic()
+                    .addSingleTopic(masterTopic)
+            )
+        }
+        val masterLogs = getLogs(EthFilter(blockParameter(from), blockParameter(to), masterAddress))
+        val matchedTransactions = (transferLogs + masterLogs)
+            .groupBy({ it.blockNumber }, { it.transactionHash })
+            .mapValues { (_, hashes) -> hashes.toSet() }
+        val etherCandidates = findEtherCandidates(from, to, masterLogs.map { it.blockNumber }.toSet())
+
+        val blockNumbers = (matchedTransactions.keys + etherCandidates).sorted()
+        logger.info {
+            "Ethereum logs listener scanned blocks [$from, $to]: ${transferLogs.size} token transfers, " +
+                    "${masterLogs.size} master events, ${blockNumbers.size} blocks to load"
+        }
+        // full blocks are loaded and published in bounded batches, a range may consist of candidates only
+        blockNumbers.chunked(MAX_BLOCKS_PER_BATCH).forEach { chunk ->
+            batchClient.sendBatch(
+                "eth_getBlockByNumber",
+                chunk.map { listOf<Any>(blockParameter(it).value, true) },
+                EthBlock::class.java
+            ).forEach { ethBlock -> publish(ethBlock, etherCandidates, matchedTransactions) }
+        }
+        saveHeight(to.inc())
+    }
+
+    /**
+     * Publishes a loaded block, only [matchedTransactions] are left in blocks that are not ether candidates
+     */
+    private fun publish(
+        ethBlock: EthBlock,
+        etherCandidates: Set<BigInteger>,
+        matchedTransactions: Map<BigInteger, Set<String>>
+    ) {
+        if (ethBlock.hasError()) {
+            throw IllegalStateException("Cannot load Ethereum block: ${ethBlock.error.message}")
+        }
+        val number = ethBlock.block.number
+        if (!etherCandidates.contains(number)) {
+            val hashes = matchedTransactions.getValue(number)
+            ethBlock.block.transactions = ethBlock.block.transactions.filter { transaction ->
+                hashes.contains((transaction.get() as Transaction).hash)
+            }
+        }
+        logger.info { "Ethereum logs listener loaded block $number" }
+        checkpoints?.publish(ethBlock)
+        ethBlocksSubject.onNext(ethBlock)
+    }
+
+    /**
+     * Finds blocks in range [[from], [to]] that may contain ether transfers to master
+     * @param masterLogBlocks - blocks with master events
+     */
+    private fun findEtherCandidates(
+        from: BigInteger,
+        to: BigInteger,
+        masterLogBlocks: Set<BigInteger>
+    ): Set<BigInteger> {
+        return try {
+            val balanceBefore = if (from == BigInteger.ZERO) BigInteger.ZERO else getMasterBalance(from.dec())
+            findEtherCandidates(from, to, balanceBefore, getMasterBalance(to), masterLogBlocks).toSet()
+        } catch (e: Exception) {
+            logger.warn(
+                "Cannot check master balance in blocks [$from, $to], all the blocks will be loaded. " +
+                        "Ether deposits detection by logs requires an archive node", e
+            )
+            generateSequence(from) { it.inc() }.takeWhile { it <= to }.toSet()
+        }
+    }
+
+    private fun findEtherCandidates(
+        from: BigInteger,
+        to: BigInteger,
+        balanceBefore: BigInteger,
+        balanceAfter: BigInteger,
+        masterLogBlocks: Set<BigInteger>
+    ): List<BigInteger> {
+        if (balanceBefore == balanceAfter && masterLogBlocks.none { it in from..to }) {
+            return emptyList()
+        }
+        if (from == to) {
+            return listOf(from)
+        }
+        val middle = from.add(to).shiftRight(1)
+        val balanceMiddle = getMasterBalance(middle)
+        return findEtherCandidates(from, middle, balanceBefore, balanceMiddle, masterLogBlocks) +
+                findEtherCandidates(middle.inc(), to, balanceMiddle, balanceAfter, masterLogBlocks)
+    }
+
+    private fun getMasterBalance(blockNumber: BigInteger): BigInteger {
+        val response = web3.ethGetBalance(masterAddress, blockParameter(blockNumber)).send()
+        if (response.hasError()) {
+            throw IllegalStateException("Cannot get master balance at block $blockNumber: ${response.error.message}")
+        }
+        return response.balance
+    }
+
+    private fun getLogs(filter: EthFilter): List<Log> {
+        val response = web3.ethGetLogs(filter).send()
+        if (response.hasError()) {
+            throw IllegalStateException("Cannot get Ethereum logs: ${response.error.message}")
+        }
+        return response.logs.map { it.get() as Log }
+    }
+
+    private fun saveHeight(height: BigInteger) {
+        if (checkpoints == null) {
+            lastReadBlockProvider.saveLastBlockHeight(height)
+        } else {
+            // the height is saved once the parser has emitted the events of the published blocks
+            checkpoints.checkpoint { lastReadBlockProvider.saveLastBlockHeight(height) }
+        }
+        lastBlockNumber = height
+    }
+
+    /**
+     * @return a block as soon as it is committed to Ethereum
+     */
+    override suspend fun getBlock(): EthBlock {
+        return getBlockObservable().get().blockingFirst()
+    }
+
+    override fun close() {
+        producer?.dispose()
+        scheduler.shutdown()
+        web3.shutdown()
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        /** Maximum number of full blocks requested with one JSON-RPC batch */
+        private const val MAX_BLOCKS_PER_BATCH = 32
+
+        private fun blockParameter(number: BigInteger) = DefaultBlockParameter.valueOf(number)
+    }
+}
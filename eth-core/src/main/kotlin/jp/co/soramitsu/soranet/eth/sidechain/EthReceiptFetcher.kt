@@ -0,0 +1,60 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import jp.co.soramitsu.soranet.eth.sidechain.util.JsonRpcBatchSender
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt
+import org.web3j.protocol.core.methods.response.TransactionReceipt
+
+/** Interface of an instance that loads receipts of Ethereum transactions */
+interface EthReceiptFetcher {
+
+    /**
+     * Get receipts of transactions
+     * @param hashes - hashes of transactions
+     * @return map (transaction hash -> receipt). Transactions without receipt are absent.
+     */
+    fun getReceipts(hashes: Collection<String>): Map<String, TransactionReceipt>
+}
+
+/**
+ * [EthReceiptFetcher] that sends a separate `eth_getTransactionReceipt` request for every transaction
+ * @param web3 - notary.endpoint of Ethereum client
+ */
+class Web3jReceiptFetcher(private val web3: Web3j) : EthReceiptFetcher {
+
+    override fun getReceipts(hashes: Collection<String>): Map<String, TransactionReceipt> {
+        return hashes.mapNotNull { hash ->
+            web3.ethGetTransactionReceipt(hash).send().transactionReceipt.orElse(null)?.let { hash to it }
+        }.toMap()
+    }
+}
+
+/**
+ * [EthReceiptFetcher] that loads receipts of all the transactions with one JSON-RPC batch request
+ * @param batchClient - JSON-RPC batch sender of Ethereum nodes
+ */
+class BatchReceiptFetcher(private val batchClient: JsonRpcBatchSender) : EthReceiptFetcher {
+
+    override fun getReceipts(hashes: Collection<String>): Map<String, TransactionReceipt> {
+        if (hashes.isEmpty()) {
+            return emptyMap()
+        }
+        val hashList = hashes.toList()
+        val responses = batchClient.sendBatch(
+            "eth_getTransactionReceipt",
+            hashList.map { listOf<Any>(it) },
+            EthGetTransactionReceipt::class.java
+        )
+        return hashList.zip(responses).mapNotNull { (hash, response) ->
+            if (response.hasError()) {
+                throw IllegalStateException("Cannot get receipt of $hash: ${response.error.message}")
+            }
+            response.transactionReceipt.orElse(null)?.let { hash to it }
+        }.toMap()
+    }
+}
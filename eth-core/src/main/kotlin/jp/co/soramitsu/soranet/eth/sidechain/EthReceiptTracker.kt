@@ -0,0 +1,152 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import io.micrometer.core.instrument.MeterRegistry
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
+import mu.KLogging
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.methods.response.TransactionReceipt
+import org.web3j.protocol.exceptions.TransactionException
+import org.web3j.tx.response.TransactionReceiptProcessor
+import java.math.BigInteger
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Waits for receipts of all the outgoing transactions at once.
+ * Pending transactions are checked with one [receiptFetcher] call per new Ethereum block, newly tracked
+ * transactions are checked on the next poll as well. The chain head is polled only while there are pending
+ * transactions, so the tracker costs nothing when idle.
+ * Used as the receipt processor of web3j transaction managers, it replaces the sleep loop polling every
+ * transaction separately.
+ * @param web3 - Ethereum client to poll the chain head with
+ * @param receiptFetcher - loader of receipts, normally a [BatchReceiptFetcher]
+ * @param scheduler - executor of polls
+ * @param pollIntervalMs - interval of chain head polls in milliseconds
+ * @param timeoutMs - time a transaction is given to be mined in milliseconds
+ * @param meterRegistry - registry of the tracker metrics
+ */
+class EthReceiptTracker(
+    private val web3: Web3j,
+    private val receiptFetcher: EthReceiptFetcher,
+    private val scheduler: ScheduledExecutorService,
+    private val pollIntervalMs: Long,
+    private val timeoutMs: Long,
+    meterRegistry: MeterRegistry = EthMetrics.registry
+) : TransactionReceiptProcessor(web3) {
+
+    /**
+     * Transaction waiting for its receipt
+     * @param deadline - time the transaction is considered lost at
+     */
+    private class Pending(val receipt: CompletableFuture<TransactionReceipt>, val deadline: Long) {
+        /** True once the receipt has been looked for */
+        @Volatile
+        var polled = false
+    }
+
+    private val pending = ConcurrentHashMap<String, Pending>()
+
+    /** True while a poll is scheduled */
+    private var scheduled = false
+
+    /** Chain head seen by the last poll, accessed by the poll only */
+    private var lastBlock: BigInteger? = null
+
+    private val receiptPolls = EthMetrics.counter(
+        meterRegistry,
+        "eth.receipts.polls",
+        "Number of batched receipt polls of outgoing transactions"
+    )
+
+    /**
+     * Starts waiting for the receipt of a sent transaction
+     * @param transactionHash - hash of the transaction
+     * @return receipt, failed with [TransactionException] if the transaction is not mined in time
+     */
+    fun track(transactionHash: String): CompletableFuture<TransactionReceipt> {
+        val receipt = pending.computeIfAbsent(transactionHash) {
+            Pending(CompletableFuture(), System.currentTimeMillis() + timeoutMs)
+        }.receipt
+        schedule()
+        return receipt
+    }
+
+    /**
+     * Waits for the receipt of a sent transaction, called by web3j transaction managers
+     * @throws TransactionException if the transaction is not mined in time
+     */
+    override fun waitForTransactionReceipt(transactionHash: String): TransactionReceipt =
+        try {
+            track(transactionHash).join()
+        } catch (e: CompletionException) {
+            throw e.cause as? Exception ?: e
+        }
+
+    /** Number of transactions waiting for receipts */
+    val pendingCount: Int
+        get() = pending.size
+
+    @Synchronized
+    private fun schedule() {
+        if (!scheduled && pending.isNotEmpty()) {
+            scheduled = true
+            scheduler.schedule({ poll() }, pollIntervalMs, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun poll() {
+        try {
+            val block = web3.ethBlockNumber().send().blockNumber
+            val toPoll = if (block != lastBlock) {
+                lastBlock = block
+                pending.keys.toList()
+            } else {
+                pending.filterValues { !it.polled }.keys.toList()
+            }
+            if (toPoll.isNotEmpty()) {
+                receiptPolls.increment()
+                val receipts = receiptFetcher.getReceipts(toPoll)
+                toPoll.forEach { hash -> pending[hash]?.polled = true }
+                receipts.forEach { (hash, receipt) -> pending.remove(hash)?.receipt?.complete(receipt) }
+                logger.debug { "Got ${receipts.size} of ${toPoll.size} receipts at block $block" }
+            }
+        } catch (e: Exception) {
+            logger.warn("Cannot poll receipts of ${pending.size} transactions", e)
+        } finally {
+            expire()
+            synchronized(this) {
+                scheduled = false
+            }
+            schedule()
+        }
+    }
+
+    private fun expire() {
+        val now = System.currentTimeMillis()
+        pending.entries.removeIf { (hash, transaction) ->
+            val expired = transaction.deadline <= now
+            if (expired) {
+                transaction.receipt.completeExceptionally(
+                    TransactionException(
+                        "Transaction receipt was not generated after ${timeoutMs / 1000} seconds for transaction: $hash",
+                        hash
+                    )
+                )
+            }
+            expired
+        }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import jp.co.soramitsu.soranet.eth.constants.ERC20_TRANSFER_TOPIC
+import jp.co.soramitsu.soranet.eth.metrics.EthMetrics
+import jp.co.soramitsu.soranet.eth.provider.EthTokensProvider
+import mu.KLogging
+import org.web3j.crypto.Hash
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.DefaultBlockParameter
+import org.web3j.protocol.core.methods.response.EthBlock
+import org.web3j.utils.Numeric
+import java.math.BigInteger
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Pre-screens Ethereum blocks by their headers, so full bodies are loaded only for blocks
+ * that may contain transactions the bridge is interested in:
+ * - calls of the master contract, successful withdrawals emit `Withdrawal` from the master address;
+ * - ERC20 transfers to master, the `Transfer` log is emitted by a whitelisted token with master as a topic;
+ * - Ether transfers to master. They leave no logs, so the master balance is compared with the previous block.
+ * Every Ether transfer from master emits `Withdrawal`, hence the balance of a block without master logs
+ * stays the same only if nothing has been sent to master.
+ * Blocks that can't match are published with no transactions.
+ * @param web3 - Ethereum client
+ * @param masterAddress - address of the master contract
+ * @param ethTokensProvider - provider of whitelisted tokens
+ * @param meterRegistry - registry of the screening metrics
+ */
+class LogsBloomBlockScreen(
+    private val web3: Web3j,
+    masterAddress: String,
+    private val ethTokensProvider: EthTokensProvider,
+    meterRegistry: MeterRegistry = EthMetrics.registry
+) {
+    private val masterAddress = masterAddress.toLowerCase()
+    private val masterBits = bloomBits(Numeric.hexStringToByteArray(masterAddress))
+    private val transferTopicBits = bloomBits(Numeric.hexStringToByteArray(ERC20_TRANSFER_TOPIC))
+    private val masterTopicBits = bloomBits(Numeric.toBytesPadded(Numeric.toBigInt(masterAddress), 32))
+
+    /** Bloom bits of token addresses */
+    private val tokenBits = ConcurrentHashMap<String, IntArray>()
+
+    /** Master balances of the last blocks by number */
+    private val balances = object : LinkedHashMap<BigInteger, BigInteger>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<BigInteger, BigInteger>) =
+            size > BALANCES_CACHE_SIZE
+    }
+
+    private val skippedCounter = EthMetrics.counter(
+        meterRegistry,
+        SCREENED_BLOCKS_METRIC,
+        "Number of Ethereum blocks screened by logs bloom",
+        "result", "skipped"
+    )
+    private val loadedCounter = EthMetrics.counter(
+        meterRegistry,
+        SCREENED_BLOCKS_METRIC,
+        "Number of Ethereum blocks screened by logs bloom",
+        "result", "loaded"
+    )
+
+    init {
+        Gauge.builder("eth.blocks.skipped.ratio", this) { it.skippedRatio() }
+            .description("Fraction of Ethereum blocks whose bodies were not loaded")
+            .register(meterRegistry)
+    }
+
+    /**
+     * Loads the body of [block] if it may contain interesting transactions
+     * @param block - block with transaction hashes or full transactions
+     * @return block with full transactions or [block] with no transactions if it can't contain interesting ones
+     */
+    fun hydrate(block: EthBlock): EthBlock {
+        val header = block.block
+        if (!mayContainEvents(header)) {
+            skippedCounter.increment()
+            header.transactions = emptyList()
+            return block
+        }
+        loadedCounter.increment()
+        if (header.transactions.none { it is EthBlock.TransactionHash }) {
+            return block
+        }
+        val fullBlock = web3.ethGetBlockByHash(header.hash, true).send()
+        if (fullBlock.block != null) {
+            return fullBlock
+        }
+        // the block has been orphaned, the listener detects it by the parent hash of the next block
+        logger.warn { "Ethereum block ${header.hash} not found, load block ${header.number}" }
+        return web3.ethGetBlockByNumber(DefaultBlockParameter.valueOf(header.number), true).send()
+    }
+
+    /**
+     * @param header - block header
+     * @return false if the block definitely contains no interesting transactions
+     */
+    fun mayContainEvents(header: EthBlock.Block): Boolean {
+        if (header.transactions.isEmpty()) {
+            return false
+        }
+        val bloom = Numeric.hexStringToByteArray(header.logsBloom)
+        if (contains(bloom, masterBits)) {
+            return true
+        }
+        if (contains(bloom, transferTopicBits) && contains(bloom, masterTopicBits) &&
+            ethTokensProvider.getTokensSnapshot().allTokens.keys.any { contains(bloom, getTokenBits(it)) }
+        ) {
+            return true
+        }
+        return masterBalanceChanged(header.number)
+    }
+
+    /**
+     * Forgets cached balances, must be called when the chain is reorganised
+     */
+    fun reset() {
+        synchronized(balances) { balances.clear() }
+    }
+
+    private fun skippedRatio(): Double {
+        val total = skippedCounter.count() + loadedCounter.count()
+        return if (total == 0.0) 0.0 else skippedCounter.count() / total
+    }
+
+    private fun getTokenBits(tokenAddress: String) =
+        tokenBits.computeIfAbsent(tokenAddress.toLowerCase()) { bloomBits(Numeric.hexStringToByteArray(it)) }
+
+    private fun masterBalanceChanged(number: BigInteger): Boolean {
+        if (number == BigInteger.ZERO) {
+            return true
+        }
+        return try {
+            getBalance(number) != getBalance(number.dec())
+        } catch (e: Exception) {
+            // state of old blocks may be pruned by the node
+            logger.warn { "Cannot get master balance at block $number, the block is loaded: ${e.message}" }
+            true
+        }
+    }
+
+    private fun getBalance(number: BigInteger): BigInteger {
+        synchronized(balances) { balances[number] }?.let { return it }
+        val response = web3.ethGetBalance(masterAddress, DefaultBlockParameter.valueOf(number)).send()
+        if (response.hasError()) {
+            throw IllegalStateException(response.error.message)
+        }
+        val balance = response.balance
+        synchronized(balances) { balances[number] = balance }
+        return balance
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private const val SCREENED_BLOCKS_METRIC = "eth.blocks.screened"
+        private const val BALANCES_CACHE_SIZE = 256
+        private const val BLOOM_BITS = 2048
+
+        /**
+         * @return indices of the 3 bits set in a logs bloom for [value]
+         */
+        fun bloomBits(value: ByteArray): IntArray {
+            val hash = Hash.sha3(value)
+            return IntArray(3) { i ->
+                ((hash[i * 2].toInt() and 0xff shl 8) or (hash[i * 2 + 1].toInt() and 0xff)) and (BLOOM_BITS - 1)
+            }
+        }
+
+        /**
+         * @return true if all the [bits] are set in [bloom]
+         */
+        fun contains(bloom: ByteArray, bits: IntArray) = bits.all { bit ->
+            // bits are numbered from the last byte of the big-endian bloom
+            bloom[bloom.size - 1 - bit / 8].toInt() and (1 shl (bit % 8)) != 0
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import com.d3.commons.sidechain.SideChainEvent
+import com.github.kittinunf.result.Result
+import io.reactivex.Observable
+import io.reactivex.schedulers.Schedulers
+import org.web3j.protocol.core.methods.response.EthBlock
+import java.util.concurrent.ExecutorService
+
+/**
+ * Parses a window of consecutive Ethereum blocks concurrently, so receipts of the next blocks are loaded
+ * while the previous ones are still being parsed. Events are emitted strictly in block order.
+ * The snapshot of wallets and tokens is taken for every block in block order when the block starts parsing,
+ * hence a block is never parsed with an older snapshot than the block before it.
+ * @param ethChainHandler - parser of a single block
+ * @param windowSize - maximum number of blocks parsed at once, 1 parses blocks one after another
+ * @param executorService - executor of block parsing
+ * @param onBlockParsed - called with every block once its events are emitted
+ */
+class ParallelBlockParser(
+    private val ethChainHandler: EthChainHandler,
+    private val windowSize: Int,
+    executorService: ExecutorService,
+    private val onBlockParsed: (EthBlock) -> Unit = {}
+) {
+    private val scheduler = Schedulers.from(executorService)
+
+    init {
+        require(windowSize > 0) { "Window size must be positive, got $windowSize" }
+    }
+
+    /**
+     * @param blocks - observable of consecutive blocks
+     * @return observable of events of [blocks] in block order
+     */
+    fun parse(blocks: Observable<EthBlock>): Observable<SideChainEvent.PrimaryBlockChainEvent> =
+        blocks
+            .concatMapEager({ block ->
+                // mapper is called in block order, so are the snapshots
+                val snapshot = ethChainHandler.takeSnapshot()
+                // failures are rethrown in block order, after the events of the previous blocks
+                Observable.fromCallable { Result.of { block to ethChainHandler.parseBlock(block, snapshot) } }
+                    .subscribeOn(scheduler)
+            }, windowSize, 1)
+            .concatMap { result ->
+                val (block, events) = result.get()
+                Observable.fromIterable(events).doOnComplete { onBlockParsed(block) }
+            }
+}
@@ -54,15 +54,7 @@ fun hashToWithdraw(
     accountAddress: String,
     irohaHash: String,
     from: String
-): String {
-    return Hash.sha3(
-        tokenAddress.replace("0x", "")
-                + String.format("%064x", BigInteger(amount)).replace("0x", "")
-                + accountAddress.replace("0x", "")
-                + irohaHash.replace("0x", "")
-                + from.replace("0x", "")
-    )
-}
+): String = packedHash(tokenAddress, amount, accountAddress, irohaHash, from)
 
 /**
  * Calculates keccak-256 hash of several params concatenation. Params are:
@@ -95,14 +87,40 @@ fun hashToMint(
     beneficiary: String,
     irohaHash: String,
     from: String
+): String = packedHash(tokenAddress, amount, beneficiary, irohaHash, from)
+
+/** Encoders of [packedHash], one per thread */
+private val packedKeccakEncoder = ThreadLocal.withInitial { PackedKeccakEncoder() }
+
+/**
+ * Calculates keccak-256 hash of address, uint256 amount, address, bytes32 hash and address packed together.
+ * Well-formed fields are encoded directly to bytes, anything else goes through the hex string concatenation.
+ */
+private fun packedHash(
+    address: String,
+    amount: String,
+    beneficiary: String,
+    irohaHash: String,
+    from: String
 ): String {
-    return Hash.sha3(
-        tokenAddress.replace("0x", "")
-                + String.format("%064x", BigInteger(amount)).replace("0x", "")
-                + beneficiary.replace("0x", "")
-                + irohaHash.replace("0x", "")
-                + from.replace("0x", "")
-    )
+    return try {
+        packedKeccakEncoder.get()
+            .reset()
+            .putHex(address)
+            .putUint256(amount)
+            .putHex(beneficiary)
+            .putHex(irohaHash)
+            .putHex(from)
+            .keccak()
+    } catch (e: IllegalArgumentException) {
+        Hash.sha3(
+            address.replace("0x", "")
+                    + String.format("%064x", BigInteger(amount)).replace("0x", "")
+                    + beneficiary.replace("0x", "")
+                    + irohaHash.replace("0x", "")
+                    + from.replace("0x", "")
+        )
+    }
 }
 
 /**
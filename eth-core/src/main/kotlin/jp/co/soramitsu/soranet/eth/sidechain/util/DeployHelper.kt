@@ -10,6 +10,8 @@ import jp.co.soramitsu.soranet.eth.config.EthereumConfig
 import jp.co.soramitsu.soranet.eth.config.EthereumPasswords
 import jp.co.soramitsu.soranet.eth.contract.*
 import jp.co.soramitsu.soranet.eth.helper.encodeFunction
+import jp.co.soramitsu.soranet.eth.sidechain.BatchReceiptFetcher
+import jp.co.soramitsu.soranet.eth.sidechain.EthReceiptTracker
 import mu.KLogging
 import okhttp3.*
 import org.web3j.abi.datatypes.Address
@@ -23,15 +25,22 @@ import org.web3j.crypto.WalletUtils
 import org.web3j.protocol.Web3j
 import org.web3j.protocol.core.DefaultBlockParameterName
 import org.web3j.protocol.core.JsonRpc2_0Web3j.DEFAULT_BLOCK_TIME
-import org.web3j.protocol.http.HttpService
+import org.web3j.protocol.core.RemoteFunctionCall
+import org.web3j.protocol.core.methods.response.TransactionReceipt
+import org.web3j.protocol.exceptions.TransactionException
+import org.web3j.tx.ChainIdLong
 import org.web3j.tx.RawTransactionManager
 import org.web3j.tx.Transfer
 import org.web3j.tx.gas.DefaultGasProvider
 import org.web3j.tx.gas.StaticGasProvider
+import org.web3j.tx.response.TransactionReceiptProcessor
 import org.web3j.utils.Convert
+import java.io.Closeable
 import java.io.IOException
 import java.math.BigDecimal
 import java.math.BigInteger
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
 
 const val ENDPOINT_ETHEREUM = "eth"
@@ -95,7 +104,7 @@ class DeployHelperBuilder(
         deployHelper.defaultTransactionManager = AttemptsCustomizableFastRawTransactionManager(
             deployHelper.web3,
             credentials,
-            attempts
+            deployHelper.receiptTracker
         )
         return this
     }
@@ -106,7 +115,9 @@ class DeployHelperBuilder(
 }
 
 /**
- * Helper class for contracts deploying
+ * Helper class for contracts deploying.
+ * Holds an Ethereum client with its own connection pool and executor, so a long-living service
+ * is expected to create one instance, share it and [close] it on shutdown.
  * @param ethereumConfig config with Ethereum network parameters
  * @param nodeLogin - Ethereum node login
  * @param nodePassword
@@ -118,7 +129,7 @@ class DeployHelper(
     nodePassword: String?,
     val credentials: org.web3j.crypto.Credentials,
     attempts: Int = ATTEMPTS_DEFAULT
-) {
+) : Closeable {
     /**
      * Helper class for contracts deploying
      * @param ethereumConfig config with Ethereum network parameters
@@ -138,19 +149,36 @@ class DeployHelper(
 
     val web3: Web3j
 
+    /** Tracker of receipts of all the transactions sent by the helper */
+    val receiptTracker: EthReceiptTracker
+
+    private val httpClient: OkHttpClient
+
+    /** Executor of web3j polls, shared by [receiptTracker] */
+    private val scheduler = createPrettyScheduledThreadPool(DeployHelper::class.simpleName!!, "web3j")
+
+    /** Loaded Master contract wrappers by address */
+    private val masterContracts = ConcurrentHashMap<String, Master>()
+
     init {
         val builder = OkHttpClient().newBuilder()
         builder.authenticator(BasicAuthenticator(nodeLogin, nodePassword))
         builder.readTimeout(1200, TimeUnit.SECONDS)
         builder.writeTimeout(1200, TimeUnit.SECONDS)
-        web3 = Web3j.build(
-            HttpService(ethereumConfig.url, builder.build(), false), DEFAULT_BLOCK_TIME.toLong(),
-            createPrettyScheduledThreadPool(DeployHelper::class.simpleName!!, "web3j")
+        httpClient = builder.build()
+        val service = PooledWeb3jService.http(ethereumConfig.url, httpClient, ethereumConfig.readHedgeDelayMs)
+        web3 = Web3j.build(service, DEFAULT_BLOCK_TIME.toLong(), scheduler)
+        receiptTracker = EthReceiptTracker(
+            web3,
+            BatchReceiptFetcher(service),
+            scheduler,
+            DEFAULT_BLOCK_TIME.toLong(),
+            attempts.toLong() * DEFAULT_BLOCK_TIME
         )
     }
 
     /** transaction manager */
-    var defaultTransactionManager = RawTransactionManager(web3, credentials, attempts, DEFAULT_BLOCK_TIME)
+    var defaultTransactionManager = RawTransactionManager(web3, credentials, ChainIdLong.NONE, receiptTracker)
 
     /** Gas price */
     val gasPrice = BigInteger.valueOf(ethereumConfig.gasPrice)
@@ -192,8 +220,8 @@ class DeployHelper(
             RawTransactionManager(
                 web3,
                 credentials,
-                ATTEMPTS_DEFAULT,
-                DEFAULT_BLOCK_TIME
+                ChainIdLong.NONE,
+                receiptTracker
             )
         )
     }
@@ -305,6 +333,47 @@ class DeployHelper(
         )
     }
 
+    /**
+     * Sends a contract function transaction with [defaultTransactionManager] without waiting for it to be mined
+     * @param contractAddress - address of the contract
+     * @param call - contract function call, it is encoded but not sent
+     * @return receipt of the mined transaction, failed with [TransactionException] if the transaction failed
+     */
+    fun sendAsync(
+        contractAddress: String,
+        call: RemoteFunctionCall<TransactionReceipt>
+    ): CompletableFuture<TransactionReceipt> {
+        val response = defaultTransactionManager.sendTransaction(
+            gasPrice,
+            gasLimit,
+            contractAddress,
+            call.encodeFunctionCall(),
+            BigInteger.ZERO
+        )
+        if (response.hasError()) {
+            throw IOException("Cannot send transaction to $contractAddress: ${response.error.message}")
+        }
+        val transactionHash = response.transactionHash
+        return receiptTracker.track(transactionHash).thenApply { receipt ->
+            if (!receipt.isStatusOK) {
+                throw TransactionException(
+                    "Transaction $transactionHash has failed with status ${receipt.status}",
+                    receipt
+                )
+            }
+            receipt
+        }
+    }
+
+    /**
+     * Get Master contract implementation loaded once per address.
+     * The wrapper uses the transaction manager set at the moment of the first call.
+     * @param address - address of master contract
+     * @return Master contract
+     */
+    fun getMasterContract(address: String): Master =
+        masterContracts.computeIfAbsent(address.toLowerCase()) { loadMasterContract(address) }
+
     /**
      * Load Proxy contract
      * @param address - address of proxy contract
@@ -455,8 +524,8 @@ class DeployHelper(
             RawTransactionManager(
                 web3,
                 credentials,
-                ATTEMPTS_DEFAULT,
-                DEFAULT_BLOCK_TIME
+                ChainIdLong.NONE,
+                receiptTracker
             )
         )
     }
@@ -493,6 +562,16 @@ class DeployHelper(
      */
     fun signUserData(toSign: String) = signUserData(credentials.ecKeyPair, toSign)
 
+    /**
+     * Stops the Ethereum client threads and closes its connections
+     */
+    override fun close() {
+        // stops the scheduler of receiptTracker as well
+        web3.shutdown()
+        httpClient.dispatcher.executorService.shutdown()
+        httpClient.connectionPool.evictAll()
+    }
+
     /**
      * Logger
      */
@@ -503,18 +582,22 @@ class DeployHelper(
 
 /**
  * Simple RawTransactionManager derivative that manages nonces to facilitate multiple transactions
- * per block. The implementation allows to set the attempts amount to modify default timeout.
+ * per block. The implementation allows to set the attempts amount to modify default timeout
+ * or to wait for receipts with a shared receipt processor.
  */
-class AttemptsCustomizableFastRawTransactionManager(
-    web3j: Web3j,
-    credentials: org.web3j.crypto.Credentials,
-    attempts: Int
-) : RawTransactionManager(
-    web3j,
-    credentials,
-    attempts,
-    DEFAULT_BLOCK_TIME
-) {
+class AttemptsCustomizableFastRawTransactionManager : RawTransactionManager {
+
+    constructor(web3j: Web3j, credentials: org.web3j.crypto.Credentials, attempts: Int) :
+            super(web3j, credentials, attempts, DEFAULT_BLOCK_TIME)
+
+    /**
+     * @param receiptProcessor - processor waiting for receipts, normally the shared [EthReceiptTracker]
+     */
+    constructor(
+        web3j: Web3j,
+        credentials: org.web3j.crypto.Credentials,
+        receiptProcessor: TransactionReceiptProcessor
+    ) : super(web3j, credentials, ChainIdLong.NONE, receiptProcessor)
 
     @Volatile
     var currentNonce = BigInteger.valueOf(-1)!!
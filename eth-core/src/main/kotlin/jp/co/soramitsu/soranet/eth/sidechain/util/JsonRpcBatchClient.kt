@@ -0,0 +1,113 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain.util
+
+import mu.KLogging
+import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.OkHttpClient
+import okhttp3.RequestBody.Companion.toRequestBody
+import org.web3j.protocol.ObjectMapperFactory
+import org.web3j.protocol.core.Response
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicLong
+
+const val DEFAULT_MAX_BATCH_SIZE = 500
+
+/**
+ * Sender of JSON-RPC batches
+ */
+interface JsonRpcBatchSender {
+
+    /**
+     * Calls [method] once per element of [paramsList]
+     * @param method - JSON-RPC method name
+     * @param paramsList - parameters of every call
+     * @param responseType - web3j response type of the method
+     * @return responses in the same order as [paramsList]
+     */
+    fun <T : Response<*>> sendBatch(
+        method: String,
+        paramsList: List<List<Any>>,
+        responseType: Class<T>
+    ): List<T>
+}
+
+/**
+ * Sends several JSON-RPC calls of the same method to an Ethereum node in a single HTTP round trip.
+ * web3j does not support JSON-RPC batches, so requests are serialized by hand.
+ * @param url - Ethereum node url
+ * @param httpClient - HTTP client to use, normally the same one the web3j service is built with
+ * @param maxBatchSize - maximum number of calls in one HTTP request. Nodes usually limit batch size.
+ */
+class JsonRpcBatchClient(
+    private val url: String,
+    private val httpClient: OkHttpClient,
+    private val maxBatchSize: Int = DEFAULT_MAX_BATCH_SIZE
+) : JsonRpcBatchSender {
+    private val objectMapper = ObjectMapperFactory.getObjectMapper()
+    private val nextId = AtomicLong()
+
+    override fun <T : Response<*>> sendBatch(
+        method: String,
+        paramsList: List<List<Any>>,
+        responseType: Class<T>
+    ): List<T> {
+        return paramsList.chunked(maxBatchSize).flatMap { chunk ->
+            sendChunk(method, chunk, responseType)
+        }
+    }
+
+    private fun <T : Response<*>> sendChunk(
+        method: String,
+        paramsList: List<List<Any>>,
+        responseType: Class<T>
+    ): List<T> {
+        val firstId = nextId.getAndAdd(paramsList.size.toLong())
+        val payload = paramsList.mapIndexed { index, params ->
+            mapOf(
+                "jsonrpc" to "2.0",
+                "method" to method,
+                "params" to params,
+                "id" to firstId + index
+            )
+        }
+        val request = okhttp3.Request.Builder()
+            .url(url)
+            .post(objectMapper.writeValueAsBytes(payload).toRequestBody(JSON_MEDIA_TYPE))
+            .build()
+        httpClient.newCall(request).execute().use { response ->
+            if (!response.isSuccessful) {
+                throw IOException("Batch $method request failed with HTTP code ${response.code}")
+            }
+            val body = response.body ?: throw IOException("Batch $method request returned an empty body")
+            val tree = objectMapper.readTree(body.byteStream())
+            if (!tree.isArray) {
+                // nodes that do not support batches reply with a single error object
+                throw IOException("Batch $method request is not supported by the node: $tree")
+            }
+            val responses = arrayOfNulls<Any>(paramsList.size)
+            tree.forEach { node ->
+                val index = (node.get("id").asLong() - firstId).toInt()
+                if (index !in responses.indices) {
+                    throw IOException("Unexpected response id in batch $method response: $node")
+                }
+                responses[index] = objectMapper.treeToValue(node, responseType)
+            }
+            logger.debug { "Batch $method of ${paramsList.size} calls has been sent to $url" }
+            return responses.mapIndexed { index, value ->
+                @Suppress("UNCHECKED_CAST")
+                value as T? ?: throw IOException("No response for call ${paramsList[index]} in batch $method")
+            }
+        }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private val JSON_MEDIA_TYPE = "application/json; charset=utf-8".toMediaType()
+    }
+}
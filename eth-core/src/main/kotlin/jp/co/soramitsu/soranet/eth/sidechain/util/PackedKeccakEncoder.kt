@@ -0,0 +1,120 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain.util
+
+import org.bouncycastle.crypto.digests.KeccakDigest
+import java.math.BigInteger
+import java.nio.ByteBuffer
+
+/**
+ * Keccak-256 of tightly packed fields, the same as `keccak256(abi.encodePacked(...))` in Solidity.
+ * Fields are decoded straight into a reusable buffer that is fed to the digest incrementally,
+ * no intermediate hex strings are built. Instances are not thread safe.
+ */
+class PackedKeccakEncoder {
+    private val buffer = ByteBuffer.allocate(BUFFER_SIZE)
+    private val digest = KeccakDigest(256)
+    private val hash = ByteArray(32)
+    private val hexChars = CharArray(2 + 2 * 32)
+
+    /**
+     * Starts a new hash
+     */
+    fun reset(): PackedKeccakEncoder {
+        buffer.clear()
+        digest.reset()
+        return this
+    }
+
+    /**
+     * Appends hex encoded bytes, e.g. an address or a bytes32 hash
+     * @param hex - even length hex string with optional `0x` prefix
+     * @throws IllegalArgumentException if [hex] is not valid
+     */
+    fun putHex(hex: String): PackedKeccakEncoder {
+        val start = if (hex.startsWith(HEX_PREFIX)) 2 else 0
+        require((hex.length - start) % 2 == 0) { "Odd length hex $hex" }
+        var i = start
+        while (i < hex.length) {
+            putByte((digit(hex, i) shl 4) or digit(hex, i + 1))
+            i += 2
+        }
+        return this
+    }
+
+    /**
+     * Appends uint256 in big-endian order
+     * @param decimal - non-negative decimal number that fits 256 bits
+     * @throws IllegalArgumentException if [decimal] is not valid
+     */
+    fun putUint256(decimal: String): PackedKeccakEncoder {
+        val length = decimal.length
+        if (length in 1..MAX_LONG_DIGITS && decimal.all { it in '0'..'9' }) {
+            var value = 0L
+            for (c in decimal) {
+                value = value * 10 + (c - '0')
+            }
+            repeat(24) { putByte(0) }
+            for (shift in 56 downTo 0 step 8) {
+                putByte((value ushr shift).toInt())
+            }
+            return this
+        }
+        val value = BigInteger(decimal)
+        require(value.signum() >= 0 && value.bitLength() <= 256) { "Not uint256 $decimal" }
+        val bytes = value.toByteArray()
+        // toByteArray() may have an extra leading zero byte for the sign
+        val significant = if (bytes.size > 32) 32 else bytes.size
+        repeat(32 - significant) { putByte(0) }
+        for (i in bytes.size - significant until bytes.size) {
+            putByte(bytes[i].toInt())
+        }
+        return this
+    }
+
+    /**
+     * Finishes the hash
+     * @return `0x` prefixed lowercase hex of keccak-256 hash of all appended fields
+     */
+    fun keccak(): String {
+        flush()
+        digest.doFinal(hash, 0)
+        hexChars[0] = '0'
+        hexChars[1] = 'x'
+        for (i in hash.indices) {
+            val b = hash[i].toInt() and 0xff
+            hexChars[2 + 2 * i] = HEX_DIGITS[b ushr 4]
+            hexChars[3 + 2 * i] = HEX_DIGITS[b and 0x0f]
+        }
+        return String(hexChars)
+    }
+
+    private fun putByte(b: Int) {
+        if (!buffer.hasRemaining()) {
+            flush()
+        }
+        buffer.put(b.toByte())
+    }
+
+    private fun flush() {
+        digest.update(buffer.array(), 0, buffer.position())
+        buffer.clear()
+    }
+
+    private fun digit(hex: String, index: Int): Int {
+        val digit = Character.digit(hex[index], 16)
+        require(digit >= 0) { "Not a hex character at $index in $hex" }
+        return digit
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 256
+        private const val HEX_PREFIX = "0x"
+        /** Decimal numbers of up to 18 digits always fit into Long */
+        private const val MAX_LONG_DIGITS = 18
+        private val HEX_DIGITS = "0123456789abcdef".toCharArray()
+    }
+}
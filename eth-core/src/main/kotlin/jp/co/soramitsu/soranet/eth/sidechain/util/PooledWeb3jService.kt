@@ -0,0 +1,362 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain.util
+
+import io.reactivex.Flowable
+import mu.KLogging
+import okhttp3.OkHttpClient
+import org.web3j.protocol.Web3jService
+import org.web3j.protocol.core.Request
+import org.web3j.protocol.core.Response
+import org.web3j.protocol.http.HttpService
+import org.web3j.protocol.websocket.events.Notification
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Ethereum node used by [PooledWeb3jService]
+ * @param name - name used in logs and metrics, normally the url
+ * @param service - service of the node
+ * @param batchClient - JSON-RPC batch client of the node, null if the node is not used for batches
+ */
+class Web3jEndpoint(val name: String, val service: Web3jService, val batchClient: JsonRpcBatchSender? = null) {
+    private val latencies = LongArray(LATENCY_WINDOW)
+    private val failures = BooleanArray(OUTCOME_WINDOW)
+    private var latencyCount = 0
+    private var outcomeCount = 0
+    private var unhealthyUntil = 0L
+
+    /**
+     * Records a successful call
+     * @param latencyNanos - call duration in nanoseconds
+     */
+    @Synchronized
+    fun recordSuccess(latencyNanos: Long) {
+        latencies[latencyCount++ % LATENCY_WINDOW] = latencyNanos
+        failures[outcomeCount++ % OUTCOME_WINDOW] = false
+    }
+
+    /**
+     * Records a failed call, the endpoint is excluded from routing for [cooldownMs]
+     * if the error rate exceeds [maxErrorRate]
+     */
+    @Synchronized
+    fun recordFailure(maxErrorRate: Double, cooldownMs: Long) {
+        failures[outcomeCount++ % OUTCOME_WINDOW] = true
+        if (errorRate() > maxErrorRate) {
+            unhealthyUntil = System.currentTimeMillis() + cooldownMs
+        }
+    }
+
+    /** Median latency of the recent successful calls in nanoseconds, 0 if there were no calls */
+    @Synchronized
+    fun p50(): Long = percentile(0.5)
+
+    /** Share of failed calls among the recent ones */
+    @Synchronized
+    fun errorRate(): Double {
+        val count = minOf(outcomeCount, OUTCOME_WINDOW)
+        return if (count == 0) 0.0 else failures.take(count).count { it }.toDouble() / count
+    }
+
+    /** False while the endpoint is excluded from routing because of errors */
+    @Synchronized
+    fun isHealthy() = System.currentTimeMillis() >= unhealthyUntil
+
+    private fun percentile(quantile: Double): Long {
+        val count = minOf(latencyCount, LATENCY_WINDOW)
+        if (count == 0) {
+            return 0
+        }
+        val sorted = latencies.copyOf(count).apply { sort() }
+        return sorted[minOf(count - 1, (count * quantile).toInt())]
+    }
+
+    override fun toString() = name
+
+    companion object {
+        private const val LATENCY_WINDOW = 256
+        private const val OUTCOME_WINDOW = 64
+    }
+}
+
+/**
+ * [Web3jService] over several Ethereum nodes.
+ * Reads go to the healthy node with the lowest median latency. If it doesn't answer in [hedgeDelayMs],
+ * the same request is sent to the next node and the first answer wins. Failed reads are retried on the next node.
+ * A node that is behind the others has no blocks and receipts at the latest heights, so an empty block or receipt
+ * read is retried on the next node as well. JSON-RPC batches are routed the same way.
+ * At most [maxThreads] requests are in flight, further reads and hedges run in the calling thread.
+ * Transaction submission, nonce queries and filters depend on node state, so these calls are pinned
+ * to one node that is changed only when it fails.
+ * @param endpoints - Ethereum nodes
+ * @param hedgeDelayMs - time to wait for a read before hedging it to the next node, 0 disables hedging
+ * @param maxErrorRate - error rate that makes a node unhealthy
+ * @param cooldownMs - time an unhealthy node is excluded from routing
+ * @param maxThreads - maximum number of request threads
+ */
+class PooledWeb3jService(
+    val endpoints: List<Web3jEndpoint>,
+    private val hedgeDelayMs: Long = DEFAULT_HEDGE_DELAY_MS,
+    private val maxErrorRate: Double = DEFAULT_MAX_ERROR_RATE,
+    private val cooldownMs: Long = DEFAULT_COOLDOWN_MS,
+    maxThreads: Int = endpoints.size * DEFAULT_THREADS_PER_ENDPOINT
+) : Web3jService, JsonRpcBatchSender {
+
+    init {
+        require(endpoints.isNotEmpty()) { "At least one Ethereum endpoint is required" }
+        require(hedgeDelayMs >= 0) { "Hedge delay must not be negative, got $hedgeDelayMs" }
+    }
+
+    private val executor = ThreadPoolExecutor(
+        0,
+        maxThreads,
+        THREAD_KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS,
+        SynchronousQueue(),
+        requestThreadFactory(),
+        ThreadPoolExecutor.CallerRunsPolicy()
+    )
+
+    @Volatile
+    private var pinned = endpoints.first()
+
+    override fun <T : Response<*>> send(request: Request<*, *>, responseType: Class<T>): T {
+        return if (PINNED_METHODS.contains(request.method)) {
+            sendPinned(request, responseType)
+        } else {
+            sendRead(request, responseType)
+        }
+    }
+
+    override fun <T : Response<*>> sendAsync(
+        request: Request<*, *>,
+        responseType: Class<T>
+    ): CompletableFuture<T> {
+        val future = CompletableFuture<T>()
+        executor.execute {
+            try {
+                future.complete(send(request, responseType))
+            } catch (e: Exception) {
+                future.completeExceptionally(e)
+            }
+        }
+        return future
+    }
+
+    /**
+     * Sends a JSON-RPC batch to the nodes that have batch clients, ranked and retried as a read
+     */
+    override fun <T : Response<*>> sendBatch(
+        method: String,
+        paramsList: List<List<Any>>,
+        responseType: Class<T>
+    ): List<T> {
+        val candidates = rank().filter { it.batchClient != null }
+        require(candidates.isNotEmpty()) { "No Ethereum endpoint supports JSON-RPC batches" }
+        val hasMissing = { responses: List<T> -> responses.any { isMissing(method, it) } }
+        return read(method, candidates, hasMissing) { endpoint ->
+            call(endpoint) { endpoint.batchClient!!.sendBatch(method, paramsList, responseType) }
+        }
+    }
+
+    override fun <T : Notification<*>> subscribe(
+        request: Request<*, *>,
+        unsubscribeMethod: String,
+        responseType: Class<T>
+    ): Flowable<T> = pinned.service.subscribe(request, unsubscribeMethod, responseType)
+
+    override fun close() {
+        executor.shutdownNow()
+        endpoints.forEach { it.service.close() }
+    }
+
+    private fun <T : Response<*>> sendPinned(request: Request<*, *>, responseType: Class<T>): T {
+        val endpoint = pinned
+        try {
+            return call(endpoint) { endpoint.service.send(request, responseType) }
+        } catch (e: IOException) {
+            val next = rank().firstOrNull { it != endpoint }
+            if (next != null && pinned == endpoint) {
+                logger.warn("Ethereum endpoint $endpoint failed, pin ${request.method} calls to $next", e)
+                pinned = next
+            }
+            throw e
+        }
+    }
+
+    private fun <T : Response<*>> sendRead(request: Request<*, *>, responseType: Class<T>): T =
+        read<T>(request.method, rank(), { response -> isMissing(request.method, response) }) { endpoint ->
+            call(endpoint) { endpoint.service.send(request, responseType) }
+        }
+
+    /**
+     * Sends a read to [candidates] in order with hedging and failover
+     * @param method - JSON-RPC method name used in logs
+     * @param isMissing - true if the node has answered but has no data yet, the next node is asked then
+     * @param sendTo - sends the read to a node
+     * @return the first complete answer or the last answer without data if no node has it
+     */
+    private fun <R> read(
+        method: String,
+        candidates: List<Web3jEndpoint>,
+        isMissing: (R) -> Boolean,
+        sendTo: (Web3jEndpoint) -> R
+    ): R {
+        if (candidates.size == 1) {
+            return sendTo(candidates.first())
+        }
+        val completion = ExecutorCompletionService<Attempt<R>>(executor)
+        var next = 0
+        var pending = 0
+        var lastError: Exception? = null
+        var lastMissing: Attempt<R>? = null
+        fun submitNext() {
+            val endpoint = candidates[next++]
+            completion.submit {
+                try {
+                    Attempt(sendTo(endpoint), null)
+                } catch (e: Exception) {
+                    Attempt<R>(null, e)
+                }
+            }
+            pending++
+        }
+        submitNext()
+        while (pending > 0) {
+            val canHedge = hedgeDelayMs > 0 && next < candidates.size
+            val done = if (canHedge) completion.poll(hedgeDelayMs, TimeUnit.MILLISECONDS) else completion.take()
+            if (done == null) {
+                logger.debug { "Hedge $method to ${candidates[next]}" }
+                submitNext()
+                continue
+            }
+            pending--
+            val attempt = done.get()
+            if (attempt.error == null) {
+                @Suppress("UNCHECKED_CAST")
+                val response = attempt.response as R
+                if (!isMissing(response)) {
+                    return response
+                }
+                logger.debug { "Ethereum endpoint has no data for $method yet, ask the next one" }
+                lastMissing = attempt
+            } else {
+                lastError = attempt.error
+            }
+            if (pending == 0 && next < candidates.size) {
+                submitNext()
+            }
+        }
+        if (lastMissing != null) {
+            @Suppress("UNCHECKED_CAST")
+            return lastMissing.response as R
+        }
+        throw IOException("All Ethereum endpoints failed to serve $method", lastError)
+    }
+
+    private fun <R> call(endpoint: Web3jEndpoint, send: () -> R): R {
+        val start = System.nanoTime()
+        try {
+            val response = send()
+            endpoint.recordSuccess(System.nanoTime() - start)
+            return response
+        } catch (e: IOException) {
+            endpoint.recordFailure(maxErrorRate, cooldownMs)
+            throw e
+        }
+    }
+
+    /**
+     * @return healthy endpoints ordered by median latency followed by unhealthy ones ordered by error rate
+     */
+    private fun rank(): List<Web3jEndpoint> {
+        val (healthy, unhealthy) = endpoints.partition { it.isHealthy() }
+        return healthy.sortedBy { it.p50() } + unhealthy.sortedBy { it.errorRate() }
+    }
+
+    private class Attempt<R>(val response: R?, val error: Exception?)
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        const val DEFAULT_HEDGE_DELAY_MS = 500L
+        const val DEFAULT_MAX_ERROR_RATE = 0.5
+        const val DEFAULT_COOLDOWN_MS = 30_000L
+        const val DEFAULT_THREADS_PER_ENDPOINT = 16
+        private const val THREAD_KEEP_ALIVE_SECONDS = 60L
+
+        /** Calls that depend on the state of a particular node */
+        private val PINNED_METHODS = setOf(
+            "eth_sendRawTransaction",
+            "eth_sendTransaction",
+            "eth_getTransactionCount",
+            "eth_newFilter",
+            "eth_newBlockFilter",
+            "eth_newPendingTransactionFilter",
+            "eth_getFilterChanges",
+            "eth_getFilterLogs",
+            "eth_uninstallFilter"
+        )
+
+        /**
+         * Reads of a particular block or its transactions, a node that is behind answers them with no result.
+         * Receipts of pending transactions are empty on every node, so polling them costs a request per node.
+         */
+        private val HEIGHT_METHODS = setOf(
+            "eth_getBlockByNumber",
+            "eth_getBlockByHash",
+            "eth_getTransactionByBlockNumberAndIndex",
+            "eth_getTransactionByBlockHashAndIndex",
+            "eth_getTransactionReceipt"
+        )
+
+        /**
+         * @return true if [response] of a block read has neither result nor error
+         */
+        private fun isMissing(method: String, response: Response<*>) =
+            HEIGHT_METHODS.contains(method) && !response.hasError() && response.result == null
+
+        /**
+         * Splits comma separated Ethereum urls
+         */
+        fun parseUrls(urls: String) = urls.split(",").map { it.trim() }.filter { it.isNotEmpty() }
+
+        /**
+         * Creates a service over HTTP nodes
+         * @param urls - comma separated Ethereum node urls
+         * @param httpClient - HTTP client shared by the nodes
+         * @param hedgeDelayMs - time to wait for a read before hedging it to the next node, 0 disables hedging
+         */
+        fun http(urls: String, httpClient: OkHttpClient, hedgeDelayMs: Long = DEFAULT_HEDGE_DELAY_MS) =
+            PooledWeb3jService(
+                parseUrls(urls).map { url ->
+                    Web3jEndpoint(url, HttpService(url, httpClient, false), JsonRpcBatchClient(url, httpClient))
+                },
+                hedgeDelayMs
+            )
+
+        private fun requestThreadFactory(): ThreadFactory {
+            return object : ThreadFactory {
+                private val threadCounter = AtomicInteger(0)
+                override fun newThread(runnable: Runnable): Thread {
+                    val thread = Executors.defaultThreadFactory().newThread(runnable)
+                    thread.name = "eth-rpc-pool:th-${threadCounter.getAndIncrement()}:id-${thread.id}"
+                    thread.isDaemon = true
+                    return thread
+                }
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ package jp.co.soramitsu.soranet.eth.abi
 
 import com.google.common.io.Resources
 import jp.co.soramitsu.iroha.java.Utils
+import org.junit.jupiter.api.Assertions.assertNull
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertThrows
 import java.math.BigInteger
@@ -130,4 +131,56 @@ class AbiDecoderTest {
             AbiDecoder().decodeMethod(testData)
         }
     }
+
+    /**
+     * @given decoder with the test ABI
+     * @when txHash of withdrawal methods is projected from `withdraw` call data
+     * @then only the txHash word is returned and it matches the fully decoded value
+     */
+    @Test
+    fun testProjection() {
+        val abiJson = Resources.toString(Resources.getResource(abiFileName), StandardCharsets.UTF_8)
+        val testData =
+            "0xeea29e3e0000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000016345785d8a0000000000000000000000000000c3ce1c359669be9e8a9a5f2334e46589b39a5c649cda23c271071130dd45f7d26a3832e90da1a1c556432d39dce2ae09f23e8f46000000000000000000000000000000000000000000000000000000000000010000000000000000000000000000000000000000000000000000000000000001c00000000000000000000000000000000000000000000000000000000000000280000000000000000000000000c3ce1c359669be9e8a9a5f2334e46589b39a5c640000000000000000000000000000000000000000000000000000000000000005000000000000000000000000000000000000000000000000000000000000001c000000000000000000000000000000000000000000000000000000000000001b000000000000000000000000000000000000000000000000000000000000001b000000000000000000000000000000000000000000000000000000000000001b000000000000000000000000000000000000000000000000000000000000001b0000000000000000000000000000000000000000000000000000000000000005307a419a8eaaf545fa4f4b38fa68873c34420c822a3ec42789dd1b74ed987153b0c61b652ba67b8f68306a05a0052a41783491bffe0e2845b94f237983cf3780a721bebd62cd7e8dcacd24a1737a3518e810ebdb1663b8338ff833c29571e0f038a40e08a483559126aef3404698b263d6c9772824cffb6bf233d31610ce7a98a18b80ce9bfb0205aa3d4926b42bfb3dfc5e43081b7be9f0ce6fd5470a63e0dd000000000000000000000000000000000000000000000000000000000000000516eb040ad5e932eb9fefdf46f2ed0b0b0ea2f46b481aca98dc528772b16b89dd49173d9bedff9bc40421691eeb4c2b4383c9bc9cfa35776bc7dd7dfad433847c6371551b31f19137a02217b58f4cbe0216c4218572f65b51c74eb5cd441f366247a6019e4b6d8dedc1afd1caa4fffe2b73ec3ddff97874955ba3231cbad80c7944d724ba2f3b4987be8d7443da127014bf34e1c81718e0cbdbf05961282d1554"
+        val decoder = AbiDecoder()
+        decoder.addAbi(abiJson)
+
+        val projection = decoder.projection(listOf("withdraw"), "txHash" to "bytes32", "to" to "address")
+        val params = projection.decode(testData)!!
+
+        assertEquals("withdraw", decoder.getMethodName(testData))
+        assertEquals(listOf("txHash", "to"), projection.paramNames)
+        assertEquals(
+            "9CDA23C271071130DD45F7D26A3832E90DA1A1C556432D39DCE2AE09F23E8F46",
+            Utils.toHex(params[0])
+        )
+        assertEquals(
+            "000000000000000000000000C3CE1C359669BE9E8A9A5F2334E46589B39A5C64",
+            Utils.toHex(params[1])
+        )
+        // the same call data without prefix
+        assertEquals(
+            Utils.toHex(params[0]),
+            Utils.toHex(projection.decode(testData.removePrefix("0x"))!![0])
+        )
+    }
+
+    /**
+     * @given decoder with the test ABI
+     * @when parameters absent in the method or with another type are projected
+     * @then the method is not projected
+     */
+    @Test
+    fun testProjectionOfMissingParams() {
+        val abiJson = Resources.toString(Resources.getResource(abiFileName), StandardCharsets.UTF_8)
+        val testData =
+            "0xeea29e3e0000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000016345785d8a0000000000000000000000000000c3ce1c359669be9e8a9a5f2334e46589b39a5c649cda23c271071130dd45f7d26a3832e90da1a1c556432d39dce2ae09f23e8f46000000000000000000000000000000000000000000000000000000000000010000000000000000000000000000000000000000000000000000000000000001c00000000000000000000000000000000000000000000000000000000000000280000000000000000000000000c3ce1c359669be9e8a9a5f2334e46589b39a5c640000000000000000000000000000000000000000000000000000000000000005000000000000000000000000000000000000000000000000000000000000001c000000000000000000000000000000000000000000000000000000000000001b000000000000000000000000000000000000000000000000000000000000001b000000000000000000000000000000000000000000000000000000000000001b000000000000000000000000000000000000000000000000000000000000001b0000000000000000000000000000000000000000000000000000000000000005307a419a8eaaf545fa4f4b38fa68873c34420c822a3ec42789dd1b74ed987153b0c61b652ba67b8f68306a05a0052a41783491bffe0e2845b94f237983cf3780a721bebd62cd7e8dcacd24a1737a3518e810ebdb1663b8338ff833c29571e0f038a40e08a483559126aef3404698b263d6c9772824cffb6bf233d31610ce7a98a18b80ce9bfb0205aa3d4926b42bfb3dfc5e43081b7be9f0ce6fd5470a63e0dd000000000000000000000000000000000000000000000000000000000000000516eb040ad5e932eb9fefdf46f2ed0b0b0ea2f46b481aca98dc528772b16b89dd49173d9bedff9bc40421691eeb4c2b4383c9bc9cfa35776bc7dd7dfad433847c6371551b31f19137a02217b58f4cbe0216c4218572f65b51c74eb5cd441f366247a6019e4b6d8dedc1afd1caa4fffe2b73ec3ddff97874955ba3231cbad80c7944d724ba2f3b4987be8d7443da127014bf34e1c81718e0cbdbf05961282d1554"
+        val decoder = AbiDecoder()
+        decoder.addAbi(abiJson)
+
+        assertNull(decoder.projection(listOf("withdraw"), "txHash" to "uint256").decode(testData))
+        assertNull(decoder.projection(listOf("withdraw"), "unknown" to "bytes32").decode(testData))
+        assertNull(decoder.projection(listOf("mint"), "txHash" to "bytes32").decode(testData))
+        assertNull(decoder.getMethodName("0x12345678"))
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.mq
+
+import com.d3.notifications.event.AckEthWithdrawalProofEvent
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.anyOrNull
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.whenever
+import com.rabbitmq.client.AMQP
+import com.rabbitmq.client.Channel
+import com.rabbitmq.client.Connection
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class EthNotificationMqProducerTest {
+
+    private val tempDir = Files.createTempDirectory("producer").toFile()
+
+    private val spillFilePath = File(tempDir, "events.log").path
+
+    /** True while the broker accepts events */
+    private val reachable = AtomicBoolean()
+
+    /** Holds the first publication until all the events are enqueued */
+    private val enqueued = CountDownLatch(1)
+
+    /** Deduplication ids of the published events */
+    private val published = Collections.synchronizedList(ArrayList<String>())
+
+    private val channel = mock<Channel> {
+        on { waitForConfirms(any()) } doReturn true
+    }
+
+    private val connection = mock<Connection> {
+        on { createChannel() } doReturn channel
+    }
+
+    init {
+        doAnswer { invocation ->
+            enqueued.await()
+            if (!reachable.get()) {
+                throw IOException("Broker is unreachable")
+            }
+            val properties = invocation.getArgument<AMQP.BasicProperties>(2)
+            published.add(properties.headers[EthNotificationMqProducer.DEDUPLICATION_HEADER].toString())
+        }.whenever(channel).basicPublish(any(), any(), anyOrNull(), any())
+    }
+
+    private val producer = EthNotificationMqProducer(
+        { connection },
+        spillFilePath,
+        CAPACITY,
+        CAPACITY,
+        SimpleMeterRegistry()
+    )
+
+    @AfterEach
+    fun tearDown() {
+        producer.close()
+        tempDir.deleteRecursively()
+    }
+
+    /**
+     * @given producer with a full queue and an unreachable broker
+     * @when more events are enqueued and the broker comes back
+     * @then all the events are published exactly once in order they were enqueued
+     */
+    @Test
+    fun overflowTest() {
+        val events = (1..EVENTS).map {
+            AckEthWithdrawalProofEvent("tx_$it", "event_$it", it.toLong(), it.toLong(), 0)
+        }
+
+        events.forEach { producer.enqueue(it) }
+        assertTrue(producer.overflowDepth > 0)
+        enqueued.countDown()
+        waitFor { producer.spilledEvents == EVENTS }
+        reachable.set(true)
+        waitFor { published.size >= EVENTS && producer.spilledEvents == 0 }
+
+        assertEquals(
+            events.map { it.id + "_" + EthNotificationMqProducer.NOTIFICATION_SERVICE_NAME },
+            published.toList()
+        )
+        assertEquals(0, producer.queueDepth)
+        assertEquals(0, producer.overflowDepth)
+    }
+
+    private fun waitFor(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS)
+        while (!condition()) {
+            assertTrue(System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        }
+    }
+
+    companion object {
+        private const val CAPACITY = 2
+        private const val EVENTS = 10
+        private const val TIMEOUT_SECONDS = 30L
+    }
+}
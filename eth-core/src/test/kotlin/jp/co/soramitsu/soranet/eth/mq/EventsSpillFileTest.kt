@@ -0,0 +1,59 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.mq
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.file.Files
+
+class EventsSpillFileTest {
+
+    private val tempDir = Files.createTempDirectory("spill").toFile()
+
+    @AfterEach
+    fun tearDown() {
+        tempDir.deleteRecursively()
+    }
+
+    /**
+     * @given empty spill file
+     * @when events are appended in two portions and the file is reopened
+     * @then all the events are read in order and the size is restored
+     */
+    @Test
+    fun appendAndReopenTest() {
+        val path = File(tempDir, "spill/events.log").path
+        val events = (1..5).map { PendingEvent("type", "id_$it", "{\"id\":\"$it\",\"text\":\"line\\nbreak\"}") }
+
+        val spillFile = EventsSpillFile(path)
+        spillFile.append(events.take(2))
+        spillFile.append(events.drop(2))
+        assertEquals(events.size, spillFile.size)
+
+        val reopened = EventsSpillFile(path)
+        assertEquals(events.size, reopened.size)
+        assertEquals(events, reopened.read())
+    }
+
+    /**
+     * @given spill file with events
+     * @when the file is cleared
+     * @then no events are left
+     */
+    @Test
+    fun clearTest() {
+        val path = File(tempDir, "events.log").path
+        val spillFile = EventsSpillFile(path)
+        spillFile.append(listOf(PendingEvent("type", "id", "{}")))
+
+        spillFile.clear()
+
+        assertEquals(0, spillFile.size)
+        assertEquals(emptyList<PendingEvent>(), EventsSpillFile(path).read())
+    }
+}
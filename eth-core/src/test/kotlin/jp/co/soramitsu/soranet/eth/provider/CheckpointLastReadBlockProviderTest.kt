@@ -0,0 +1,84 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.provider
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.math.BigInteger
+import java.nio.file.Files
+
+class CheckpointLastReadBlockProviderTest {
+
+    private val tempDir = Files.createTempDirectory("checkpoint").toFile()
+    private val path = File(tempDir, "last_eth_read_block.checkpoint").path
+    private val hash = "0x" + "ab".repeat(32)
+
+    @AfterEach
+    fun tearDown() {
+        tempDir.deleteRecursively()
+    }
+
+    /**
+     * @given no checkpoint file
+     * @when provider is created
+     * @then initial height is used and no hash is known
+     */
+    @Test
+    fun initialHeightTest() {
+        CheckpointLastReadBlockProvider(path) { BigInteger.TEN }.use { provider ->
+            assertEquals(BigInteger.TEN, provider.getLastBlockHeight())
+            assertNull(provider.getLastBlockHash())
+        }
+    }
+
+    /**
+     * @given provider that commits every 10 blocks
+     * @when 15 blocks are saved without flush
+     * @then the file holds the height of the 10th block, all 15 after close
+     */
+    @Test
+    fun groupCommitTest() {
+        val provider = CheckpointLastReadBlockProvider(path, 10, 60_000)
+        (1L..15L).forEach { provider.saveLastBlock(BigInteger.valueOf(it), hash) }
+
+        CheckpointLastReadBlockProvider(path, 10, 60_000).use { reopened ->
+            assertEquals(BigInteger.TEN, reopened.getLastBlockHeight())
+            assertEquals(hash, reopened.getLastBlockHash())
+        }
+
+        provider.close()
+        CheckpointLastReadBlockProvider(path).use { reopened ->
+            assertEquals(BigInteger.valueOf(15), reopened.getLastBlockHeight())
+        }
+    }
+
+    /**
+     * @given checkpoint file with two commits
+     * @when the latest slot is corrupted
+     * @then the previous checkpoint is loaded
+     */
+    @Test
+    fun tornWriteTest() {
+        CheckpointLastReadBlockProvider(path, 1, 60_000).use { provider ->
+            provider.saveLastBlock(BigInteger.valueOf(100), hash)
+            provider.saveLastBlockHeight(BigInteger.valueOf(101))
+        }
+        // the second commit has sequence 2 and goes to the first slot
+        RandomAccessFile(path, "rw").use { file ->
+            file.seek(8)
+            file.writeLong(12345)
+        }
+
+        CheckpointLastReadBlockProvider(path).use { provider ->
+            assertEquals(BigInteger.valueOf(100), provider.getLastBlockHeight())
+            assertEquals(hash, provider.getLastBlockHash())
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.provider
+
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import iroha.protocol.BlockOuterClass
+import jp.co.soramitsu.iroha.java.Transaction
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Test
+import java.util.*
+
+class EthAddressProviderIrohaImplTest {
+
+    private val wallets = mapOf(
+        WALLET_1 to "client_1@sora",
+        WALLET_2 to "client_2@sora"
+    )
+
+    private val queryHelper = mock<IrohaQueryHelper> {
+        on { getAccountDetails(STORAGE_ACCOUNT, SETTER_ACCOUNT) } doReturn Result.of { wallets }
+        on { getAccountDetails(any(), eq(SETTER_ACCOUNT), eq(ETH_WALLET)) } doReturn Result.of { Optional.empty<String>() }
+        wallets.forEach { (wallet, accountId) ->
+            on { getAccountDetails(accountId, SETTER_ACCOUNT, ETH_WALLET) } doReturn Result.of { Optional.of(wallet) }
+        }
+    }
+
+    /**
+     * @given provider initialized with registered wallets
+     * @when wallets of registered accounts are requested several times
+     * @then they are queried from the account details once
+     */
+    @Test
+    fun registeredAccountTest() {
+        val provider = createProvider(60_000)
+
+        repeat(10) {
+            wallets.forEach { (wallet, accountId) ->
+                assertEquals(wallet, provider.getAddressByAccountId(accountId).get().get())
+            }
+        }
+        wallets.values.forEach { accountId ->
+            verify(queryHelper, times(1)).getAccountDetails(accountId, SETTER_ACCOUNT, ETH_WALLET)
+        }
+    }
+
+    /**
+     * @given provider whose wallets index has another wallet of an account than the account details
+     * @when wallet of the account is requested
+     * @then the wallet from the account details is returned
+     */
+    @Test
+    fun accountDetailsFirstTest() {
+        val provider = createProvider(60_000)
+        provider.walletIndex.put(WALLET_4, "client_1@sora")
+
+        assertEquals(WALLET_1, provider.getAddressByAccountId("client_1@sora").get().get())
+    }
+
+    /**
+     * @given provider initialized with registered wallets
+     * @when wallet of an account without wallet is requested several times
+     * @then Iroha is queried once
+     */
+    @Test
+    fun negativeCacheTest() {
+        val provider = createProvider(60_000)
+
+        repeat(10) {
+            assertFalse(provider.getAddressByAccountId(UNREGISTERED_ACCOUNT).get().isPresent)
+        }
+        verify(queryHelper, times(1)).getAccountDetails(UNREGISTERED_ACCOUNT, SETTER_ACCOUNT, ETH_WALLET)
+    }
+
+    /**
+     * @given provider with 50 ms negative cache TTL
+     * @when wallet of an account without wallet is requested before and after TTL
+     * @then Iroha is queried again after TTL
+     */
+    @Test
+    fun negativeCacheTtlTest() {
+        val provider = createProvider(50)
+
+        provider.getAddressByAccountId(UNREGISTERED_ACCOUNT).get()
+        Thread.sleep(100)
+        provider.getAddressByAccountId(UNREGISTERED_ACCOUNT).get()
+
+        verify(queryHelper, times(2)).getAccountDetails(UNREGISTERED_ACCOUNT, SETTER_ACCOUNT, ETH_WALLET)
+    }
+
+    /**
+     * @given account known to have no wallet
+     * @when a wallet is registered for it
+     * @then the wallet is returned without Iroha queries
+     */
+    @Test
+    fun addNewAddressTest() {
+        val provider = createProvider(60_000)
+        provider.getAddressByAccountId(UNREGISTERED_ACCOUNT).get()
+
+        provider.addNewAddress(WALLET_3, UNREGISTERED_ACCOUNT)
+
+        assertEquals(WALLET_3, provider.getAddressByAccountId(UNREGISTERED_ACCOUNT).get().get())
+        assertEquals(UNREGISTERED_ACCOUNT, provider.getAddresses().get()[WALLET_3])
+        verify(queryHelper, times(1)).getAccountDetails(UNREGISTERED_ACCOUNT, SETTER_ACCOUNT, ETH_WALLET)
+    }
+
+    /**
+     * @given provider initialized with registered wallets
+     * @when a block with wallets set by the setter account and by another account is handled
+     * @then only the wallet set by the setter account is added
+     */
+    @Test
+    fun filterAndExpandTest() {
+        val provider = createProvider(60_000)
+        val registration = Transaction.builder(SETTER_ACCOUNT)
+            .setAccountDetail(STORAGE_ACCOUNT, WALLET_3, UNREGISTERED_ACCOUNT)
+            .build()
+            .build()
+        val forgery = Transaction.builder("client_4@sora")
+            .setAccountDetail(STORAGE_ACCOUNT, WALLET_4, "client_4@sora")
+            .build()
+            .build()
+        val block = BlockOuterClass.Block.newBuilder()
+            .setBlockV1(
+                BlockOuterClass.Block_v1.newBuilder()
+                    .setPayload(
+                        BlockOuterClass.Block_v1.Payload.newBuilder()
+                            .addTransactions(registration)
+                            .addTransactions(forgery)
+                    )
+            )
+            .build()
+
+        provider.filterAndExpand(block)
+
+        val addresses = provider.getAddresses().get()
+        assertEquals(UNREGISTERED_ACCOUNT, addresses[WALLET_3])
+        assertFalse(addresses.containsKey(WALLET_4))
+        assertEquals(wallets.size + 1, addresses.size)
+        assertEquals(WALLET_3, provider.getAddressByAccountId(UNREGISTERED_ACCOUNT).get().get())
+    }
+
+    private fun createProvider(negativeCacheTtlMs: Long) = EthAddressProviderIrohaImpl(
+        queryHelper,
+        STORAGE_ACCOUNT,
+        SETTER_ACCOUNT,
+        ETH_WALLET,
+        negativeCacheTtlMs = negativeCacheTtlMs
+    )
+
+    companion object {
+        private const val STORAGE_ACCOUNT = "wallets@notary"
+        private const val SETTER_ACCOUNT = "registration@notary"
+        private const val UNREGISTERED_ACCOUNT = "client_3@sora"
+        private const val WALLET_1 = "0x0000000000000000000000000000000000000001"
+        private const val WALLET_2 = "0x0000000000000000000000000000000000000002"
+        private const val WALLET_3 = "0x0000000000000000000000000000000000000003"
+        private const val WALLET_4 = "0x0000000000000000000000000000000000000004"
+    }
+}
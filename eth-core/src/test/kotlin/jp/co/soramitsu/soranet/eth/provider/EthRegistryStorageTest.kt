@@ -0,0 +1,181 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.provider
+
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.file.Files
+
+class EthRegistryStorageTest {
+
+    private lateinit var directory: File
+    private lateinit var filePath: String
+
+    private var tokens = EthTokensSnapshot(mapOf(TOKEN to "token#sora"), emptyMap(), emptyMap())
+
+    private val tokensProvider = mock<EthTokensProvider> {
+        on { getTokensSnapshot() } doAnswer { tokens }
+    }
+
+    @BeforeEach
+    fun setUp() {
+        directory = Files.createTempDirectory("registry").toFile()
+        filePath = File(directory, "registry.snapshot").path
+    }
+
+    @AfterEach
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    /**
+     * @given registries saved to a snapshot
+     * @when the snapshot is loaded
+     * @then the same wallets and tokens are restored at the saved height
+     */
+    @Test
+    fun roundTripTest() {
+        val index = EthWalletIndex()
+        (1..WALLETS).forEach { i -> index.put(address(i), "client$i@sora") }
+        EthRegistryStorage(filePath, index, tokensProvider, null).use { it.save(10) }
+
+        val registry = EthRegistryStorage.load(filePath)
+
+        assertNotNull(registry)
+        assertEquals(10, registry!!.height)
+        assertEquals(HashMap(index.snapshot()), HashMap(registry.wallets.snapshot()))
+        assertEquals("client1@sora", registry.wallets.snapshot()[address(1)])
+        assertEquals(address(WALLETS), registry.wallets.getWallet("client$WALLETS@sora"))
+        assertEquals(tokens.ethAnchoredTokens, registry.tokens.ethAnchoredTokens)
+        assertEquals(tokens.irohaAnchoredTokens, registry.tokens.irohaAnchoredTokens)
+    }
+
+    /**
+     * @given snapshot followed by blocks that register wallets, move a wallet and add a token
+     * @when the registries are loaded and more blocks are saved
+     * @then the journal is replayed over the snapshot and the loaded registries keep being journaled
+     */
+    @Test
+    fun journalTest() {
+        val index = EthWalletIndex()
+        index.put(address(1), "client1@sora")
+        EthRegistryStorage(filePath, index, tokensProvider, null).use { storage ->
+            storage.save(1)
+            index.put(address(2), "client2@sora")
+            storage.save(2)
+            // a block without changes is not journaled
+            storage.save(3)
+            index.put(address(1), "client3@sora")
+            tokens = tokens.withTokens(emptyMap(), mapOf(OTHER_TOKEN to "other#sora"))
+            storage.save(4)
+        }
+
+        val loaded = EthRegistryStorage.load(filePath)!!
+        assertEquals(4, loaded.height)
+        assertEquals(HashMap(index.snapshot()), HashMap(loaded.wallets.snapshot()))
+        assertEquals(mapOf(OTHER_TOKEN to "other#sora"), loaded.tokens.irohaAnchoredTokens)
+        assertEquals(mapOf(TOKEN to "token#sora"), loaded.tokens.ethAnchoredTokens)
+
+        EthRegistryStorage(filePath, loaded.wallets, tokensProvider, loaded).use { storage ->
+            loaded.wallets.put(address(5), "client5@sora")
+            storage.save(5)
+        }
+
+        val reloaded = EthRegistryStorage.load(filePath)!!
+        assertEquals(5, reloaded.height)
+        assertEquals(HashMap(loaded.wallets.snapshot()), HashMap(reloaded.wallets.snapshot()))
+    }
+
+    /**
+     * @given journal which grows over the compaction size
+     * @when the next block is saved
+     * @then a new snapshot replaces the journal
+     */
+    @Test
+    fun compactionTest() {
+        val index = EthWalletIndex()
+        EthRegistryStorage(filePath, index, tokensProvider, null, compactionBytes = 1).use { storage ->
+            storage.save(1)
+            index.put(address(1), "client1@sora")
+            storage.save(2)
+            index.put(address(2), "client2@sora")
+            storage.save(3)
+        }
+
+        assertEquals(0, File("$filePath.journal").length())
+        val registry = EthRegistryStorage.load(filePath)!!
+        assertEquals(3, registry.height)
+        assertEquals(HashMap(index.snapshot()), HashMap(registry.wallets.snapshot()))
+    }
+
+    /**
+     * @given snapshot with a corrupted byte
+     * @when it is loaded
+     * @then nothing is loaded, so the registries are queried from Iroha
+     */
+    @Test
+    fun corruptSnapshotTest() {
+        val index = EthWalletIndex()
+        index.put(address(1), "client1@sora")
+        EthRegistryStorage(filePath, index, tokensProvider, null).use { it.save(1) }
+        RandomAccessFile(filePath, "rw").use { file ->
+            file.seek(20)
+            val byte = file.read()
+            file.seek(20)
+            file.write(byte xor 1)
+        }
+
+        assertNull(EthRegistryStorage.load(filePath))
+        assertNull(EthRegistryStorage.load(File(directory, "missing.snapshot").path))
+    }
+
+    /**
+     * @given journal whose last record was torn by a crash
+     * @when the registries are loaded
+     * @then the records before it are replayed and the torn record is cut off
+     */
+    @Test
+    fun tornJournalTest() {
+        val index = EthWalletIndex()
+        index.put(address(1), "client1@sora")
+        val journal = File("$filePath.journal")
+        EthRegistryStorage(filePath, index, tokensProvider, null).use { storage ->
+            storage.save(1)
+            index.put(address(2), "client2@sora")
+            storage.save(2)
+            val valid = journal.length()
+            index.put(address(3), "client3@sora")
+            storage.save(3)
+            RandomAccessFile(journal, "rw").use { it.setLength(valid + (journal.length() - valid) / 2) }
+        }
+        val valid = EthRegistryStorage.load(filePath)!!
+
+        assertEquals(2, valid.height)
+        assertEquals("client2@sora", valid.wallets.snapshot()[address(2)])
+        assertNull(valid.wallets.snapshot()[address(3)])
+        assertEquals(2, EthRegistryStorage.load(filePath)!!.height)
+    }
+
+    /**
+     * Pseudo random address
+     */
+    private fun address(i: Int) = String.format("0x%016x%024x", i * GOLDEN_GAMMA, i)
+
+    companion object {
+        private const val WALLETS = 10_000
+        private const val GOLDEN_GAMMA = -7046029254386353131L
+        private const val TOKEN = "0x00000000000000000000000000000000000000ab"
+        private const val OTHER_TOKEN = "0x00000000000000000000000000000000000000cd"
+    }
+}
@@ -8,10 +8,13 @@ package jp.co.soramitsu.soranet.eth.provider
 import com.d3.commons.sidechain.iroha.util.impl.IrohaQueryHelperImpl
 import com.d3.commons.util.GsonInstance
 import com.nhaarman.mockitokotlin2.*
+import iroha.protocol.BlockOuterClass
 import iroha.protocol.Primitive
 import iroha.protocol.QryResponses
 import jp.co.soramitsu.iroha.java.QueryAPI
+import jp.co.soramitsu.iroha.java.Transaction
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertThrows
 import kotlin.test.assertFalse
@@ -151,6 +154,54 @@ class EthTokensProviderImplTest {
         }
     }
 
+    /**
+     * @given ethTokenProvider is initialized with tokens
+     * @when Iroha block with new tokens is handled
+     * @then the new tokens appear in a new snapshot while the old snapshot stays the same
+     */
+    @Test
+    fun filterAndExpandSnapshotTest() {
+        val oldSnapshot = ethTokenProvider.getTokensSnapshot()
+        val tx = Transaction.builder(ethAnchoredTokenSetterAccount)
+            .setAccountDetail(ethAnchoredTokenStorageAccount, "0x0004", "token_4#ethereum")
+            .build()
+            .build()
+        val block = BlockOuterClass.Block.newBuilder()
+            .setBlockV1(
+                BlockOuterClass.Block_v1.newBuilder()
+                    .setPayload(BlockOuterClass.Block_v1.Payload.newBuilder().addTransactions(tx))
+            )
+            .build()
+
+        ethTokenProvider.filterAndExpand(block)
+
+        assertNull(oldSnapshot.getToken("token_4#ethereum"))
+        val newToken = ethTokenProvider.getTokensSnapshot().getToken("token_4#ethereum")!!
+        assertEquals("0x0004", newToken.address)
+        assertFalse(newToken.isIrohaAnchored)
+        assertEquals("0x0004", ethTokenProvider.getTokenAddress("token_4#ethereum").get())
+        assertEquals("token_4#ethereum", ethTokenProvider.getEthTokens().get()["0x0004"])
+        assertEquals(ethAnchored.size + irohaAnchored.size + 2, ethTokenProvider.getEthTokens().get().size)
+    }
+
+    /**
+     * @given snapshot with an asset registered at two Ethereum anchored addresses and one at both lists
+     * @when tokens are looked up by asset id
+     * @then only the asset present in the Iroha anchored list is Iroha anchored
+     */
+    @Test
+    fun snapshotIrohaAnchoredTest() {
+        val snapshot = EthTokensSnapshot(
+            mapOf("0x0001" to "token_1#ethereum", "0x0002" to "token_1#ethereum", "0x0003" to "token_3#sora"),
+            mapOf("0xAAA3" to "token_3#sora"),
+            emptyMap()
+        )
+
+        assertFalse(snapshot.getToken("token_1#ethereum")!!.isIrohaAnchored)
+        assertTrue(snapshot.getToken("token_3#sora")!!.isIrohaAnchored)
+        assertEquals("0x0003", snapshot.getToken("token_3#sora")!!.address)
+    }
+
     private fun buildDetailsResponse(
         writer: String,
         map: Map<String, String>
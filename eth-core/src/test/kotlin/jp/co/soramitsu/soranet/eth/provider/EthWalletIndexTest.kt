@@ -0,0 +1,137 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.provider
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+
+class EthWalletIndexTest {
+
+    /**
+     * @given index with a registered wallet
+     * @when the wallet is looked up by address in different cases and by log topic
+     * @then the account is found, malformed addresses and topics are not
+     */
+    @Test
+    fun lookupTest() {
+        val index = EthWalletIndex()
+        index.put(WALLET, ACCOUNT)
+        val snapshot = index.snapshot()
+
+        assertEquals(ACCOUNT, snapshot[WALLET])
+        assertEquals(ACCOUNT, snapshot[WALLET.toUpperCase().replace("0X", "0x")])
+        assertEquals(ACCOUNT, snapshot[WALLET.removePrefix("0x")])
+        assertEquals(ACCOUNT, snapshot.getByTopic("0x" + "0".repeat(24) + WALLET.removePrefix("0x")))
+        assertNull(snapshot.getByTopic("0x" + "1".repeat(24) + WALLET.removePrefix("0x")))
+        assertNull(snapshot[WALLET.dropLast(1)])
+        assertNull(snapshot[WALLET.dropLast(1) + "g"])
+        assertNull(snapshot["0x" + "0".repeat(40)])
+        assertEquals(WALLET, index.getWallet(ACCOUNT))
+        assertNull(index.getWallet("unknown@sora"))
+        assertThrows<IllegalArgumentException> { index.put("0x1234", ACCOUNT) }
+    }
+
+    /**
+     * @given snapshot of an index
+     * @when wallets are registered and a registered wallet is moved to another account
+     * @then the snapshot is not affected and a new snapshot sees the changes
+     */
+    @Test
+    fun snapshotTest() {
+        val index = EthWalletIndex()
+        index.put(WALLET, ACCOUNT)
+        val before = index.snapshot()
+
+        index.put(OTHER_WALLET, ACCOUNT)
+        index.put(WALLET, OTHER_ACCOUNT)
+        val after = index.snapshot()
+
+        assertEquals(mapOf(WALLET to ACCOUNT), HashMap(before))
+        assertFalse(before.containsKey(OTHER_WALLET))
+        assertEquals(mapOf(WALLET to OTHER_ACCOUNT, OTHER_WALLET to ACCOUNT), HashMap(after))
+        assertEquals(2, index.size)
+        assertEquals(OTHER_WALLET, index.getWallet(ACCOUNT))
+        assertEquals(WALLET, index.getWallet(OTHER_ACCOUNT))
+    }
+
+    /**
+     * @given index with a wallet of an account
+     * @when the wallet is registered with another account
+     * @then the first account has no wallet anymore
+     */
+    @Test
+    fun replacedWalletTest() {
+        val index = EthWalletIndex()
+        index.put(WALLET, ACCOUNT)
+
+        index.put(WALLET, OTHER_ACCOUNT)
+
+        assertNull(index.getWallet(ACCOUNT))
+        assertEquals(WALLET, index.getWallet(OTHER_ACCOUNT))
+    }
+
+    /**
+     * @given index with the smallest capacity
+     * @when 100000 wallets are registered
+     * @then all of them are found by address and by account
+     */
+    @Test
+    fun growthTest() {
+        val wallets = (1..WALLETS).associate { i -> address(i) to "client$i@sora" }
+        val index = EthWalletIndex(1)
+
+        wallets.forEach { (wallet, account) -> index.put(wallet, account) }
+
+        val snapshot = index.snapshot()
+        assertEquals(WALLETS, snapshot.size)
+        assertTrue(wallets.all { (wallet, account) -> snapshot[wallet] == account })
+        assertTrue(wallets.all { (wallet, account) -> index.getWallet(account) == wallet })
+        assertEquals(wallets, HashMap(snapshot))
+    }
+
+    /**
+     * @given snapshot taken while wallets are registered concurrently
+     * @when the snapshot is read during the registration
+     * @then it keeps seeing the same wallets
+     */
+    @Test
+    fun concurrentReadTest() {
+        val index = EthWalletIndex(1)
+        (1..WALLETS / 2).forEach { i -> index.put(address(i), "client$i@sora") }
+        val snapshot = index.snapshot()
+        val writer = Thread {
+            (WALLETS / 2 + 1..WALLETS).forEach { i -> index.put(address(i), "client$i@sora") }
+        }
+
+        writer.start()
+        while (writer.isAlive) {
+            assertEquals("client1@sora", snapshot[address(1)])
+            assertNull(snapshot[address(WALLETS)])
+        }
+        writer.join()
+
+        assertEquals(WALLETS / 2, snapshot.count())
+        assertEquals("client$WALLETS@sora", index.snapshot()[address(WALLETS)])
+    }
+
+    /**
+     * Pseudo random address
+     */
+    private fun address(i: Int) = String.format("0x%016x%024x", i * GOLDEN_GAMMA, i)
+
+    companion object {
+        private const val WALLETS = 100_000
+        private const val GOLDEN_GAMMA = -7046029254386353131L
+        private const val WALLET = "0x00000000000000000000000000000000000000ab"
+        private const val OTHER_WALLET = "0x00000000000000000000000000000000000000cd"
+        private const val ACCOUNT = "client@sora"
+        private const val OTHER_ACCOUNT = "other@sora"
+    }
+}
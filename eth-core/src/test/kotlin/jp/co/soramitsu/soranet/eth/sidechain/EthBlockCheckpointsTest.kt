@@ -0,0 +1,99 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.web3j.protocol.core.methods.response.EthBlock
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class EthBlockCheckpointsTest {
+
+    private val meterRegistry = SimpleMeterRegistry()
+
+    private val checkpoints = EthBlockCheckpoints(WINDOW_SIZE, meterRegistry)
+
+    private val saved = Collections.synchronizedList(ArrayList<String>())
+
+    /**
+     * @given published blocks
+     * @when they are parsed out of order
+     * @then a checkpoint is saved only when its block and all the previous blocks are parsed
+     */
+    @Test
+    fun orderTest() {
+        val blocks = (1L..3L).map { block(it, "a") }
+        blocks.forEach { block -> checkpoints.publish(block) { saved.add(block.block.hash) } }
+
+        checkpoints.parsed(blocks[1])
+        assertTrue(saved.isEmpty())
+        checkpoints.parsed(blocks[0])
+        assertEquals(listOf("a1", "a2"), saved)
+        checkpoints.checkpoint { saved.add("range") }
+        assertEquals(listOf("a1", "a2"), saved)
+        checkpoints.parsed(blocks[2])
+
+        assertEquals(listOf("a1", "a2", "a3", "range"), saved)
+        assertEquals(3L, meterRegistry.get("eth.chain.block.parsing").timer().count())
+    }
+
+    /**
+     * @given published blocks of a branch abandoned by a chain reorganisation
+     * @when the listener rewinds and publishes the new branch while the old blocks are still parsed
+     * @then checkpoints of the abandoned blocks are never saved
+     */
+    @Test
+    fun rewindTest() {
+        val oldBlocks = (1L..2L).map { block(it, "a") }
+        oldBlocks.forEach { block -> checkpoints.publish(block) { saved.add(block.block.hash) } }
+
+        checkpoints.rewind(oldBlocks[1].block.number) { saved.add("rewind") }
+        val newBlock = block(2, "b")
+        checkpoints.publish(newBlock) { saved.add(newBlock.block.hash) }
+        checkpoints.parsed(oldBlocks[0])
+        checkpoints.parsed(oldBlocks[1])
+        checkpoints.parsed(newBlock)
+
+        assertEquals(listOf("a1", "rewind", "b2"), saved)
+    }
+
+    /**
+     * @given window of published blocks that are not parsed
+     * @when one more block is published
+     * @then the publisher waits until a block is parsed
+     */
+    @Test
+    fun windowTest() {
+        val blocks = (1L..WINDOW_SIZE + 1L).map { block(it, "a") }
+        blocks.take(WINDOW_SIZE).forEach { checkpoints.publish(it) }
+        val published = CountDownLatch(1)
+
+        Thread {
+            checkpoints.publish(blocks.last())
+            published.countDown()
+        }.start()
+
+        assertFalse(published.await(100, TimeUnit.MILLISECONDS))
+        checkpoints.parsed(blocks.first())
+        assertTrue(published.await(1, TimeUnit.SECONDS))
+    }
+
+    private fun block(number: Long, branch: String) = EthBlock().apply {
+        result = EthBlock.Block().apply {
+            setNumber("0x" + number.toString(16))
+            hash = "$branch$number"
+        }
+    }
+
+    companion object {
+        private const val WINDOW_SIZE = 2
+    }
+}
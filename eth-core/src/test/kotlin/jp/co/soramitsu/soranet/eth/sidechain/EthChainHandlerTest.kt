@@ -0,0 +1,133 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import com.d3.commons.sidechain.SideChainEvent
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import jp.co.soramitsu.soranet.eth.mq.EthNotificationMqProducer
+import jp.co.soramitsu.soranet.eth.provider.EthAddressProvider
+import jp.co.soramitsu.soranet.eth.provider.EthTokensProvider
+import jp.co.soramitsu.soranet.eth.provider.EthTokensSnapshot
+import jp.co.soramitsu.soranet.eth.sidechain.util.JsonRpcBatchClient
+import okhttp3.OkHttpClient
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.web3j.protocol.ObjectMapperFactory
+import org.web3j.protocol.core.methods.response.EthBlock
+
+class EthChainHandlerTest {
+
+    private val masterAddress = "0x" + "ab".repeat(20)
+
+    private val wallets = (1..TRANSACTIONS_IN_BLOCK).associate { i ->
+        String.format("0x%040x", i) to "client$i@sora"
+    }
+
+    private val node = StubEthereumNode().apply {
+        onCall("eth_getTransactionReceipt") { params ->
+            mapOf(
+                "transactionHash" to params[0].asText(),
+                "blockNumber" to "0x1",
+                "status" to "0x1",
+                "logs" to emptyList<Any>()
+            )
+        }
+    }
+
+    private val ethWalletProvider = mock<EthAddressProvider> {
+        on { getAddresses() } doReturn Result.of { wallets }
+    }
+
+    private val ethTokensProvider = mock<EthTokensProvider> {
+        on { getTokensSnapshot() } doReturn EthTokensSnapshot(emptyMap(), emptyMap(), emptyMap())
+    }
+
+    private val web3 = node.web3()
+
+    @AfterEach
+    fun tearDown() {
+        web3.shutdown()
+        node.close()
+    }
+
+    /**
+     * @given stub Ethereum node and a block with 200 ether deposits to master
+     * @when the block is parsed with receipts loaded one by one
+     * @then every receipt costs a separate request to the node
+     */
+    @Test
+    fun perTransactionReceiptsTest() {
+        val handler = createHandler(Web3jReceiptFetcher(web3))
+
+        val events = handler.parseBlock(createBlock())
+
+        assertEquals(TRANSACTIONS_IN_BLOCK, events.size)
+        assertEquals(TRANSACTIONS_IN_BLOCK, node.requests)
+    }
+
+    /**
+     * @given stub Ethereum node and a block with 200 ether deposits to master
+     * @when the block is parsed with batch receipt loading
+     * @then all receipts are loaded with a single request and the same events are produced
+     */
+    @Test
+    fun batchReceiptsTest() {
+        val handler = createHandler(BatchReceiptFetcher(JsonRpcBatchClient(node.url, OkHttpClient())))
+
+        val events = handler.parseBlock(createBlock())
+
+        assertEquals(TRANSACTIONS_IN_BLOCK, events.size)
+        assertTrue(events.all { it is SideChainEvent.PrimaryBlockChainEvent.ChainAnchoredOnPrimaryChainDeposit })
+        assertEquals(1, node.requests)
+    }
+
+    private fun createHandler(receiptFetcher: EthReceiptFetcher) = EthChainHandler(
+        web3,
+        masterAddress,
+        ethWalletProvider,
+        ethTokensProvider,
+        mock<EthNotificationMqProducer>(),
+        "[]",
+        receiptFetcher
+    )
+
+    /**
+     * Creates block with ether deposits from every registered wallet to master
+     */
+    private fun createBlock(): EthBlock {
+        val transactions = wallets.keys.mapIndexed { index, wallet ->
+            mapOf(
+                "hash" to String.format("0x%064x", index + 1),
+                "blockNumber" to "0x1",
+                "transactionIndex" to "0x" + Integer.toHexString(index),
+                "from" to wallet,
+                "to" to masterAddress,
+                "value" to "0xde0b6b3a7640000",
+                "input" to "0x"
+            )
+        }
+        val block = mapOf(
+            "jsonrpc" to "2.0",
+            "id" to 1,
+            "result" to mapOf(
+                "number" to "0x1",
+                "hash" to String.format("0x%064x", 1),
+                "parentHash" to String.format("0x%064x", 0),
+                "timestamp" to "0x5e0be100",
+                "transactions" to transactions
+            )
+        )
+        return ObjectMapperFactory.getObjectMapper().convertValue(block, EthBlock::class.java)
+    }
+
+    companion object {
+        private const val TRANSACTIONS_IN_BLOCK = 200
+    }
+}
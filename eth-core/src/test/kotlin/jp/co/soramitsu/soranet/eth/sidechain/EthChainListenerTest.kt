@@ -0,0 +1,165 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import com.d3.commons.sidechain.provider.LastReadBlockProvider
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.math.BigInteger
+import java.util.*
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class EthChainListenerTest {
+
+    private val inFlight = AtomicInteger()
+    private val maxInFlight = AtomicInteger()
+
+    /** Blocks starting from [FORK_BLOCK] are replaced once [REORG_DETECTION_BLOCK] is requested */
+    @Volatile
+    private var forked = false
+    private var reorgEnabled = false
+
+    private val node = StubEthereumNode().apply {
+        onCall("eth_blockNumber") { "0x" + HEAD.toString(16) }
+        onCall("eth_getBlockByNumber") { params ->
+            val parameter = params[0].asText()
+            val number = if (parameter == "latest") HEAD else BigInteger(parameter.removePrefix("0x"), 16)
+            if (reorgEnabled && number == REORG_DETECTION_BLOCK) {
+                forked = true
+            }
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet()) { a, b -> maxOf(a, b) }
+            try {
+                // emulate network latency, so blocks are loaded out of order
+                Thread.sleep(ThreadLocalRandom.current().nextLong(1, 10))
+            } finally {
+                inFlight.decrementAndGet()
+            }
+            block(number)
+        }
+        onCall("eth_newBlockFilter") { "0x1" }
+        onCall("eth_getFilterChanges") { emptyList<String>() }
+        onCall("eth_uninstallFilter") { true }
+    }
+
+    private val web3 = node.web3()
+
+    private val savedHeights = Collections.synchronizedList(mutableListOf<BigInteger>())
+
+    private val lastReadBlockProvider = object : LastReadBlockProvider {
+        override fun getLastBlockHeight() = BigInteger.ZERO
+
+        override fun saveLastBlockHeight(height: BigInteger) {
+            savedHeights.add(height)
+        }
+    }
+
+    private val listener = EthChainListener(
+        web3,
+        BigInteger.ZERO,
+        BigInteger.ZERO,
+        lastReadBlockProvider,
+        false,
+        AtomicBoolean(),
+        CATCH_UP_WINDOW_SIZE
+    )
+
+    @AfterEach
+    fun tearDown() {
+        listener.close()
+        node.close()
+    }
+
+    /**
+     * @given stub Ethereum node with 300 blocks and listener that has not read any of them
+     * @when listener catches up with the chain with a window of concurrent requests
+     * @then blocks are loaded concurrently but published strictly in height order
+     */
+    @Test
+    fun catchUpOrderTest() {
+        val blockNumbers = listener.getBlockObservable().get()
+            .take(HEAD.toLong() + 1)
+            .map { it.block.number }
+            .toList()
+            .timeout(1, TimeUnit.MINUTES)
+            .blockingGet()
+
+        val expected = (0..HEAD.toInt()).map { BigInteger.valueOf(it.toLong()) }
+        assertEquals(expected, blockNumbers)
+        // the last height may still be being saved
+        assertEquals(expected.map { it.inc() }.take(HEAD.toInt()), savedHeights.take(HEAD.toInt()))
+        assertTrue(maxInFlight.get() > 1)
+    }
+
+    /**
+     * @given stub Ethereum node whose blocks starting from 190 are replaced when block 200 is requested
+     * @when listener reads the chain
+     * @then the reorganisation is reported, the listener rewinds to block 190 and emits the new branch
+     */
+    @Test
+    fun reorgTest() {
+        reorgEnabled = true
+        val reorgListener = EthChainListener(
+            node.web3(),
+            BigInteger.ZERO,
+            BigInteger.ZERO,
+            lastReadBlockProvider,
+            false,
+            AtomicBoolean()
+        )
+        try {
+            val reorgs = reorgListener.getReorgObservable().replay()
+            reorgs.connect()
+            val blocks = reorgListener.getBlockObservable().get()
+                .take(REORG_DETECTION_BLOCK.toLong() + HEAD.toLong() - FORK_BLOCK.toLong() + 1)
+                .toList()
+                .timeout(1, TimeUnit.MINUTES)
+                .blockingGet()
+
+            val expected = (0 until REORG_DETECTION_BLOCK.toInt()) + (FORK_BLOCK.toInt()..HEAD.toInt())
+            assertEquals(expected.map { BigInteger.valueOf(it.toLong()) }, blocks.map { it.block.number })
+            blocks.drop(REORG_DETECTION_BLOCK.toInt()).forEach { assertEquals(hash(it.block.number), it.block.hash) }
+
+            val reorg = reorgs.take(1).timeout(1, TimeUnit.MINUTES).blockingFirst()
+            assertEquals(FORK_BLOCK, reorg.forkBlockNumber)
+            assertEquals(
+                (FORK_BLOCK.toInt() until REORG_DETECTION_BLOCK.toInt()).map { BigInteger.valueOf(it.toLong()) },
+                reorg.orphanedBlocks.map { it.number }
+            )
+            assertEquals(REORG_DETECTION_BLOCK, reorg.detectedBy.number)
+            assertTrue(reorg.ancestorFound)
+        } finally {
+            reorgListener.close()
+        }
+    }
+
+    private fun hash(number: BigInteger): String {
+        val branch = if (forked && number >= FORK_BLOCK) FORKED_BRANCH else BigInteger.ZERO
+        return String.format("0x%064x", number.inc().add(branch))
+    }
+
+    private fun block(number: BigInteger): Map<String, Any> {
+        return mapOf(
+            "number" to "0x" + number.toString(16),
+            "hash" to hash(number),
+            "parentHash" to if (number == BigInteger.ZERO) String.format("0x%064x", 0) else hash(number.dec()),
+            "timestamp" to "0x5e0be100",
+            "transactions" to emptyList<Any>()
+        )
+    }
+
+    companion object {
+        private val HEAD = BigInteger.valueOf(300)
+        private const val CATCH_UP_WINDOW_SIZE = 16
+        private val FORK_BLOCK = BigInteger.valueOf(190)
+        private val REORG_DETECTION_BLOCK = BigInteger.valueOf(200)
+        private val FORKED_BRANCH = BigInteger.ONE.shiftLeft(128)
+    }
+}
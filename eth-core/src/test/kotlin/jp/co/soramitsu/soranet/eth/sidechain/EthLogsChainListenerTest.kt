@@ -0,0 +1,215 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import com.d3.commons.sidechain.provider.LastReadBlockProvider
+import com.fasterxml.jackson.databind.JsonNode
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import jp.co.soramitsu.soranet.eth.constants.ERC20_TRANSFER_TOPIC
+import jp.co.soramitsu.soranet.eth.provider.EthTokensProvider
+import jp.co.soramitsu.soranet.eth.provider.EthTokensSnapshot
+import jp.co.soramitsu.soranet.eth.sidechain.util.JsonRpcBatchClient
+import jp.co.soramitsu.soranet.eth.sidechain.util.JsonRpcBatchSender
+import okhttp3.OkHttpClient
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.web3j.protocol.core.Response
+import org.web3j.protocol.core.methods.response.Transaction
+import java.math.BigInteger
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class EthLogsChainListenerTest {
+
+    private val masterAddress = "0x" + "ab".repeat(20)
+    private val tokenAddress = "0x" + "cd".repeat(20)
+
+    /** Block number -> change of master ether balance in the block */
+    private val etherTransfers = mapOf(
+        300L to 2L,
+        WITHDRAWAL_BLOCK to -1L,
+        700L to 1L
+    )
+
+    private val node = StubEthereumNode().apply {
+        onCall("eth_blockNumber") { "0x" + HEAD.toString(16) }
+        onCall("eth_getLogs") { params -> getLogs(params[0]) }
+        onCall("eth_getBalance") { params ->
+            val blockNumber = parseQuantity(params[1])
+            "0x" + etherTransfers.filterKeys { it <= blockNumber }.values.sum().toString(16)
+        }
+        onCall("eth_getBlockByNumber") { params -> block(parseQuantity(params[0])) }
+    }
+
+    private val ethTokensProvider = mock<EthTokensProvider> {
+        on { getTokensSnapshot() } doReturn EthTokensSnapshot(
+            mapOf(tokenAddress to "token#ethereum"),
+            emptyMap(),
+            emptyMap()
+        )
+    }
+
+    private val listener = createListener(node, JsonRpcBatchClient(node.url, OkHttpClient()))
+
+    @AfterEach
+    fun tearDown() {
+        listener.close()
+        node.close()
+    }
+
+    /**
+     * @given stub Ethereum node with 1000 blocks, one token deposit, two ether deposits and one withdrawal
+     * @when logs based listener scans the chain
+     * @then only blocks with interesting transactions are loaded, block with token deposit contains only
+     * the deposit transaction and blocks that may contain ether deposits contain all the transactions
+     */
+    @Test
+    fun interestingBlocksTest() {
+        val blocks = listener.getBlockObservable().get()
+            .take(4)
+            .toList()
+            .timeout(1, TimeUnit.MINUTES)
+            .blockingGet()
+
+        assertEquals(
+            listOf(TOKEN_DEPOSIT_BLOCK, 300L, WITHDRAWAL_BLOCK, 700L),
+            blocks.map { it.block.number.toLong() }
+        )
+        assertEquals(
+            listOf(transactionHash(TOKEN_DEPOSIT_BLOCK, 0)),
+            blocks.first().block.transactions.map { (it.get() as Transaction).hash }
+        )
+        blocks.drop(1).forEach { assertEquals(TRANSACTIONS_IN_BLOCK, it.block.transactions.size) }
+        assertEquals(4, node.calls("eth_getBlockByNumber"))
+    }
+
+    /**
+     * @given stub Ethereum node that keeps no historical balances
+     * @when logs based listener scans the chain
+     * @then all the blocks are loaded in several bounded batches
+     */
+    @Test
+    fun noHistoricalBalancesTest() {
+        val prunedNode = StubEthereumNode().apply {
+            onCall("eth_blockNumber") { "0x" + PRUNED_HEAD.toString(16) }
+            onCall("eth_getLogs") { params -> getLogs(params[0]) }
+            onCall("eth_getBlockByNumber") { params -> block(parseQuantity(params[0])) }
+        }
+        val batchClient = JsonRpcBatchClient(prunedNode.url, OkHttpClient())
+        val batchSizes = Collections.synchronizedList(ArrayList<Int>())
+        val prunedListener = createListener(prunedNode, object : JsonRpcBatchSender {
+            override fun <T : Response<*>> sendBatch(
+                method: String,
+                paramsList: List<List<Any>>,
+                responseType: Class<T>
+            ): List<T> {
+                batchSizes.add(paramsList.size)
+                return batchClient.sendBatch(method, paramsList, responseType)
+            }
+        })
+        try {
+            val blocks = prunedListener.getBlockObservable().get()
+                .take(PRUNED_HEAD + 1)
+                .toList()
+                .timeout(1, TimeUnit.MINUTES)
+                .blockingGet()
+
+            assertEquals((0..PRUNED_HEAD).toList(), blocks.map { it.block.number.toLong() })
+            assertEquals(PRUNED_HEAD + 1, batchSizes.sum().toLong())
+            assertTrue(batchSizes.size > 1)
+        } finally {
+            prunedListener.close()
+            prunedNode.close()
+        }
+    }
+
+    private fun createListener(node: StubEthereumNode, batchClient: JsonRpcBatchSender) = EthLogsChainListener(
+        node.web3(),
+        batchClient,
+        masterAddress,
+        ethTokensProvider,
+        BigInteger.ZERO,
+        BigInteger.ZERO,
+        object : LastReadBlockProvider {
+            override fun getLastBlockHeight() = BigInteger.ZERO
+
+            override fun saveLastBlockHeight(height: BigInteger) {}
+        },
+        false,
+        AtomicBoolean(),
+        RANGE_SIZE
+    )
+
+    private fun getLogs(filter: JsonNode): List<Map<String, Any>> {
+        val from = parseQuantity(filter.get("fromBlock"))
+        val to = parseQuantity(filter.get("toBlock"))
+        val logs = if (filter.get("address").toString().contains(masterAddress)) {
+            listOf(log(WITHDRAWAL_BLOCK, masterAddress, listOf("0x" + "ee".repeat(32))))
+        } else {
+            listOf(
+                log(
+                    TOKEN_DEPOSIT_BLOCK,
+                    tokenAddress,
+                    listOf(
+                        ERC20_TRANSFER_TOPIC,
+                        "0x" + "11".repeat(20).padStart(64, '0'),
+                        "0x" + masterAddress.drop(2).padStart(64, '0')
+                    )
+                )
+            )
+        }
+        return logs.filter { parseQuantity(it.getValue("blockNumber") as String) in from..to }
+    }
+
+    private fun log(blockNumber: Long, address: String, topics: List<String>) = mapOf(
+        "blockNumber" to "0x" + blockNumber.toString(16),
+        "blockHash" to String.format("0x%064x", blockNumber),
+        "transactionHash" to transactionHash(blockNumber, 0),
+        "transactionIndex" to "0x0",
+        "logIndex" to "0x0",
+        "address" to address,
+        "topics" to topics,
+        "data" to "0x1",
+        "removed" to false
+    )
+
+    private fun block(number: Long) = mapOf(
+        "number" to "0x" + number.toString(16),
+        "hash" to String.format("0x%064x", number),
+        "parentHash" to String.format("0x%064x", number - 1),
+        "timestamp" to "0x5e0be100",
+        "transactions" to (0 until TRANSACTIONS_IN_BLOCK).map { index ->
+            mapOf(
+                "hash" to transactionHash(number, index),
+                "blockNumber" to "0x" + number.toString(16),
+                "transactionIndex" to "0x" + index.toString(16),
+                "from" to "0x" + "11".repeat(20),
+                "to" to "0x" + "22".repeat(20),
+                "value" to "0x0",
+                "input" to "0x"
+            )
+        }
+    )
+
+    private fun transactionHash(blockNumber: Long, index: Int) = String.format("0x%032x%032x", blockNumber, index)
+
+    private fun parseQuantity(node: JsonNode) = parseQuantity(node.asText())
+
+    private fun parseQuantity(quantity: String) = quantity.removePrefix("0x").toLong(16)
+
+    companion object {
+        private const val HEAD = 1000L
+        private const val PRUNED_HEAD = 100L
+        private const val RANGE_SIZE = 1000
+        private const val TRANSACTIONS_IN_BLOCK = 3
+        private const val TOKEN_DEPOSIT_BLOCK = 10L
+        private const val WITHDRAWAL_BLOCK = 500L
+    }
+}
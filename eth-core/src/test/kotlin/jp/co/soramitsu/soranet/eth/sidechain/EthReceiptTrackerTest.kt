@@ -0,0 +1,151 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import jp.co.soramitsu.soranet.eth.sidechain.util.JsonRpcBatchClient
+import okhttp3.OkHttpClient
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.web3j.protocol.exceptions.TransactionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+class EthReceiptTrackerTest {
+
+    private val node = StubEthereumNode()
+
+    private val web3 = node.web3()
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor()
+
+    /** Current block number of the node */
+    private val block = AtomicLong(1)
+
+    /** Hash of mined transaction -> its block number */
+    private val mined = ConcurrentHashMap<String, Long>()
+
+    init {
+        node.onCall("eth_blockNumber") { "0x" + block.get().toString(16) }
+        node.onCall("eth_getTransactionReceipt") { params ->
+            val hash = params[0].asText()
+            mined[hash]?.let { number ->
+                mapOf(
+                    "transactionHash" to hash,
+                    "blockNumber" to "0x" + number.toString(16),
+                    "status" to "0x1",
+                    "logs" to emptyList<Any>()
+                )
+            }
+        }
+    }
+
+    @AfterEach
+    fun tearDown() {
+        scheduler.shutdownNow()
+        web3.shutdown()
+        node.close()
+    }
+
+    /**
+     * @given tracker of three sent transactions
+     * @when two of them are mined in the next block
+     * @then their receipts are loaded with one batch request, the third transaction keeps waiting
+     * and the receipts are not polled again until a new block
+     */
+    @Test
+    fun batchTest() {
+        val tracker = tracker(TIMEOUT_MS)
+        val receipts = HASHES.map { tracker.track(it) }
+        waitFor { node.calls("eth_getTransactionReceipt") == HASHES.size }
+
+        mined[HASHES[0]] = 2
+        mined[HASHES[1]] = 2
+        val requests = node.requests
+        block.set(2)
+
+        assertEquals(HASHES[0], receipts[0].get(1, TimeUnit.SECONDS).transactionHash)
+        assertEquals(HASHES[1], receipts[1].get(1, TimeUnit.SECONDS).transactionHash)
+        assertFalse(receipts[2].isDone)
+        assertEquals(1, tracker.pendingCount)
+        assertEquals(2 * HASHES.size, node.calls("eth_getTransactionReceipt"))
+
+        Thread.sleep(POLL_INTERVAL_MS * 4)
+        // the block is polled, receipts are not
+        assertEquals(2 * HASHES.size, node.calls("eth_getTransactionReceipt"))
+        assertTrue(node.requests - requests > 2)
+    }
+
+    /**
+     * @given tracker used as receipt processor
+     * @when a transaction is mined while a sender waits for its receipt
+     * @then the sender gets the receipt
+     */
+    @Test
+    fun processorTest() {
+        val tracker = tracker(TIMEOUT_MS)
+        scheduler.schedule({
+            mined[HASHES[0]] = 2
+            block.set(2)
+        }, POLL_INTERVAL_MS * 2, TimeUnit.MILLISECONDS)
+
+        val receipt = tracker.waitForTransactionReceipt(HASHES[0])
+
+        assertEquals(HASHES[0], receipt.transactionHash)
+        assertEquals(0, tracker.pendingCount)
+    }
+
+    /**
+     * @given tracker of a transaction
+     * @when the transaction is not mined in time
+     * @then the receipt fails with [TransactionException] and the transaction is not tracked anymore
+     */
+    @Test
+    fun timeoutTest() {
+        val tracker = tracker(POLL_INTERVAL_MS * 3)
+
+        val receipt = tracker.track(HASHES[0])
+
+        val exception = assertThrows<ExecutionException> { receipt.get(1, TimeUnit.SECONDS) }
+        assertTrue(exception.cause is TransactionException)
+        assertEquals(0, tracker.pendingCount)
+        assertThrows<TransactionException> { tracker.waitForTransactionReceipt(HASHES[1]) }
+    }
+
+    private fun tracker(timeoutMs: Long) = EthReceiptTracker(
+        web3,
+        BatchReceiptFetcher(JsonRpcBatchClient(node.url, OkHttpClient())),
+        scheduler,
+        POLL_INTERVAL_MS,
+        timeoutMs,
+        SimpleMeterRegistry()
+    )
+
+    private fun waitFor(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + TIMEOUT_MS
+        while (!condition()) {
+            assertTrue(System.currentTimeMillis() < deadline)
+            Thread.sleep(10)
+        }
+    }
+
+    companion object {
+        private const val POLL_INTERVAL_MS = 50L
+        private const val TIMEOUT_MS = 5000L
+        private val HASHES = listOf(
+            "0x" + "1".repeat(64),
+            "0x" + "2".repeat(64),
+            "0x" + "3".repeat(64)
+        )
+    }
+}
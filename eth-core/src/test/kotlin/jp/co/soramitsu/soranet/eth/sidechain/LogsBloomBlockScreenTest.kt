@@ -0,0 +1,180 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import jp.co.soramitsu.soranet.eth.constants.ERC20_TRANSFER_TOPIC
+import jp.co.soramitsu.soranet.eth.provider.EthTokensProvider
+import jp.co.soramitsu.soranet.eth.provider.EthTokensSnapshot
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.web3j.protocol.ObjectMapperFactory
+import org.web3j.protocol.core.methods.response.EthBlock
+import org.web3j.utils.Numeric
+import java.math.BigInteger
+
+class LogsBloomBlockScreenTest {
+
+    private val node = StubEthereumNode()
+
+    private val web3 = node.web3()
+
+    private val tokensProvider = mock<EthTokensProvider> {
+        on { getTokensSnapshot() } doReturn EthTokensSnapshot(
+            mapOf(TOKEN_ADDRESS to ASSET_ID),
+            emptyMap(),
+            mapOf(ASSET_ID to 18)
+        )
+    }
+
+    private val meterRegistry = SimpleMeterRegistry()
+
+    private val screen = LogsBloomBlockScreen(web3, MASTER_ADDRESS, tokensProvider, meterRegistry)
+
+    init {
+        node.onCall("eth_getBlockByHash") { params ->
+            mapOf(
+                "number" to "0x1",
+                "hash" to params[0].asText(),
+                "transactions" to listOf(mapOf("hash" to TX_HASH, "to" to MASTER_ADDRESS))
+            )
+        }
+    }
+
+    @AfterEach
+    fun tearDown() {
+        web3.shutdown()
+        node.close()
+    }
+
+    /**
+     * @given block whose logs bloom contains the master address
+     * @when the block is screened
+     * @then the block is loaded with full transactions and the balance is not requested
+     */
+    @Test
+    fun masterLogTest() {
+        val block = screen.hydrate(block(BLOCK_NUMBER, bloom(Numeric.hexStringToByteArray(MASTER_ADDRESS))))
+
+        assertTrue(block.block.transactions.single() is EthBlock.TransactionObject)
+        assertEquals(1, node.calls("eth_getBlockByHash"))
+        assertEquals(0, node.calls("eth_getBalance"))
+    }
+
+    /**
+     * @given block whose logs bloom contains a transfer of a whitelisted token to master
+     * @when the block is screened
+     * @then the block is loaded
+     */
+    @Test
+    fun tokenTransferTest() {
+        val bloom = bloom(
+            Numeric.hexStringToByteArray(ERC20_TRANSFER_TOPIC),
+            Numeric.toBytesPadded(Numeric.toBigInt(MASTER_ADDRESS), 32),
+            Numeric.hexStringToByteArray(TOKEN_ADDRESS)
+        )
+
+        screen.hydrate(block(BLOCK_NUMBER, bloom))
+
+        assertEquals(1, node.calls("eth_getBlockByHash"))
+    }
+
+    /**
+     * @given blocks without master logs, the master balance is changed in one of them
+     * @when the blocks are screened
+     * @then only the block that changed the balance is loaded, the others are published with no transactions
+     */
+    @Test
+    fun etherTransferTest() {
+        val balances = mapOf(BLOCK_NUMBER - 1 to 10, BLOCK_NUMBER to 10, BLOCK_NUMBER + 1 to 15)
+        node.onCall("eth_getBalance") { params ->
+            "0x" + balances.getValue(Numeric.toBigInt(params[1].asText()).toLong()).toString(16)
+        }
+        val unrelatedTransfer = bloom(
+            Numeric.hexStringToByteArray(ERC20_TRANSFER_TOPIC),
+            Numeric.toBytesPadded(Numeric.toBigInt(MASTER_ADDRESS), 32)
+        )
+
+        val skipped = screen.hydrate(block(BLOCK_NUMBER, unrelatedTransfer))
+        val loaded = screen.hydrate(block(BLOCK_NUMBER + 1, bloom()))
+
+        assertTrue(skipped.block.transactions.isEmpty())
+        assertTrue(loaded.block.transactions.single() is EthBlock.TransactionObject)
+        assertEquals(1, node.calls("eth_getBlockByHash"))
+        // the balance of the shared block is cached
+        assertEquals(3, node.calls("eth_getBalance"))
+        assertEquals(0.5, meterRegistry.get("eth.blocks.skipped.ratio").gauge().value())
+    }
+
+    /**
+     * @given block without master logs and node that can't return the master balance
+     * @when the block is screened
+     * @then the block is loaded
+     */
+    @Test
+    fun prunedStateTest() {
+        screen.hydrate(block(BLOCK_NUMBER, bloom()))
+
+        assertEquals(1, node.calls("eth_getBlockByHash"))
+    }
+
+    /**
+     * @given block with no transactions
+     * @when the block is screened
+     * @then nothing is requested from the node
+     */
+    @Test
+    fun emptyBlockTest() {
+        val header = block(BLOCK_NUMBER, bloom())
+        header.block.transactions = emptyList()
+
+        screen.hydrate(header)
+
+        assertEquals(0, node.requests)
+    }
+
+    private fun block(number: Long, bloom: ByteArray): EthBlock {
+        val json = mapOf(
+            "jsonrpc" to "2.0",
+            "id" to 1,
+            "result" to mapOf(
+                "number" to "0x" + number.toString(16),
+                "hash" to String.format("0x%064x", number),
+                "logsBloom" to Numeric.toHexString(bloom),
+                "transactions" to listOf(TX_HASH)
+            )
+        )
+        val objectMapper = ObjectMapperFactory.getObjectMapper()
+        return objectMapper.readValue(objectMapper.writeValueAsString(json), EthBlock::class.java)
+    }
+
+    /**
+     * @return logs bloom of [values]
+     */
+    private fun bloom(vararg values: ByteArray): ByteArray {
+        val bloom = ByteArray(BLOOM_BYTES)
+        values.forEach { value ->
+            LogsBloomBlockScreen.bloomBits(value).forEach { bit ->
+                val index = BLOOM_BYTES - 1 - bit / 8
+                bloom[index] = (bloom[index].toInt() or (1 shl (bit % 8))).toByte()
+            }
+        }
+        return bloom
+    }
+
+    companion object {
+        private const val BLOCK_NUMBER = 100L
+        private const val BLOOM_BYTES = 256
+        private const val ASSET_ID = "token#ethereum"
+        private const val MASTER_ADDRESS = "0x1111111111111111111111111111111111111111"
+        private const val TOKEN_ADDRESS = "0x2222222222222222222222222222222222222222"
+        private val TX_HASH = String.format("0x%064x", BigInteger.TEN)
+    }
+}
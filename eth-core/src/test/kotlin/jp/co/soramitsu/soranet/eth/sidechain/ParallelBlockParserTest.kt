@@ -0,0 +1,153 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import com.d3.commons.sidechain.SideChainEvent.PrimaryBlockChainEvent.ChainAnchoredOnPrimaryChainDeposit
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import io.reactivex.Observable
+import jp.co.soramitsu.soranet.eth.provider.EthWalletIndex
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.web3j.protocol.core.methods.response.EthBlock
+import java.math.BigInteger
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+class ParallelBlockParserTest {
+
+    private val executorService = Executors.newFixedThreadPool(WINDOW_SIZE)
+
+    /** Number of snapshots taken */
+    private val snapshots = AtomicInteger()
+
+    /** Snapshot wallets contain the number of the snapshot, events contain it as the user id */
+    private val ethChainHandler = mock<EthChainHandler> {
+        on { takeSnapshot() } doAnswer {
+            val number = snapshots.getAndIncrement()
+            val wallets = EthWalletIndex.of(mapOf(String.format("0x%040x", number) to number.toString()))
+            Result.of { EthChainHandler.EthParsingSnapshot(wallets.snapshot(), emptyMap(), emptyMap()) }
+        }
+        on { parseBlock(any(), any<Result<EthChainHandler.EthParsingSnapshot, Exception>>()) } doAnswer {
+            val number = (it.arguments[0] as EthBlock).block.number.toLong()
+            val snapshot = (it.arguments[1] as Result<*, *>).get() as EthChainHandler.EthParsingSnapshot
+            // earlier blocks take longer to parse
+            Thread.sleep((BLOCKS - number) * PARSE_DURATION_STEP_MS)
+            listOf(event(number, snapshot.wallets.values.single()))
+        }
+    }
+
+    @AfterEach
+    fun tearDown() {
+        executorService.shutdownNow()
+    }
+
+    /**
+     * @given 8 blocks whose parsing takes less time the later the block is
+     * @when the blocks are parsed within a window of 4 blocks
+     * @then events are emitted in block order, every block is parsed with the snapshot of its position
+     * and the blocks are parsed faster than one by one
+     */
+    @Test
+    fun orderTest() {
+        val parser = ParallelBlockParser(ethChainHandler, WINDOW_SIZE, executorService)
+
+        val start = System.currentTimeMillis()
+        val events = parser.parse(blocks())
+            .cast(ChainAnchoredOnPrimaryChainDeposit::class.java)
+            .toList()
+            .blockingGet()
+        val duration = System.currentTimeMillis() - start
+
+        assertEquals((0 until BLOCKS).map { it.toString() }, events.map { it.hash })
+        assertTrue(events.all { it.hash == it.user })
+        val sequentialDuration = (1..BLOCKS).sum() * PARSE_DURATION_STEP_MS
+        assertTrue(duration < sequentialDuration / 2, "Parsed in $duration ms")
+    }
+
+    /**
+     * @given blocks parsed within a window
+     * @when the parser emits events
+     * @then every block is reported as parsed right after its event in block order
+     */
+    @Test
+    fun parsedCallbackTest() {
+        val log = Collections.synchronizedList(ArrayList<String>())
+        val parser = ParallelBlockParser(ethChainHandler, WINDOW_SIZE, executorService) { block ->
+            log.add("parsed ${block.block.number}")
+        }
+
+        parser.parse(blocks())
+            .cast(ChainAnchoredOnPrimaryChainDeposit::class.java)
+            .blockingForEach { log.add("event ${it.hash}") }
+
+        assertEquals((0 until BLOCKS).flatMap { listOf("event $it", "parsed $it") }, log)
+    }
+
+    /**
+     * @given handler that fails to parse a block
+     * @when the blocks are parsed
+     * @then events of the previous blocks are emitted and the failure is propagated
+     */
+    @Test
+    fun failureTest() {
+        val ethChainHandler = mock<EthChainHandler> {
+            on { takeSnapshot() } doReturn Result.of {
+                EthChainHandler.EthParsingSnapshot(EthWalletIndex().snapshot(), emptyMap(), emptyMap())
+            }
+            on { parseBlock(any(), any<Result<EthChainHandler.EthParsingSnapshot, Exception>>()) } doAnswer {
+                val number = (it.arguments[0] as EthBlock).block.number.toLong()
+                if (number == FAILED_BLOCK) {
+                    // fails before the previous blocks are parsed
+                    throw IllegalStateException("No receipt")
+                }
+                Thread.sleep(PARSE_DURATION_STEP_MS)
+                listOf(event(number, ""))
+            }
+        }
+        val parser = ParallelBlockParser(ethChainHandler, WINDOW_SIZE, executorService)
+        val events = ArrayList<String>()
+
+        val ex = assertThrows<IllegalStateException> {
+            parser.parse(blocks())
+                .cast(ChainAnchoredOnPrimaryChainDeposit::class.java)
+                .blockingForEach { events.add(it.hash) }
+        }
+
+        assertEquals("No receipt", ex.message)
+        assertEquals((0 until FAILED_BLOCK).map { it.toString() }, events)
+    }
+
+    private fun blocks() = Observable.range(0, BLOCKS).map { number ->
+        EthBlock().apply {
+            result = EthBlock.Block().apply { setNumber("0x" + Integer.toHexString(number)) }
+        }
+    }
+
+    private fun event(number: Long, user: String) =
+        ChainAnchoredOnPrimaryChainDeposit(
+            number.toString(),
+            BigInteger.ZERO,
+            user,
+            "ether#ethereum",
+            "1",
+            ""
+        )
+
+    companion object {
+        private const val BLOCKS = 8
+        private const val WINDOW_SIZE = 4
+        private const val FAILED_BLOCK = 5L
+        private const val PARSE_DURATION_STEP_MS = 50L
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.sun.net.httpserver.HttpServer
+import org.web3j.protocol.ObjectMapperFactory
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.JsonRpc2_0Web3j.DEFAULT_BLOCK_TIME
+import org.web3j.protocol.http.HttpService
+import java.io.Closeable
+import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Minimal local Ethereum JSON-RPC node that serves registered methods and counts HTTP requests.
+ * Supports both single calls and JSON-RPC batches. Requests are served concurrently.
+ */
+class StubEthereumNode : Closeable {
+    private val objectMapper = ObjectMapperFactory.getObjectMapper()
+    private val methods = ConcurrentHashMap<String, (JsonNode) -> Any?>()
+    private val requestCounter = AtomicInteger()
+    private val callCounters = ConcurrentHashMap<String, AtomicInteger>()
+    private val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+
+    /** Number of HTTP requests served */
+    val requests: Int
+        get() = requestCounter.get()
+
+    /** Url of the node */
+    val url: String
+        get() = "http://127.0.0.1:${server.address.port}"
+
+    init {
+        server.createContext("/") { exchange ->
+            requestCounter.incrementAndGet()
+            val request = objectMapper.readTree(exchange.requestBody)
+            val response = if (request.isArray) {
+                request.map { call(it) }
+            } else {
+                call(request)
+            }
+            val bytes = objectMapper.writeValueAsBytes(response)
+            exchange.responseHeaders.add("Content-Type", "application/json")
+            exchange.sendResponseHeaders(200, bytes.size.toLong())
+            exchange.responseBody.use { it.write(bytes) }
+        }
+        server.executor = Executors.newCachedThreadPool()
+        server.start()
+    }
+
+    /**
+     * Creates a client of the node with its own executor, since [Web3j.shutdown] stops the executor
+     * @param pollingInterval - polling interval in milliseconds
+     */
+    fun web3(pollingInterval: Long = DEFAULT_BLOCK_TIME.toLong()): Web3j =
+        Web3j.build(HttpService(url), pollingInterval, Executors.newSingleThreadScheduledExecutor())
+
+    /**
+     * Number of [method] calls served, batched calls are counted separately
+     */
+    fun calls(method: String): Int = callCounters[method]?.get() ?: 0
+
+    /**
+     * Register JSON-RPC [method] handler
+     * @param method - method name
+     * @param handler - result by call params
+     */
+    fun onCall(method: String, handler: (JsonNode) -> Any?) {
+        methods[method] = handler
+    }
+
+    private fun call(request: JsonNode): Map<String, Any?> {
+        val method = request.get("method").asText()
+        callCounters.computeIfAbsent(method) { AtomicInteger() }.incrementAndGet()
+        val handler = methods[method]
+            ?: return mapOf(
+                "jsonrpc" to "2.0",
+                "id" to request.get("id"),
+                "error" to mapOf("code" to -32601, "message" to "Method not found")
+            )
+        return mapOf(
+            "jsonrpc" to "2.0",
+            "id" to request.get("id"),
+            "result" to handler(request.get("params"))
+        )
+    }
+
+    override fun close() {
+        server.stop(0)
+        (server.executor as ExecutorService).shutdownNow()
+    }
+}
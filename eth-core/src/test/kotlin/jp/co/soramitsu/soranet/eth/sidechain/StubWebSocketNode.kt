@@ -0,0 +1,94 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import org.java_websocket.WebSocket
+import org.java_websocket.handshake.ClientHandshake
+import org.java_websocket.server.WebSocketServer
+import org.web3j.protocol.ObjectMapperFactory
+import java.io.Closeable
+import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Minimal local Ethereum WebSocket endpoint that supports `newHeads` subscriptions only
+ */
+class StubWebSocketNode : Closeable {
+    private val objectMapper = ObjectMapperFactory.getObjectMapper()
+    private val subscriptionCounter = AtomicInteger()
+    /** Connection -> subscription id */
+    private val subscriptions = ConcurrentHashMap<WebSocket, String>()
+    private val started = CountDownLatch(1)
+
+    private val server = object : WebSocketServer(InetSocketAddress("127.0.0.1", 0)) {
+        override fun onOpen(conn: WebSocket, handshake: ClientHandshake) {}
+
+        override fun onClose(conn: WebSocket, code: Int, reason: String?, remote: Boolean) {
+            subscriptions.remove(conn)
+        }
+
+        override fun onMessage(conn: WebSocket, message: String) {
+            val request = objectMapper.readTree(message)
+            val result: Any = when (request.get("method").asText()) {
+                "eth_subscribe" -> {
+                    val subscription = "0x" + subscriptionCounter.incrementAndGet().toString(16)
+                    subscriptions[conn] = subscription
+                    subscription
+                }
+                else -> {
+                    subscriptions.remove(conn)
+                    true
+                }
+            }
+            conn.send(
+                objectMapper.writeValueAsString(
+                    mapOf("jsonrpc" to "2.0", "id" to request.get("id"), "result" to result)
+                )
+            )
+        }
+
+        override fun onError(conn: WebSocket?, ex: Exception) {}
+
+        override fun onStart() {
+            started.countDown()
+        }
+    }
+
+    /** WebSocket url of the node */
+    val url: String
+        get() = "ws://127.0.0.1:${server.port}"
+
+    init {
+        server.isReuseAddr = true
+        server.start()
+        started.await(10, TimeUnit.SECONDS)
+    }
+
+    /**
+     * Sends `newHeads` notification to all the subscribers
+     * @param header - block header fields
+     */
+    fun publishHead(header: Map<String, Any>) {
+        subscriptions.forEach { (conn, subscription) ->
+            conn.send(
+                objectMapper.writeValueAsString(
+                    mapOf(
+                        "jsonrpc" to "2.0",
+                        "method" to "eth_subscription",
+                        "params" to mapOf("subscription" to subscription, "result" to header)
+                    )
+                )
+            )
+        }
+    }
+
+    override fun close() {
+        server.stop(1_000)
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain
+
+import com.d3.commons.sidechain.provider.LastReadBlockProvider
+import mu.KLogging
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.math.BigInteger
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+class WebSocketHeadsSourceTest {
+
+    private val head = AtomicLong(START_HEAD)
+    private val filterCounter = AtomicInteger()
+    /** Filter id -> last reported block */
+    private val filters = ConcurrentHashMap<String, Long>()
+    /** Block number -> time it has been mined in nanoseconds */
+    private val minedAt = ConcurrentHashMap<Long, Long>()
+
+    private val node = StubEthereumNode().apply {
+        onCall("eth_blockNumber") { "0x" + head.get().toString(16) }
+        onCall("eth_getBlockByNumber") { params ->
+            val parameter = params[0].asText()
+            block(if (parameter == "latest") head.get() else parameter.removePrefix("0x").toLong(16))
+        }
+        onCall("eth_getBlockByHash") { params -> block(params[0].asText().removePrefix("0x").toLong(16) - 1) }
+        onCall("eth_newBlockFilter") {
+            val id = "0x" + filterCounter.incrementAndGet().toString(16)
+            filters[id] = head.get()
+            id
+        }
+        onCall("eth_getFilterChanges") { params ->
+            val id = params[0].asText()
+            val from = filters.getValue(id) + 1
+            val to = head.get()
+            filters[id] = to
+            (from..to).map { hash(it) }
+        }
+        onCall("eth_uninstallFilter") { params -> filters.remove(params[0].asText()) != null }
+    }
+
+    private val wsNode = StubWebSocketNode()
+
+    private val web3 = node.web3(POLLING_INTERVAL_MS)
+
+    private val lastReadBlockProvider = object : LastReadBlockProvider {
+        override fun getLastBlockHeight() = BigInteger.valueOf(START_HEAD)
+
+        override fun saveLastBlockHeight(height: BigInteger) {}
+    }
+
+    @AfterEach
+    fun tearDown() {
+        web3.shutdown()
+        wsNode.close()
+        node.close()
+    }
+
+    /**
+     * @given stub Ethereum node with HTTP and WebSocket endpoints
+     * @when blocks are mined and detected with HTTP polling and with `newHeads` subscription
+     * @then all the heads are detected in both modes and WebSocket detection is faster
+     */
+    @Test
+    fun headDetectionLatencyTest() {
+        val pollingLatency = measureLatency(null)
+        val webSocketLatency = measureLatency(WebSocketHeadsSource(web3, wsNode.url))
+        logger.info { "Head detection latency: polling $pollingLatency ms, WebSocket $webSocketLatency ms" }
+
+        assertTrue(webSocketLatency < pollingLatency)
+    }
+
+    /**
+     * @given listener subscribed to `newHeads` over WebSocket
+     * @when the WebSocket endpoint goes down
+     * @then new heads are still detected with HTTP polling
+     */
+    @Test
+    fun fallbackTest() {
+        val listener = createListener(WebSocketHeadsSource(web3, wsNode.url, 60_000))
+        try {
+            val detected = ConcurrentHashMap<Long, Long>()
+            listener.getBlockObservable().get().subscribe { detected[it.block.number.toLong()] = System.nanoTime() }
+            awaitDetection(detected, head.get())
+            Thread.sleep(BLOCK_TIME_MS)
+            mineAndWait(detected)
+
+            wsNode.close()
+            mineAndWait(detected)
+        } finally {
+            listener.close()
+        }
+    }
+
+    /**
+     * @return average head detection latency in milliseconds
+     */
+    private fun measureLatency(headsSource: EthHeadsSource?): Long {
+        val listener = createListener(headsSource)
+        try {
+            val detected = ConcurrentHashMap<Long, Long>()
+            listener.getBlockObservable().get().subscribe { detected[it.block.number.toLong()] = System.nanoTime() }
+            // the listener emits the current head when it starts
+            awaitDetection(detected, head.get())
+            val blocks = (1..BLOCKS_TO_MINE).map {
+                Thread.sleep(BLOCK_TIME_MS)
+                mineAndWait(detected)
+            }
+            return blocks.map { TimeUnit.NANOSECONDS.toMillis(detected.getValue(it) - minedAt.getValue(it)) }
+                .average()
+                .toLong()
+        } finally {
+            listener.close()
+        }
+    }
+
+    private fun createListener(headsSource: EthHeadsSource?) = EthChainListener(
+        node.web3(POLLING_INTERVAL_MS),
+        BigInteger.ZERO,
+        BigInteger.ZERO,
+        lastReadBlockProvider,
+        false,
+        AtomicBoolean(),
+        headsSource = headsSource
+    )
+
+    /**
+     * Mines a new block and waits for the listener to emit it
+     * @return number of the block
+     */
+    private fun mineAndWait(detected: Map<Long, Long>): Long {
+        val number = head.get() + 1
+        minedAt[number] = System.nanoTime()
+        head.set(number)
+        wsNode.publishHead(header(number))
+        awaitDetection(detected, number)
+        return number
+    }
+
+    private fun awaitDetection(detected: Map<Long, Long>, number: Long) {
+        val deadline = System.currentTimeMillis() + DETECTION_TIMEOUT_MS
+        while (!detected.containsKey(number)) {
+            assertTrue(System.currentTimeMillis() < deadline, "Block $number has not been detected")
+            Thread.sleep(1)
+        }
+        assertEquals((START_HEAD..number).toSet(), detected.keys.filter { it <= number }.toSet())
+    }
+
+    private fun hash(number: Long) = String.format("0x%064x", number + 1)
+
+    private fun header(number: Long) = mapOf(
+        "number" to "0x" + number.toString(16),
+        "hash" to hash(number),
+        "parentHash" to hash(number - 1),
+        "timestamp" to "0x5e0be100"
+    )
+
+    private fun block(number: Long) = header(number) + ("transactions" to emptyList<Any>())
+
+    /**
+     * Logger
+     */
+    companion object : KLogging() {
+        private const val START_HEAD = 100L
+        private const val POLLING_INTERVAL_MS = 1_000L
+        private const val BLOCK_TIME_MS = 300L
+        private const val BLOCKS_TO_MINE = 5
+        private const val DETECTION_TIMEOUT_MS = 30_000L
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain.util
+
+import jp.co.soramitsu.soranet.eth.config.EthereumConfig
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotSame
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import org.web3j.crypto.Credentials
+
+class DeployHelperTest {
+
+    private val deployHelper = DeployHelper(
+        ethereumConfig,
+        null,
+        null,
+        Credentials.create("0x" + "01".repeat(32))
+    )
+
+    @AfterEach
+    fun tearDown() {
+        deployHelper.close()
+    }
+
+    /**
+     * @given deploy helper
+     * @when Master contract is requested several times
+     * @then the same wrapper is returned for the same address regardless of the case
+     */
+    @Test
+    fun masterContractCacheTest() {
+        val master = deployHelper.getMasterContract(MASTER_ADDRESS)
+
+        assertEquals(MASTER_ADDRESS, master.contractAddress)
+        assertSame(master, deployHelper.getMasterContract(MASTER_ADDRESS.toUpperCase().replace("0X", "0x")))
+        assertNotSame(master, deployHelper.getMasterContract("0x" + "22".repeat(20)))
+    }
+
+    companion object {
+        private val MASTER_ADDRESS = "0x" + "aa".repeat(20)
+
+        /** Config of a node that is never called */
+        private val ethereumConfig = object : EthereumConfig {
+            override val url = "http://127.0.0.1:1"
+            override val gasPrice = 0L
+            override val gasLimit = 0L
+            override val confirmationPeriod = 0L
+            override val catchUpWindowSize = 1
+            override val logsScanRangeSize = 0
+            override val headsTransport = "http"
+            override val wsUrl = ""
+            override val readHedgeDelayMs = 0L
+            override val logsBloomScreening = false
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain.util
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.web3j.crypto.Hash
+import java.math.BigInteger
+import java.util.*
+
+class PackedKeccakEncoderTest {
+
+    private val random = Random(42)
+
+    /**
+     * @given random addresses, amounts and Iroha hashes
+     * @when withdrawal and mint hashes are calculated
+     * @then they are the same as hashes of the concatenated hex strings
+     */
+    @Test
+    fun differentialTest() {
+        repeat(ITERATIONS) {
+            val tokenAddress = randomHex(20)
+            val amount = randomAmount()
+            val beneficiary = randomHex(20)
+            val irohaHash = randomHex(32)
+            val from = randomHex(20)
+
+            val expected = legacyHash(tokenAddress, amount, beneficiary, irohaHash, from)
+            assertEquals(expected, hashToWithdraw(tokenAddress, amount, beneficiary, irohaHash, from))
+            assertEquals(expected, hashToMint(tokenAddress, amount, beneficiary, irohaHash, from))
+        }
+    }
+
+    /**
+     * @given malformed fields: odd length, upper case prefix, signed and oversized amounts
+     * @when withdrawal hash is calculated
+     * @then it is the same as the hash of the concatenated hex strings
+     */
+    @Test
+    fun malformedFieldsTest() {
+        val address = "0x" + "ab".repeat(20)
+        val hash = "cd".repeat(32)
+        val cases = listOf(
+            listOf("0x" + "a".repeat(39), "1", address, hash, address),
+            listOf("0X" + "ab".repeat(20), "1", address, hash, address),
+            listOf(address, "+15", address, hash, address),
+            listOf(address, "0001", address, hash, address),
+            listOf(address, BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE).toString(), address, hash, address),
+            listOf(address, "1", address, "0x" + hash, address),
+            listOf(address, "1", address, hash.toUpperCase(), address),
+            listOf("", "0", "", "", "")
+        )
+        cases.forEach { (tokenAddress, amount, beneficiary, irohaHash, from) ->
+            assertEquals(
+                legacyHash(tokenAddress, amount, beneficiary, irohaHash, from),
+                hashToWithdraw(tokenAddress, amount, beneficiary, irohaHash, from)
+            )
+        }
+    }
+
+    /**
+     * Hash implementation that concatenates hex strings
+     */
+    private fun legacyHash(
+        tokenAddress: String,
+        amount: String,
+        beneficiary: String,
+        irohaHash: String,
+        from: String
+    ) = Hash.sha3(
+        tokenAddress.replace("0x", "")
+                + String.format("%064x", BigInteger(amount)).replace("0x", "")
+                + beneficiary.replace("0x", "")
+                + irohaHash.replace("0x", "")
+                + from.replace("0x", "")
+    )
+
+    private fun randomHex(bytes: Int): String {
+        val value = ByteArray(bytes).also { random.nextBytes(it) }
+        val hex = value.joinToString("") { String.format("%02x", it) }
+        return when (random.nextInt(3)) {
+            0 -> hex
+            1 -> "0x$hex"
+            else -> "0x" + hex.toUpperCase()
+        }
+    }
+
+    private fun randomAmount(): String {
+        return when (random.nextInt(3)) {
+            0 -> random.nextInt(1000).toString()
+            1 -> (random.nextLong() ushr 1).toString()
+            else -> BigInteger(1 + random.nextInt(256), random).toString()
+        }
+    }
+
+    companion object {
+        private const val ITERATIONS = 10_000
+    }
+}
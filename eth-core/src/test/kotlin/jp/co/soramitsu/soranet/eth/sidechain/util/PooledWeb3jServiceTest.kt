@@ -0,0 +1,206 @@
+/*
+ * Copyright Soramitsu Co., Ltd. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package jp.co.soramitsu.soranet.eth.sidechain.util
+
+import jp.co.soramitsu.soranet.eth.sidechain.StubEthereumNode
+import okhttp3.OkHttpClient
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.DefaultBlockParameter
+import org.web3j.protocol.core.DefaultBlockParameterName
+import org.web3j.protocol.core.methods.response.EthBlock
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt
+import java.math.BigInteger
+import java.util.concurrent.Executors
+
+class PooledWeb3jServiceTest {
+
+    private val slowNode = stubNode(SLOW_NODE_BLOCK, 50)
+    private val fastNode = stubNode(FAST_NODE_BLOCK, 0)
+
+    private var pool: PooledWeb3jService? = null
+
+    @AfterEach
+    fun tearDown() {
+        pool?.close()
+        slowNode.close()
+        fastNode.close()
+    }
+
+    /**
+     * @given pool of a slow and a fast node without hedging
+     * @when 50 reads are sent
+     * @then reads go to the fast node once latencies are known
+     */
+    @Test
+    fun fastestNodeRoutingTest() {
+        val web3 = createWeb3(0)
+
+        repeat(50) { web3.ethBlockNumber().send() }
+
+        assertTrue(slowNode.calls("eth_blockNumber") <= 1)
+        assertTrue(fastNode.calls("eth_blockNumber") >= 49)
+    }
+
+    /**
+     * @given pool whose first node answers in 2 seconds and hedging after 100 ms
+     * @when a read is sent
+     * @then the answer comes from the second node without waiting for the first one
+     */
+    @Test
+    fun hedgedReadTest() {
+        slowNode.onCall("eth_blockNumber") {
+            Thread.sleep(2_000)
+            "0x" + SLOW_NODE_BLOCK.toString(16)
+        }
+        val web3 = createWeb3(100)
+
+        val start = System.currentTimeMillis()
+        val blockNumber = web3.ethBlockNumber().send().blockNumber
+
+        assertEquals(BigInteger.valueOf(FAST_NODE_BLOCK), blockNumber)
+        assertTrue(System.currentTimeMillis() - start < 1_000)
+    }
+
+    /**
+     * @given pool with a node that is down
+     * @when reads are sent
+     * @then reads are served by the other node and the failed node is marked unhealthy
+     */
+    @Test
+    fun failoverTest() {
+        slowNode.close()
+        val web3 = createWeb3(0)
+
+        repeat(5) {
+            assertEquals(BigInteger.valueOf(FAST_NODE_BLOCK), web3.ethBlockNumber().send().blockNumber)
+        }
+        assertFalse(pool!!.endpoints.first().isHealthy())
+    }
+
+    /**
+     * @given pool whose first node is slower
+     * @when nonces are queried and transactions are sent
+     * @then all these calls go to the same node
+     */
+    @Test
+    fun pinnedWritesTest() {
+        val web3 = createWeb3(0)
+        // let the pool learn that the second node is faster
+        repeat(10) { web3.ethBlockNumber().send() }
+
+        repeat(10) {
+            web3.ethGetTransactionCount("0x" + "11".repeat(20), DefaultBlockParameterName.PENDING).send()
+            web3.ethSendRawTransaction("0x00").send()
+        }
+
+        assertEquals(10, slowNode.calls("eth_getTransactionCount"))
+        assertEquals(10, slowNode.calls("eth_sendRawTransaction"))
+        assertEquals(0, fastNode.calls("eth_getTransactionCount"))
+        assertEquals(0, fastNode.calls("eth_sendRawTransaction"))
+    }
+
+    /**
+     * @given pool whose faster node is behind and has no block at the requested height
+     * @when the block is requested
+     * @then the empty answer is retried on the other node that has the block
+     */
+    @Test
+    fun laggingNodeTest() {
+        slowNode.onCall("eth_getBlockByNumber") { params -> block(params[0].asText()) }
+        fastNode.onCall("eth_getBlockByNumber") { null }
+        val web3 = createWeb3(0)
+        // let the pool learn that the second node is faster
+        repeat(10) { web3.ethBlockNumber().send() }
+
+        val block = web3.ethGetBlockByNumber(DefaultBlockParameter.valueOf(BigInteger.TEN), false).send().block
+
+        assertEquals(BigInteger.TEN, block.number)
+        assertEquals(1, fastNode.calls("eth_getBlockByNumber"))
+        assertEquals(1, slowNode.calls("eth_getBlockByNumber"))
+    }
+
+    /**
+     * @given pool with a node that is down
+     * @when a JSON-RPC batch is sent
+     * @then the batch is served by the other node
+     */
+    @Test
+    fun batchFailoverTest() {
+        fastNode.onCall("eth_getBlockByNumber") { params -> block(params[0].asText()) }
+        slowNode.close()
+        createWeb3(0)
+
+        val blocks = pool!!.sendBatch(
+            "eth_getBlockByNumber",
+            listOf(listOf<Any>("0x1", false), listOf<Any>("0x2", false)),
+            EthBlock::class.java
+        )
+
+        assertEquals(listOf(BigInteger.ONE, BigInteger.TWO), blocks.map { it.block.number })
+        assertEquals(2, fastNode.calls("eth_getBlockByNumber"))
+    }
+
+    /**
+     * @given pool whose faster node is behind and has no receipts of the latest transactions
+     * @when the receipts are requested in a JSON-RPC batch
+     * @then the batch with empty receipts is retried on the other node that has them
+     */
+    @Test
+    fun laggingReceiptsTest() {
+        slowNode.onCall("eth_getTransactionReceipt") { params -> receipt(params[0].asText()) }
+        fastNode.onCall("eth_getTransactionReceipt") { null }
+        val web3 = createWeb3(0)
+        // let the pool learn that the second node is faster
+        repeat(10) { web3.ethBlockNumber().send() }
+
+        val receipts = pool!!.sendBatch(
+            "eth_getTransactionReceipt",
+            listOf(listOf<Any>(TX_HASH)),
+            EthGetTransactionReceipt::class.java
+        )
+
+        assertEquals(TX_HASH, receipts.single().transactionReceipt.get().transactionHash)
+        assertEquals(1, fastNode.calls("eth_getTransactionReceipt"))
+        assertEquals(1, slowNode.calls("eth_getTransactionReceipt"))
+    }
+
+    private fun createWeb3(hedgeDelayMs: Long): Web3j {
+        val service = PooledWeb3jService.http("${slowNode.url}, ${fastNode.url}", OkHttpClient(), hedgeDelayMs)
+        pool = service
+        return Web3j.build(service, 1_000, Executors.newSingleThreadScheduledExecutor())
+    }
+
+    private fun stubNode(blockNumber: Long, latencyMs: Long) = StubEthereumNode().apply {
+        onCall("eth_blockNumber") {
+            Thread.sleep(latencyMs)
+            "0x" + blockNumber.toString(16)
+        }
+        onCall("eth_getTransactionCount") { "0x1" }
+        onCall("eth_sendRawTransaction") { "0x" + "ab".repeat(32) }
+    }
+
+    private fun block(number: String) = mapOf(
+        "number" to number,
+        "hash" to "0x" + number.removePrefix("0x").padStart(64, '0')
+    )
+
+    private fun receipt(hash: String) = mapOf(
+        "transactionHash" to hash,
+        "blockNumber" to "0xa",
+        "status" to "0x1"
+    )
+
+    companion object {
+        private const val SLOW_NODE_BLOCK = 100L
+        private const val FAST_NODE_BLOCK = 200L
+        private val TX_HASH = "0x" + "cd".repeat(32)
+    }
+}
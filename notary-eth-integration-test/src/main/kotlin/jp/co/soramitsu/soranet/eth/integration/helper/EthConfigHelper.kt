@@ -58,6 +58,12 @@ open class EthConfigHelper(
             override val gasPrice = ethDepositConfig.ethereum.gasPrice
             override val gasLimit = ethDepositConfig.ethereum.gasLimit
             override val confirmationPeriod = ethDepositConfig.ethereum.confirmationPeriod
+            override val catchUpWindowSize = ethDepositConfig.ethereum.catchUpWindowSize
+            override val logsScanRangeSize = ethDepositConfig.ethereum.logsScanRangeSize
+            override val headsTransport = ethDepositConfig.ethereum.headsTransport
+            override val wsUrl = ethDepositConfig.ethereum.wsUrl
+            override val readHedgeDelayMs = ethDepositConfig.ethereum.readHedgeDelayMs
+            override val logsBloomScreening = ethDepositConfig.ethereum.logsBloomScreening
         },
         notaryCredential_: IrohaCredentialRawConfig = accountHelper.createCredentialRawConfig(
             accountHelper.notaryAccount
@@ -82,9 +88,13 @@ open class EthConfigHelper(
             override val iroha = irohaConfig
             override val lastEthereumReadBlockFilePath =
                 this@EthConfigHelper.lastEthereumReadBlockFilePath
+            override val lastEthereumReadBlockCheckpointPath = "deploy/eth-deposit/last_eth_read_block_$testName.checkpoint"
+            override val notificationsSpillFilePath = "deploy/eth-deposit/eth_notifications_spill_$testName.log"
+            override val registrySnapshotPath = "deploy/eth-deposit/registry_$testName.snapshot"
             override val startEthereumBlock = BigInteger.ZERO
             override val ignoreStartBlock = true
             override val ethereum = ethereumConfig
+            override val blockParsingWindowSize = ethDepositConfig.blockParsingWindowSize
             override val ethIrohaDepositQueue = testName
             override val ethMasterAddress = masterContractAddress
             override val ethereumWalletStorageAccount = accountHelper.ethereumWalletStorageAccount.accountId
@@ -113,6 +123,12 @@ open class EthConfigHelper(
     fun createEthereumConfig(): EthereumConfig {
         return object : EthereumConfig {
             override val confirmationPeriod = ethDepositConfig.ethereum.confirmationPeriod
+            override val catchUpWindowSize = ethDepositConfig.ethereum.catchUpWindowSize
+            override val logsScanRangeSize = ethDepositConfig.ethereum.logsScanRangeSize
+            override val headsTransport = ethDepositConfig.ethereum.headsTransport
+            override val wsUrl = ethDepositConfig.ethereum.wsUrl
+            override val readHedgeDelayMs = ethDepositConfig.ethereum.readHedgeDelayMs
+            override val logsBloomScreening = ethDepositConfig.ethereum.logsBloomScreening
             override val gasLimit = ethDepositConfig.ethereum.gasLimit
             override val gasPrice = ethDepositConfig.ethereum.gasPrice
             override val url = ethDepositConfig.ethereum.url